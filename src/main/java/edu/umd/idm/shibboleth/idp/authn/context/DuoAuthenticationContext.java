@@ -22,6 +22,7 @@ import javax.annotation.Nullable;
 
 import org.opensaml.messaging.context.BaseContext;
 
+import edu.umd.idm.shibboleth.idp.authn.duo.DuoLoginTiming;
 import net.shibboleth.idp.authn.context.AuthenticationContext;
 
 /**
@@ -44,6 +45,12 @@ public class DuoAuthenticationContext extends BaseContext {
     /** the passcode. */
     @Nullable private String duoPasscode;
 
+    /** the transaction handle of a pending two-phase authentication. */
+    @Nullable private String transactionHandle;
+
+    /** the timing of the Duo calls made for this login. */
+    @Nullable private DuoLoginTiming timing;
+
     /**
      * Gets the username.
      * 
@@ -128,4 +135,46 @@ public class DuoAuthenticationContext extends BaseContext {
         return this;
     }
 
+    /**
+     * Gets the transaction handle of a pending two-phase authentication.
+     * 
+     * @return the transaction handle
+     */
+    @Nullable public String getTransactionHandle() {
+        return transactionHandle;
+    }
+
+    /**
+     * Sets the transaction handle of a pending two-phase authentication.
+     * 
+     * @param handle the transaction handle
+     * 
+     * @return this context
+     */
+    @Nonnull public DuoAuthenticationContext setTransactionHandle(@Nullable final String handle) {
+        transactionHandle = handle;
+        return this;
+    }
+
+    /**
+     * Gets the timing of the Duo calls made for this login.
+     * 
+     * @return the timing, or null if no calls were made yet
+     */
+    @Nullable public DuoLoginTiming getTiming() {
+        return timing;
+    }
+
+    /**
+     * Sets the timing of the Duo calls made for this login.
+     * 
+     * @param loginTiming the timing
+     * 
+     * @return this context
+     */
+    @Nonnull public DuoAuthenticationContext setTiming(@Nullable final DuoLoginTiming loginTiming) {
+        timing = loginTiming;
+        return this;
+    }
+
 }
\ No newline at end of file
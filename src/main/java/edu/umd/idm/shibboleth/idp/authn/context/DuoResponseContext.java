@@ -24,6 +24,7 @@ import edu.umd.idm.shibboleth.idp.authn.duo.DuoAuthApiResponse;
 import edu.umd.idm.shibboleth.idp.authn.duo.impl.DuoAuthResponse;
 import edu.umd.idm.shibboleth.idp.authn.duo.impl.DuoPreauthResponse;
 import edu.umd.idm.shibboleth.idp.authn.duo.DuoAuthApi;
+import edu.umd.idm.shibboleth.idp.authn.duo.DuoLoginTiming;
 
 import net.shibboleth.idp.authn.context.AuthenticationContext;
 
@@ -34,6 +35,10 @@ import com.google.common.base.MoreObjects;
 /**
  * A context containing data about an Duo AuthAPI authentication operation.
  * 
+ * <p>
+ * The timing of the Duo calls is recorded whatever the outcome; the response is only set on success.
+ * </p>
+ * 
  * @parent {@link AuthenticationContext}
  * @added After an Duo AuthAPI authentication attempt
  */
@@ -41,6 +46,9 @@ public class DuoResponseContext extends BaseContext {
 
     /** Authentication response. */
     @Nullable private DuoAuthApiResponse authenticationResponse;
+
+    /** Timing of the Duo calls. */
+    @Nullable private DuoLoginTiming timing;
     
     /**
      * Get the Duo authentication response.
@@ -62,13 +70,34 @@ public class DuoResponseContext extends BaseContext {
         return this;
     }
     
+    /**
+     * Get the timing of the Duo calls made for the login.
+     * 
+     * @return the timing
+     */
+    @Nullable public DuoLoginTiming getTiming() {
+        return timing;
+    }
+
+    /**
+     * Set the timing of the Duo calls made for the login.
+     * 
+     * @param loginTiming the timing
+     * @return this context
+     */
+    @Nonnull public DuoResponseContext setTiming(@Nullable final DuoLoginTiming loginTiming) {
+        timing = loginTiming;
+        return this;
+    }
+
     /**
      * Check if the result of the response is allow state.
      * 
      * @return true if result of the response is allow state
      */
     public boolean isAllow() {
-        return authenticationResponse.getResult().equals(DuoAuthApi.DUO_AUTH_RESULT_ALLOW);
+        return authenticationResponse != null
+                && authenticationResponse.getResult().equals(DuoAuthApi.DUO_AUTH_RESULT_ALLOW);
     }
     
     /**
@@ -77,7 +106,8 @@ public class DuoResponseContext extends BaseContext {
      * @return true if result of the response is deny state
      */
     public boolean isDeny() {
-        return authenticationResponse.getResult().equals(DuoAuthApi.DUO_AUTH_RESULT_DENY);
+        return authenticationResponse != null
+                && authenticationResponse.getResult().equals(DuoAuthApi.DUO_AUTH_RESULT_DENY);
     }
     
     /**
@@ -97,7 +127,8 @@ public class DuoResponseContext extends BaseContext {
     @Override
     public String toString() {
         return MoreObjects.toStringHelper(this)
-                .add("duoApiResponse", authenticationResponse).toString();
+                .add("duoApiResponse", authenticationResponse)
+                .add("timing", timing).toString();
     }
 
 }
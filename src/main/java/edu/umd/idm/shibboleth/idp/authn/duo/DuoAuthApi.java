@@ -35,6 +35,12 @@ public final class DuoAuthApi {
     /** Duo AuthApi parameter name. */
     @Nonnull @NotEmpty public static final String DUO_PASSCODE = "passcode";
 
+    /** Duo AuthApi parameter name. */
+    @Nonnull @NotEmpty public static final String DUO_ASYNC = "async";
+
+    /** Duo AuthApi parameter name. */
+    @Nonnull @NotEmpty public static final String DUO_TXID = "txid";
+
     /** Duo AuthApi factor "auto" value. */
     @Nonnull @NotEmpty public static final String DUO_FACTOR_AUTO = "auto";
 
@@ -71,6 +77,9 @@ public final class DuoAuthApi {
     /** Duo AuthApi auth "deny" result value. */
     @Nonnull @NotEmpty public static final String DUO_AUTH_RESULT_DENY = "deny";
 
+    /** Duo AuthApi auth_status "waiting" result value. */
+    @Nonnull @NotEmpty public static final String DUO_AUTH_RESULT_WAITING = "waiting";
+
     /** Duo AuthApi auth "bypass" result value. */
     @Nonnull @NotEmpty public static final String DUO_AUTH_STATUS_BYPASS = "bypass";
 
@@ -0,0 +1,38 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.umd.idm.shibboleth.idp.authn.duo;
+
+import javax.annotation.Nonnull;
+
+import net.shibboleth.utilities.java.support.annotation.constraint.NotEmpty;
+
+/**
+ * Additional authentication event IDs signaled by the Duo AuthApi actions.
+ */
+public final class DuoAuthnEventIds {
+
+    /** Event signaled when a two-phase Duo authentication is waiting on the user. */
+    @Nonnull @NotEmpty public static final String DUO_AUTH_PENDING = "DuoAuthPending";
+
+    /** Event signaled when a Duo call is refused because the integration's call budget is exhausted. */
+    @Nonnull @NotEmpty public static final String DUO_RATE_LIMITED = "DuoRateLimited";
+
+    /** Constructor. */
+    private DuoAuthnEventIds() {
+    }
+
+}
@@ -0,0 +1,153 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.umd.idm.shibboleth.idp.authn.duo;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.ThreadSafe;
+
+import com.google.common.base.MoreObjects;
+
+/**
+ * Timing breakdown of the Duo calls made for one login, separating the time spent waiting on the user from the time
+ * spent by the IdP and Duo.
+ * 
+ * <p>
+ * The preauth and auth times are the elapsed times of those phases, including any queueing. The connection wait is
+ * the time spent obtaining and establishing HTTP connections. The user wait is the time Duo held an out-of-band
+ * request open, or spent being polled, before answering, which is dominated by the user responding to a push or call.
+ * </p>
+ */
+@ThreadSafe
+public class DuoLoginTiming {
+
+    /** Preauth time in nanoseconds. */
+    @Nonnull private final AtomicLong preauthTime = new AtomicLong();
+
+    /** Auth time in nanoseconds, including auth_status calls. */
+    @Nonnull private final AtomicLong authTime = new AtomicLong();
+
+    /** Connection wait time in nanoseconds. */
+    @Nonnull private final AtomicLong connectionWaitTime = new AtomicLong();
+
+    /** User wait time in nanoseconds. */
+    @Nonnull private final AtomicLong userWaitTime = new AtomicLong();
+
+    /** Number of retried Duo calls. */
+    @Nonnull private final AtomicInteger retries = new AtomicInteger();
+
+    /**
+     * Get the preauth time.
+     * 
+     * @return preauth time in milliseconds
+     */
+    public long getPreauthMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(preauthTime.get());
+    }
+
+    /**
+     * Add to the preauth time.
+     * 
+     * @param nanos time in nanoseconds
+     */
+    public void addPreauthTime(final long nanos) {
+        preauthTime.addAndGet(nanos);
+    }
+
+    /**
+     * Get the auth time, including auth_status calls.
+     * 
+     * @return auth time in milliseconds
+     */
+    public long getAuthMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(authTime.get());
+    }
+
+    /**
+     * Add to the auth time.
+     * 
+     * @param nanos time in nanoseconds
+     */
+    public void addAuthTime(final long nanos) {
+        authTime.addAndGet(nanos);
+    }
+
+    /**
+     * Get the time spent obtaining and establishing HTTP connections.
+     * 
+     * @return connection wait time in milliseconds
+     */
+    public long getConnectionWaitMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(connectionWaitTime.get());
+    }
+
+    /**
+     * Add to the connection wait time.
+     * 
+     * @param nanos time in nanoseconds
+     */
+    public void addConnectionWaitTime(final long nanos) {
+        connectionWaitTime.addAndGet(nanos);
+    }
+
+    /**
+     * Get the time spent waiting on the user.
+     * 
+     * @return user wait time in milliseconds
+     */
+    public long getUserWaitMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(userWaitTime.get());
+    }
+
+    /**
+     * Add to the user wait time.
+     * 
+     * @param nanos time in nanoseconds
+     */
+    public void addUserWaitTime(final long nanos) {
+        userWaitTime.addAndGet(nanos);
+    }
+
+    /**
+     * Get the number of retried Duo calls.
+     * 
+     * @return number of retries
+     */
+    public int getRetries() {
+        return retries.get();
+    }
+
+    /** Count a retried Duo call. */
+    public void incrementRetries() {
+        retries.incrementAndGet();
+    }
+
+    /** {@inheritDoc} */
+    @Override public String toString() {
+        return MoreObjects.toStringHelper(this)
+                .add("preauthMillis", getPreauthMillis())
+                .add("authMillis", getAuthMillis())
+                .add("connectionWaitMillis", getConnectionWaitMillis())
+                .add("userWaitMillis", getUserWaitMillis())
+                .add("retries", getRetries())
+                .toString();
+    }
+
+}
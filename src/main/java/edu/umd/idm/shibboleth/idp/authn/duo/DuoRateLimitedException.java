@@ -0,0 +1,42 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.umd.idm.shibboleth.idp.authn.duo;
+
+import java.security.GeneralSecurityException;
+
+import javax.annotation.Nullable;
+
+/**
+ * Thrown when a call to Duo is refused locally because the integration's concurrency or request rate budget is
+ * exhausted. Authenticators pass it through unchanged, so that callers can tell it apart from a failed call.
+ */
+public class DuoRateLimitedException extends GeneralSecurityException {
+
+    /** Serial version UID. */
+    private static final long serialVersionUID = -3329862216471098427L;
+
+    /**
+     * Constructor.
+     * 
+     * @param message exception message
+     */
+    public DuoRateLimitedException(@Nullable final String message) {
+        super(message);
+    }
+
+}
@@ -17,42 +17,145 @@
 
 package edu.umd.idm.shibboleth.idp.authn.duo.impl;
 
+import java.io.Closeable;
 import java.io.IOException;
 import java.io.InputStream;
+import java.net.ConnectException;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 import javax.annotation.concurrent.ThreadSafe;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
-import com.fasterxml.jackson.core.type.TypeReference;
 
+import org.apache.http.HttpEntity;
 import org.apache.http.HttpResponse;
 import org.apache.http.HttpStatus;
+import org.apache.http.NoHttpResponseException;
 import org.apache.http.client.HttpClient;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
 import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.conn.ConnectTimeoutException;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.nio.client.HttpAsyncClient;
+import org.apache.http.protocol.BasicHttpContext;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.util.EntityUtils;
 
 import com.duosecurity.duoweb.DuoWebException;
+import com.google.common.io.CountingInputStream;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
 
+import edu.umd.idm.shibboleth.idp.authn.duo.DuoAuthApiAsyncAuthenticator;
 import edu.umd.idm.shibboleth.idp.authn.duo.DuoAuthApiAuthenticator;
-import net.shibboleth.utilities.java.support.component.AbstractInitializableComponent;
+import edu.umd.idm.shibboleth.idp.authn.duo.DuoAuthApiResponse;
+import edu.umd.idm.shibboleth.idp.authn.duo.DuoLoginTiming;
+import edu.umd.idm.shibboleth.idp.authn.duo.DuoRateLimitedException;
+import edu.umd.idm.shibboleth.idp.authn.duo.impl.DuoRequestEncoder.Endpoint;
+import edu.umd.idm.shibboleth.idp.authn.duo.impl.DuoRequestEncoder.SignedRequest;
+import net.shibboleth.idp.authn.duo.DuoIntegration;
+import net.shibboleth.utilities.java.support.component.AbstractDestructableInitializableComponent;
 import net.shibboleth.utilities.java.support.component.ComponentInitializationException;
 import net.shibboleth.utilities.java.support.component.ComponentSupport;
 import net.shibboleth.utilities.java.support.logic.Constraint;
 
 /**
  * A base class for authentication actions which call a Duo AuthApi endpont.
+ * 
+ * <p>
+ * If no {@link HttpClient} or {@link HttpAsyncClient} is injected, requests are executed via a
+ * {@link DuoHttpTransport} which pools connections per Duo API host.
+ * </p>
+ * 
+ * <p>
+ * Under the metric prefix, the time spent signing requests ("sign"), decoding responses ("parse") and in each HTTP
+ * exchange ("http.&lt;endpoint&gt;", with failures under "http.&lt;endpoint&gt;.error") is recorded, and the number of
+ * exchanges in progress is exposed as "http.inflight".
+ * </p>
+ * 
+ * <p>
+ * By default, concurrent identical requests to idempotent endpoints (same endpoint, integration and parameters) made
+ * through the blocking methods share a single exchange with Duo and its result, so a client that retries or fans out
+ * does not cause duplicate calls. Requests to /auth are never shared, since their result authenticates the caller.
+ * </p>
+ * 
+ * <p>
+ * If a {@link DuoRateLimiter} is set, every exchange takes a permit from it for the request's integration first, and
+ * a {@link DuoRateLimitedException} is raised when the integration's budget is exhausted. Likewise, if a
+ * {@link DuoAdaptiveLimiter} is set, exchanges that do not wait on the user take a slot from it for the API host, and
+ * feed their round-trip time and outcome back to it; only 429 and 5xx responses and transport timeouts and resets
+ * count as overload. Non-blocking exchanges never wait for a permit or slot.
+ * </p>
+ * 
+ * <p>
+ * If a {@link DuoRetryPolicy} is set, blocking exchanges which fail with a transport error or an unexpected HTTP
+ * status are retried as far as the policy allows, counted under "retry.&lt;endpoint&gt;". Each retry is signed again,
+ * with the current date. Non-blocking exchanges are not retried, as their callers poll and would otherwise compete with
+ * the retries.
+ * </p>
  */
 @ThreadSafe
-public abstract class AbstractDuoAuthenticator extends AbstractInitializableComponent
-        implements DuoAuthApiAuthenticator {
+public abstract class AbstractDuoAuthenticator extends AbstractDestructableInitializableComponent
+        implements DuoAuthApiAuthenticator, DuoAuthApiAsyncAuthenticator {
+
+    /** Status Duo answers with when a request is rate limited. */
+    private static final int SC_TOO_MANY_REQUESTS = 429;
 
     /** HttoClient for contacting Duo. */
     @Nullable private HttpClient httpClient;
 
+    /** Non-blocking client for contacting Duo. */
+    @Nullable private HttpAsyncClient httpAsyncClient;
+
+    /** Pooled transport used for whichever client is not injected, created on first use if not set. */
+    @Nullable private volatile DuoHttpTransport transport;
+
+    /** Whether the transport was created (and so must be destroyed) by this component. */
+    private boolean ownsTransport;
+
     /** JSON object mapper. */
     @Nullable private ObjectMapper objectMapper;
 
+    /** Metric name prefix. */
+    @Nullable private String metricPrefix;
+
+    /** HTTP exchanges in progress. */
+    @Nonnull private AtomicInteger exchangesInFlight;
+
+    /** Whether concurrent identical requests share one exchange. */
+    private boolean coalesceRequests;
+
+    /** Identical requests in flight. */
+    @Nonnull private final DuoSingleFlight singleFlight;
+
+    /** Optional limiter of the calls made per integration. */
+    @Nullable private DuoRateLimiter rateLimiter;
+
+    /** Optional limiter of the concurrent exchanges per API host, adapted to Duo's latency. */
+    @Nullable private DuoAdaptiveLimiter adaptiveLimiter;
+
+    /** Optional policy deciding which failed exchanges are retried. */
+    @Nullable private DuoRetryPolicy retryPolicy;
+
+    /** Constructor. */
+    public AbstractDuoAuthenticator() {
+        metricPrefix = DuoMetrics.DEFAULT_PREFIX;
+        exchangesInFlight = new AtomicInteger();
+        coalesceRequests = true;
+        singleFlight = new DuoSingleFlight();
+    }
+
     /**
      * Get the {@link HttpClient} to use for contacting Duo.
      * 
@@ -73,6 +176,47 @@ public abstract class AbstractDuoAuthenticator extends AbstractInitializableComp
         httpClient = Constraint.isNotNull(client, "HTTP client cannot be null");
     }
 
+    /**
+     * Get the non-blocking {@link HttpAsyncClient} to use for contacting Duo.
+     * 
+     * @return HttpAsyncClient
+     */
+    @Nullable public HttpAsyncClient getHttpAsyncClient() {
+        return httpAsyncClient;
+    }
+
+    /**
+     * Set the non-blocking {@link HttpAsyncClient} to use for contacting Duo. The client must already be started.
+     * 
+     * @param client HttpAsyncClient
+     */
+    public void setHttpAsyncClient(@Nonnull final HttpAsyncClient client) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+
+        httpAsyncClient = Constraint.isNotNull(client, "HTTP async client cannot be null");
+    }
+
+    /**
+     * Get the pooled {@link DuoHttpTransport} used when no {@link HttpClient} or {@link HttpAsyncClient} is set.
+     * 
+     * @return the transport, or null if none was set and none has been needed yet
+     */
+    @Nullable public DuoHttpTransport getTransport() {
+        return transport;
+    }
+
+    /**
+     * Set the pooled {@link DuoHttpTransport} used when no {@link HttpClient} or {@link HttpAsyncClient} is set. A
+     * transport may be shared by several authenticators.
+     * 
+     * @param duoTransport the transport
+     */
+    public void setTransport(@Nonnull final DuoHttpTransport duoTransport) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+
+        transport = Constraint.isNotNull(duoTransport, "Duo transport cannot be null");
+    }
+
     /**
      * Get the JSON {@link ObjectMapper}.
      * 
@@ -93,60 +237,643 @@ public abstract class AbstractDuoAuthenticator extends AbstractInitializableComp
         objectMapper = Constraint.isNotNull(mapper, "Object mapper cannot me null");
     }
 
+    /**
+     * Get the metric name prefix.
+     * 
+     * @return the metric name prefix, or null if no metrics are recorded
+     */
+    @Nullable public String getMetricName() {
+        return metricPrefix;
+    }
+
+    /**
+     * Set the metric name prefix, or null to record no metrics.
+     * 
+     * @param name the metric name prefix
+     */
+    public void setMetricName(@Nullable final String name) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+
+        metricPrefix = name;
+    }
+
+    /**
+     * Set whether concurrent identical requests to idempotent endpoints share one exchange with Duo and its result.
+     * 
+     * @param flag whether requests are coalesced
+     */
+    public void setCoalesceRequests(final boolean flag) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+
+        coalesceRequests = flag;
+    }
+
+    /**
+     * Set the limiter bounding the concurrency and rate of the calls made per integration.
+     * 
+     * @param limiter the rate limiter
+     */
+    public void setRateLimiter(@Nullable final DuoRateLimiter limiter) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+
+        rateLimiter = limiter;
+    }
+
+    /**
+     * Set the limiter adapting the concurrent exchanges per API host to Duo's latency. Exchanges waiting on the user
+     * are not limited by it.
+     * 
+     * @param limiter the adaptive limiter
+     */
+    public void setAdaptiveLimiter(@Nullable final DuoAdaptiveLimiter limiter) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+
+        adaptiveLimiter = limiter;
+    }
+
+    /**
+     * Set the policy deciding which failed blocking exchanges are retried, and after how long.
+     * 
+     * @param policy the retry policy
+     */
+    public void setRetryPolicy(@Nullable final DuoRetryPolicy policy) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+
+        retryPolicy = policy;
+    }
+
     /** {@inheritDoc} */
     @Override protected void doInitialize() throws ComponentInitializationException {
         super.doInitialize();
 
-        if (httpClient == null) {
-            throw new ComponentInitializationException("HttpClient cannot be null");
-        }
+        exchangesInFlight = DuoMetrics.inFlight(metricPrefix, "http.inflight");
 
         if (objectMapper == null) {
             throw new ComponentInitializationException("ObjectMapper cannot be null");
         }
     }
 
+    /** {@inheritDoc} */
+    @Override protected void doDestroy() {
+        synchronized (this) {
+            if (ownsTransport) {
+                transport.destroy();
+            }
+        }
+
+        super.doDestroy();
+    }
+
+    /**
+     * Acquire the right to send a request from the rate limiter, if there is one. A request Duo holds open until the
+     * user responds does not take a bulkhead permit, so that pending pushes cannot shed the integration's other calls.
+     * 
+     * @param request the request
+     * @param awaitsUser whether Duo holds the request open until the user responds
+     * @param blocking whether the caller may wait for the permit
+     * 
+     * @return the permit to close once the exchange completes, or null if there is no rate limiter
+     * 
+     * @throws DuoRateLimitedException if the integration's budget is exhausted
+     */
+    @Nullable private DuoRateLimiter.Permit acquirePermit(@Nonnull final HttpUriRequest request,
+            final boolean awaitsUser, final boolean blocking) throws DuoRateLimitedException {
+        if (rateLimiter == null) {
+            return null;
+        }
+        final String integrationKey = request instanceof SignedRequest
+                ? ((SignedRequest) request).getIntegrationKey() : request.getURI().getHost();
+        return blocking ? rateLimiter.acquire(integrationKey, !awaitsUser)
+                : rateLimiter.tryAcquire(integrationKey, !awaitsUser);
+    }
+
+    /**
+     * Run a call, or, if requests are coalesced and the endpoint is idempotent, join the identical call already in
+     * flight. Calls to endpoints which are not idempotent, i.e. /auth, are never shared: their result authenticates
+     * the caller, so sharing it would let one approval authenticate every concurrent caller for the same user.
+     * 
+     * @param <T> the result type
+     * @param endpoint the endpoint called
+     * @param duoIntegration the Duo integration
+     * @param parts the request parameters identifying identical calls
+     * @param call the call
+     * 
+     * @return the result of the call
+     * 
+     * @throws Exception the exception thrown by the call
+     */
+    protected <T> T coalesce(@Nonnull final Endpoint endpoint, @Nonnull final DuoIntegration duoIntegration,
+            @Nonnull final String[] parts, @Nonnull final Callable<T> call) throws Exception {
+        if (!coalesceRequests || !endpoint.isIdempotent()) {
+            return call.call();
+        }
+        final String[] key = new String[parts.length + 2];
+        key[0] = endpoint.getName();
+        key[1] = duoIntegration.getIntegrationKey();
+        System.arraycopy(parts, 0, key, 2, parts.length);
+        return singleFlight.execute(DuoSingleFlight.key(key), call);
+    }
+
     /**
-     * Performs a call to the Duo AuthApi. Upon a successful call, the JSON response is mapped into the appropriate type
-     * of {@link DuoReposnseWrapper}.
+     * Get the {@link HttpClient} to use for a request, either the injected client or the pooled client for the
+     * request's host.
      * 
      * @param request the prepared HTTP request
-     * @param wrapperTypeRef the type of {@link DuoReposnseWrapper} to use
-     * @param <T> the DuoResponse type being wrapped
      * 
-     * @return a {@link DuoReposnseWrapper}
+     * @return the client
+     */
+    @Nonnull protected HttpClient selectHttpClient(@Nonnull final HttpUriRequest request) {
+        if (httpClient != null) {
+            return httpClient;
+        }
+        return getOrCreateTransport().getHttpClient(request.getURI().getHost());
+    }
+
+    /**
+     * Get the {@link HttpAsyncClient} to use, either the injected client or the transport's shared client.
+     * 
+     * @return the client
+     */
+    @Nonnull protected HttpAsyncClient selectHttpAsyncClient() {
+        if (httpAsyncClient != null) {
+            return httpAsyncClient;
+        }
+        return getOrCreateTransport().getHttpAsyncClient();
+    }
+
+    /**
+     * Get the transport, creating one owned by this component on first use if none was set. The transport builds the
+     * blocking and non-blocking clients independently, so only the side that is not injected is ever created.
+     * 
+     * @return the transport
+     */
+    @Nonnull private DuoHttpTransport getOrCreateTransport() {
+        DuoHttpTransport duoTransport = transport;
+        if (duoTransport == null) {
+            synchronized (this) {
+                duoTransport = transport;
+                if (duoTransport == null) {
+                    ComponentSupport.ifDestroyedThrowDestroyedComponentException(this);
+                    duoTransport = new DuoHttpTransport();
+                    try {
+                        duoTransport.initialize();
+                    } catch (final ComponentInitializationException e) {
+                        throw new IllegalStateException("Unable to initialize Duo HTTP transport", e);
+                    }
+                    ownsTransport = true;
+                    transport = duoTransport;
+                }
+            }
+        }
+        return duoTransport;
+    }
+
+    /**
+     * Build a signed POST to a Duo AuthApi endpoint, recording the time spent signing.
+     * 
+     * @param duoIntegration Duo integration to use
+     * @param endpoint the endpoint
+     * @param params alternating parameter names and values, pairs with a null value are omitted
+     * 
+     * @return the signed request
+     * 
+     * @throws Exception if the request cannot be signed
+     */
+    @Nonnull protected HttpPost post(@Nonnull final DuoIntegration duoIntegration, @Nonnull final Endpoint endpoint,
+            @Nonnull final String... params) throws Exception {
+        final HttpPost request = DuoRequestEncoder.forIntegration(duoIntegration).post(endpoint, params);
+        DuoMetrics.recordTime(metricPrefix, "sign", ((SignedRequest) request).getSigningTime());
+        return request;
+    }
+
+    /**
+     * Build a signed GET to a Duo AuthApi endpoint, recording the time spent signing.
+     * 
+     * @param duoIntegration Duo integration to use
+     * @param endpoint the endpoint
+     * @param params alternating parameter names and values, pairs with a null value are omitted
+     * 
+     * @return the signed request
+     * 
+     * @throws Exception if the request cannot be signed
+     */
+    @Nonnull protected HttpGet get(@Nonnull final DuoIntegration duoIntegration, @Nonnull final Endpoint endpoint,
+            @Nonnull final String... params) throws Exception {
+        final HttpGet request = DuoRequestEncoder.forIntegration(duoIntegration).get(endpoint, params);
+        DuoMetrics.recordTime(metricPrefix, "sign", ((SignedRequest) request).getSigningTime());
+        return request;
+    }
+
+    /**
+     * Performs a call to the Duo AuthApi. Upon a successful call, the JSON response is decoded into the appropriate
+     * type of {@link DuoAuthApiResponse}.
+     * 
+     * @param request the prepared HTTP request
+     * @param decoder the decoder for the response type
+     * @param <R> the DuoResponse type
+     * 
+     * @return the decoded response
+     * 
+     * @throws Exception request failure
+     */
+    protected <R extends DuoAuthApiResponse> R doApiRequest(@Nonnull final HttpUriRequest request,
+            @Nonnull final DuoResponseDecoder<R> decoder) throws Exception {
+        return doApiRequest(request, decoder, null, false);
+    }
+
+    /**
+     * Performs a call to the Duo AuthApi, adding its connection wait and, if the request waits on the user, the time
+     * until Duo answered it to a login's timing.
+     * 
+     * @param request the prepared HTTP request
+     * @param decoder the decoder for the response type
+     * @param timing the login's timing, or null
+     * @param awaitsUser whether Duo holds the request open until the user responds
+     * @param <R> the DuoResponse type
+     * 
+     * @return the decoded response
+     * 
+     * @throws Exception request failure
+     */
+    protected <R extends DuoAuthApiResponse> R doApiRequest(@Nonnull final HttpUriRequest request,
+            @Nonnull final DuoResponseDecoder<R> decoder, @Nullable final DuoLoginTiming timing,
+            final boolean awaitsUser) throws Exception {
+        if (retryPolicy == null) {
+            return exchange(request, decoder, timing, awaitsUser);
+        }
+
+        final Endpoint endpoint = request instanceof SignedRequest ? ((SignedRequest) request).getEndpoint() : null;
+        retryPolicy.recordRequest();
+        HttpUriRequest attemptRequest = request;
+        long delay = 0;
+        for (int attempt = 1;; attempt++) {
+            try {
+                return exchange(attemptRequest, decoder, timing, awaitsUser);
+            } catch (final IOException e) {
+                if (attempt >= retryPolicy.getMaxAttempts() || !retryPolicy.isRetryable(endpoint, e)) {
+                    throw e;
+                }
+                // give up rather than sleep past the caller's deadline
+                delay = retryPolicy.nextDelay(delay);
+                if (delay >= DuoCallDeadline.getCurrentRemainingTime() || !retryPolicy.tryAcquireRetry()) {
+                    throw e;
+                }
+                DuoMetrics.increment(metricPrefix, "retry." + getEndpointName(request));
+                if (timing != null) {
+                    timing.incrementRetries();
+                }
+                try {
+                    Thread.sleep(delay);
+                } catch (final InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    throw e;
+                }
+                if (attemptRequest instanceof SignedRequest) {
+                    // Duo rejects a stale Date, and each attempt should carry its own signature
+                    attemptRequest = ((SignedRequest) attemptRequest).resign();
+                    DuoMetrics.recordTime(metricPrefix, "sign", ((SignedRequest) attemptRequest).getSigningTime());
+                }
+            }
+        }
+    }
+
+    /**
+     * Performs a single exchange with the Duo AuthApi.
+     * 
+     * @param request the prepared HTTP request
+     * @param decoder the decoder for the response type
+     * @param timing the login's timing, or null
+     * @param awaitsUser whether Duo holds the request open until the user responds
+     * @param <R> the DuoResponse type
+     * 
+     * @return the decoded response
      * 
      * @throws Exception request failure
      */
-    protected <T extends DuoResponseWrapper<?>> T doApiRequest(@Nonnull final HttpUriRequest request,
-            final TypeReference<T> wrapperTypeRef) throws Exception {
-        final ObjectMapper mapper = getObjectMapper();
+    private <R extends DuoAuthApiResponse> R exchange(@Nonnull final HttpUriRequest request,
+            @Nonnull final DuoResponseDecoder<R> decoder, @Nullable final DuoLoginTiming timing,
+            final boolean awaitsUser) throws Exception {
+        final DuoRateLimiter.Permit permit = acquirePermit(request, awaitsUser, true);
+        final DuoAdaptiveLimiter.Slot slot;
+        try {
+            slot = adaptiveLimiter != null && !awaitsUser ? adaptiveLimiter.acquire(request.getURI().getHost()) : null;
+        } catch (final DuoRateLimitedException e) {
+            if (permit != null) {
+                permit.close();
+            }
+            throw e;
+        }
+        final long start = System.nanoTime();
+        final DuoExchangeEvent event = beginEvent(request, timing != null);
+        exchangesInFlight.incrementAndGet();
+        boolean success = false;
+        boolean overloaded = false;
+        try {
+            // make the request, which the caller's deadline, if any, may abort
+            DuoCallDeadline.register(request);
+            final HttpResponse httpResponse = selectHttpClient(request).execute(request, createContext(event));
+            if (event != null) {
+                event.responseReceived();
+            }
+
+            try {
+                final R response = decodeResponse(httpResponse, decoder, event);
+                success = true;
+                return response;
+            } finally {
+                // drain the entity on every path so the connection is released back to the pool
+                EntityUtils.consumeQuietly(httpResponse.getEntity());
+                if (httpResponse instanceof Closeable) {
+                    ((Closeable) httpResponse).close();
+                }
+            }
+        } catch (final IOException e) {
+            // an exchange aborted by the caller's deadline says nothing about Duo
+            overloaded = isOverload(e) && !DuoCallDeadline.isCurrentExpired();
+            throw e;
+        } finally {
+            DuoCallDeadline.unregister(request);
+            if (slot != null) {
+                slot.complete(overloaded);
+            }
+            if (permit != null) {
+                permit.close();
+            }
+            exchangeCompleted(request, start, success, event);
+            if (timing != null) {
+                timing.addConnectionWaitTime(Math.max(0, event.getConnectTime()));
+                if (awaitsUser) {
+                    timing.addUserWaitTime(Math.max(0, event.getRequestTime()));
+                }
+            }
+        }
+    }
 
-        // make the request
-        final HttpResponse httpResponse = getHttpClient().execute(request);
+    /**
+     * Performs a non-blocking call to the Duo AuthApi. Upon a successful call, the future is completed with the
+     * decoded response. Cancelling the future aborts the HTTP exchange.
+     * 
+     * @param request the prepared HTTP request
+     * @param decoder the decoder for the response type
+     * @param <R> the DuoResponse type
+     * 
+     * @return the future decoded response
+     */
+    @Nonnull protected <R extends DuoAuthApiResponse> ListenableFuture<R> doApiRequestAsync(
+            @Nonnull final HttpUriRequest request, @Nonnull final DuoResponseDecoder<R> decoder) {
+        return doApiRequestAsync(request, decoder, false);
+    }
 
-        // check the HTTP response code
+    /**
+     * Performs a non-blocking call to the Duo AuthApi. Upon a successful call, the future is completed with the
+     * decoded response. Cancelling the future aborts the HTTP exchange. The calling thread never waits on the rate
+     * limiter: if the integration's budget is exhausted, the future fails at once.
+     * 
+     * @param request the prepared HTTP request
+     * @param decoder the decoder for the response type
+     * @param awaitsUser whether Duo holds the request open until the user responds
+     * @param <R> the DuoResponse type
+     * 
+     * @return the future decoded response
+     */
+    @Nonnull protected <R extends DuoAuthApiResponse> ListenableFuture<R> doApiRequestAsync(
+            @Nonnull final HttpUriRequest request, @Nonnull final DuoResponseDecoder<R> decoder,
+            final boolean awaitsUser) {
+        final DuoRateLimiter.Permit permit;
+        try {
+            permit = acquirePermit(request, awaitsUser, false);
+        } catch (final DuoRateLimitedException e) {
+            return Futures.immediateFailedFuture(e);
+        }
+        final DuoAdaptiveLimiter.Slot slot;
+        try {
+            slot = adaptiveLimiter != null && !awaitsUser ? adaptiveLimiter.tryAcquire(request.getURI().getHost())
+                    : null;
+        } catch (final DuoRateLimitedException e) {
+            if (permit != null) {
+                permit.close();
+            }
+            return Futures.immediateFailedFuture(e);
+        }
+        final SettableFuture<R> result = SettableFuture.create();
+        final long start = System.nanoTime();
+        final DuoExchangeEvent event = beginEvent(request, false);
+        exchangesInFlight.incrementAndGet();
+
+        final Future<HttpResponse> exchange;
+        try {
+            exchange = selectHttpAsyncClient().execute(request, createContext(event),
+                    new FutureCallback<HttpResponse>() {
+                        public void completed(final HttpResponse httpResponse) {
+                            if (event != null) {
+                                event.responseReceived();
+                            }
+                            try {
+                                result.set(decodeResponse(httpResponse, decoder, event));
+                            } catch (final Exception e) {
+                                result.setException(e);
+                            } finally {
+                                EntityUtils.consumeQuietly(httpResponse.getEntity());
+                            }
+                        }
+
+                        public void failed(final Exception e) {
+                            result.setException(e);
+                        }
+
+                        public void cancelled() {
+                            result.cancel(false);
+                        }
+                    });
+        } catch (final RuntimeException e) {
+            // the client refused the request, e.g. because it was shut down: no callback will release the permit
+            if (slot != null) {
+                slot.complete(false);
+            }
+            if (permit != null) {
+                permit.close();
+            }
+            exchangeCompleted(request, start, false, event);
+            return Futures.immediateFailedFuture(e);
+        }
+
+        result.addListener(new Runnable() {
+            public void run() {
+                if (result.isCancelled()) {
+                    exchange.cancel(true);
+                }
+                if (permit != null) {
+                    permit.close();
+                }
+                boolean success = false;
+                boolean overloaded = false;
+                try {
+                    Futures.getDone(result);
+                    success = true;
+                } catch (final ExecutionException e) {
+                    // recorded as an error
+                    overloaded = e.getCause() instanceof IOException && isOverload((IOException) e.getCause());
+                } catch (final CancellationException e) {
+                    // recorded as an error
+                }
+                if (slot != null) {
+                    slot.complete(overloaded);
+                }
+                exchangeCompleted(request, start, success, event);
+            }
+        }, MoreExecutors.directExecutor());
+
+        return result;
+    }
+
+    /**
+     * Check whether a failed exchange signals that Duo is overloaded: a 429 or 5xx response, or a transport timeout
+     * or reset. Other statuses, such as 401 from a bad secret key, and connections refused outright do not.
+     * 
+     * @param failure the failure
+     * 
+     * @return whether the failure signals overload
+     */
+    private static boolean isOverload(@Nonnull final IOException failure) {
+        if (failure instanceof DuoHttpStatusException) {
+            final int status = ((DuoHttpStatusException) failure).getStatusCode();
+            return status == SC_TOO_MANY_REQUESTS || status >= HttpStatus.SC_INTERNAL_SERVER_ERROR;
+        }
+        return failure instanceof SocketTimeoutException || failure instanceof ConnectTimeoutException
+                || failure instanceof NoHttpResponseException
+                || failure instanceof SocketException && !(failure instanceof ConnectException);
+    }
+
+    /**
+     * Check the HTTP status of a Duo AuthApi response and decode its JSON body. The caller is responsible for
+     * releasing the entity.
+     * 
+     * @param httpResponse the HTTP response
+     * @param decoder the decoder for the response type
+     * @param <R> the DuoResponse type
+     * 
+     * @return the decoded response
+     * 
+     * @throws Exception response failure
+     */
+    protected <R extends DuoAuthApiResponse> R decodeResponse(@Nonnull final HttpResponse httpResponse,
+            @Nonnull final DuoResponseDecoder<R> decoder) throws Exception {
+        return decodeResponse(httpResponse, decoder, null);
+    }
+
+    /**
+     * Check the HTTP status of a Duo AuthApi response and decode its JSON body, filling in the exchange event if
+     * there is one. The caller is responsible for releasing the entity.
+     * 
+     * @param httpResponse the HTTP response
+     * @param decoder the decoder for the response type
+     * @param event the exchange event, or null
+     * @param <R> the DuoResponse type
+     * 
+     * @return the decoded response
+     * 
+     * @throws Exception response failure
+     */
+    private <R extends DuoAuthApiResponse> R decodeResponse(@Nonnull final HttpResponse httpResponse,
+            @Nonnull final DuoResponseDecoder<R> decoder, @Nullable final DuoExchangeEvent event) throws Exception {
+        final HttpEntity entity = httpResponse.getEntity();
         final int httpStatusCode = httpResponse.getStatusLine().getStatusCode();
-        if (httpStatusCode == HttpStatus.SC_BAD_REQUEST) {
-            final InputStream httpContent = httpResponse.getEntity().getContent();
-            final DuoFailureResponse msg = objectMapper.readValue(httpContent, DuoFailureResponse.class);
-            throw new DuoWebException(msg.getMessage() + "(" + msg.getMessageDetail() + ")");
+        if (event != null) {
+            event.setHttpStatus(httpStatusCode);
         }
-        if (httpStatusCode != HttpStatus.SC_OK) {
-            throw new IOException("Non-ok status code (" + httpStatusCode + ") returned from Duo: "
-                    + httpResponse.getStatusLine().getReasonPhrase());
+        if (entity == null) {
+            throw new IOException("Empty response (" + httpStatusCode + ") returned from Duo");
         }
 
-        // parse the JSON response
-        final T duoResponse = mapper.readValue(httpResponse.getEntity().getContent(), wrapperTypeRef);
+        final long start = System.nanoTime();
+        final CountingInputStream counter = event != null ? new CountingInputStream(entity.getContent()) : null;
+        try (final InputStream httpContent = counter != null ? counter : entity.getContent()) {
+            final R response =
+                    decoder.decode(httpStatusCode, httpResponse.getStatusLine().getReasonPhrase(), httpContent);
+            if (event != null) {
+                event.setStat(DuoResponseDecoder.STAT_OK);
+                event.setResult(response != null ? response.getResult() : null);
+            }
+            return response;
+        } catch (final DuoWebException e) {
+            if (event != null) {
+                event.setStat(DuoResponseDecoder.STAT_FAIL);
+            }
+            throw e;
+        } finally {
+            final long elapsed = System.nanoTime() - start;
+            DuoMetrics.recordTime(metricPrefix, "parse", elapsed);
+            if (event != null) {
+                event.setParseTime(elapsed);
+                event.setBytesRead(counter.getCount());
+            }
+        }
+    }
 
-        if (duoResponse == null) {
-            throw new DuoWebException("Unable to parse JSON response");
-        } else if (!duoResponse.getStat().equals("OK")) {
-            throw new DuoWebException("Unexpected 'STAT' value JSON response: " + duoResponse.getStat());
+    /**
+     * Begin an exchange event for a request, if events are recorded or its measurements are needed.
+     * 
+     * @param request the request
+     * @param record whether to record the event even if it is not emitted
+     * 
+     * @return the event, or null
+     */
+    @Nullable private DuoExchangeEvent beginEvent(@Nonnull final HttpUriRequest request, final boolean record) {
+        final DuoExchangeEvent event =
+                DuoExchangeEvent.begin(getEndpointName(request), request.getURI().getHost(), record);
+        if (event != null && request instanceof SignedRequest) {
+            event.setSignTime(((SignedRequest) request).getSigningTime());
         }
+        return event;
+    }
 
-        return duoResponse;
+    /**
+     * Create the HTTP context carrying an exchange event to the transport.
+     * 
+     * @param event the exchange event, or null
+     * 
+     * @return the context, or null if there is no event
+     */
+    @Nullable private HttpContext createContext(@Nullable final DuoExchangeEvent event) {
+        if (event == null) {
+            return null;
+        }
+        final HttpContext context = new BasicHttpContext();
+        context.setAttribute(DuoExchangeEvent.CONTEXT_ATTRIBUTE, event);
+        return context;
+    }
+
+    /**
+     * Record the end of an HTTP exchange.
+     * 
+     * @param request the request
+     * @param start {@link System#nanoTime()} at which the exchange started
+     * @param success whether a response was decoded
+     * @param event the exchange event, or null
+     */
+    private void exchangeCompleted(@Nonnull final HttpUriRequest request, final long start, final boolean success,
+            @Nullable final DuoExchangeEvent event) {
+        exchangesInFlight.decrementAndGet();
+        DuoMetrics.recordTime(metricPrefix, System.nanoTime() - start, "http", getEndpointName(request),
+                success ? null : DuoMetrics.OUTCOME_ERROR);
+        if (event != null) {
+            event.commit();
+        }
+    }
+
+    /**
+     * Get the name of the endpoint a request is for.
+     * 
+     * @param request the request
+     * 
+     * @return the endpoint name
+     */
+    @Nonnull private String getEndpointName(@Nonnull final HttpUriRequest request) {
+        if (request instanceof SignedRequest) {
+            return ((SignedRequest) request).getEndpoint().getName();
+        }
+        final String path = request.getURI().getPath();
+        return path.substring(path.lastIndexOf('/') + 1);
     }
 
 }
@@ -0,0 +1,533 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.umd.idm.shibboleth.idp.authn.duo.impl;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+
+import com.codahale.metrics.Gauge;
+
+import edu.umd.idm.shibboleth.idp.authn.duo.DuoRateLimitedException;
+import net.shibboleth.utilities.java.support.annotation.constraint.NotEmpty;
+import net.shibboleth.utilities.java.support.component.AbstractDestructableInitializableComponent;
+import net.shibboleth.utilities.java.support.component.ComponentSupport;
+import net.shibboleth.utilities.java.support.logic.Constraint;
+
+/**
+ * Limits the concurrent exchanges with each Duo API host to a limit adjusted from the observed round-trip times and
+ * errors, using additive increase and multiplicative decrease.
+ * 
+ * <p>
+ * The limit grows by about one per round trip's worth of samples while the host answers close to its floor latency
+ * and the limit is in use, and is cut by the backoff ratio, at most once per round trip, when an exchange fails in a
+ * way that signals overload or takes more than the latency tolerance times the floor. The floor is the lowest
+ * round-trip time seen in the current probe interval, re-measured each interval so it follows lasting changes.
+ * Exchanges over the limit wait, up to a deadline and only if the queue is not full; otherwise they fail with a
+ * {@link DuoRateLimitedException}. Non-blocking exchanges use {@link #tryAcquire(String)}, which never waits.
+ * </p>
+ * 
+ * <p>
+ * Only exchanges that do not wait on the user are to be limited, as their round-trip time reflects Duo rather than
+ * the user. The current limit, exchanges in progress and queue length of each host are exposed under the metric
+ * prefix as "adaptive.&lt;host&gt;.limit", "adaptive.&lt;host&gt;.inflight" and "adaptive.&lt;host&gt;.queue", and
+ * shed exchanges are counted as "adaptive.shed".
+ * </p>
+ */
+@ThreadSafe
+public class DuoAdaptiveLimiter extends AbstractDestructableInitializableComponent {
+
+    /** Limit each host starts at. */
+    private int initialLimit;
+
+    /** Lowest limit. */
+    private int minLimit;
+
+    /** Highest limit. */
+    private int maxLimit;
+
+    /** Factor the limit is multiplied by on overload. */
+    private double backoffRatio;
+
+    /** Multiple of the floor latency above which a round trip counts as overload. */
+    private double latencyTolerance;
+
+    /** Interval after which the floor latency is re-measured, in milliseconds. */
+    private long probeInterval;
+
+    /** Maximum time an exchange waits for a slot, in milliseconds. */
+    private long maxWait;
+
+    /** Maximum exchanges per host waiting for a slot. */
+    private int maxQueue;
+
+    /** Metric name prefix. */
+    @Nullable private String metricPrefix;
+
+    /** Limits by API host. */
+    @Nonnull private final ConcurrentMap<String, HostLimit> limits;
+
+    /** Constructor. */
+    public DuoAdaptiveLimiter() {
+        initialLimit = 20;
+        minLimit = 2;
+        maxLimit = 200;
+        backoffRatio = 0.9;
+        latencyTolerance = 2.0;
+        probeInterval = TimeUnit.SECONDS.toMillis(30);
+        maxWait = TimeUnit.SECONDS.toMillis(1);
+        maxQueue = 100;
+        metricPrefix = DuoMetrics.DEFAULT_PREFIX;
+        limits = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Set the limit each host starts at.
+     * 
+     * @param limit initial limit
+     */
+    public void setInitialLimit(final int limit) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+
+        initialLimit = (int) Constraint.isGreaterThan(0, limit, "Initial limit must be greater than 0");
+    }
+
+    /**
+     * Set the lowest limit.
+     * 
+     * @param limit minimum limit
+     */
+    public void setMinLimit(final int limit) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+
+        minLimit = (int) Constraint.isGreaterThan(0, limit, "Minimum limit must be greater than 0");
+    }
+
+    /**
+     * Set the highest limit.
+     * 
+     * @param limit maximum limit
+     */
+    public void setMaxLimit(final int limit) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+
+        maxLimit = (int) Constraint.isGreaterThan(0, limit, "Maximum limit must be greater than 0");
+    }
+
+    /**
+     * Set the factor the limit is multiplied by on overload.
+     * 
+     * @param ratio backoff ratio, between 0 and 1
+     */
+    public void setBackoffRatio(final double ratio) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+
+        if (ratio <= 0 || ratio >= 1) {
+            throw new IllegalArgumentException("Backoff ratio must be between 0 and 1");
+        }
+        backoffRatio = ratio;
+    }
+
+    /**
+     * Set the multiple of the floor latency above which a round trip counts as overload.
+     * 
+     * @param tolerance latency tolerance, greater than 1
+     */
+    public void setLatencyTolerance(final double tolerance) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+
+        if (tolerance <= 1) {
+            throw new IllegalArgumentException("Latency tolerance must be greater than 1");
+        }
+        latencyTolerance = tolerance;
+    }
+
+    /**
+     * Set the interval after which the floor latency is re-measured.
+     * 
+     * @param interval interval in milliseconds
+     */
+    public void setProbeInterval(final long interval) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+
+        probeInterval = Constraint.isGreaterThan(0, interval, "Probe interval must be greater than 0");
+    }
+
+    /**
+     * Set the maximum time an exchange waits for a slot.
+     * 
+     * @param time time in milliseconds, 0 to never wait
+     */
+    public void setMaxWait(final long time) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+
+        maxWait = Constraint.isGreaterThanOrEqual(0, time, "Maximum wait cannot be negative");
+    }
+
+    /**
+     * Set the maximum exchanges per host waiting for a slot.
+     * 
+     * @param size queue size
+     */
+    public void setMaxQueue(final int size) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+
+        maxQueue = (int) Constraint.isGreaterThanOrEqual(0, size, "Maximum queue cannot be negative");
+    }
+
+    /**
+     * Set the metric name prefix, or null to record no metrics.
+     * 
+     * @param name the metric name prefix
+     */
+    public void setMetricName(@Nullable final String name) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+
+        metricPrefix = name;
+    }
+
+    /** {@inheritDoc} */
+    @Override protected void doDestroy() {
+        for (final String host : limits.keySet()) {
+            final String name = gaugeName(host);
+            DuoMetrics.remove(metricPrefix, name + ".limit");
+            DuoMetrics.remove(metricPrefix, name + ".inflight");
+            DuoMetrics.remove(metricPrefix, name + ".queue");
+        }
+        limits.clear();
+
+        super.doDestroy();
+    }
+
+    /**
+     * Get the current limit of a host.
+     * 
+     * @param host the API host
+     * 
+     * @return the limit
+     */
+    public int getLimit(@Nonnull @NotEmpty final String host) {
+        return getHostLimit(host).getLimit();
+    }
+
+    /**
+     * Acquire a slot for an exchange with a host, waiting up to the deadline. The returned slot must be completed
+     * when the exchange completes.
+     * 
+     * @param host the API host
+     * 
+     * @return the slot
+     * 
+     * @throws DuoRateLimitedException if the host is at its limit and the exchange cannot wait
+     */
+    @Nonnull public Slot acquire(@Nonnull @NotEmpty final String host) throws DuoRateLimitedException {
+        final HostLimit limit = getHostLimit(host);
+        limit.acquire(System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(maxWait));
+        return new Slot(limit);
+    }
+
+    /**
+     * Acquire a slot for an exchange with a host if one is free, never blocking the caller. The returned slot must be
+     * completed when the exchange completes.
+     * 
+     * @param host the API host
+     * 
+     * @return the slot
+     * 
+     * @throws DuoRateLimitedException if the host is at its limit
+     */
+    @Nonnull public Slot tryAcquire(@Nonnull @NotEmpty final String host) throws DuoRateLimitedException {
+        final HostLimit limit = getHostLimit(host);
+        limit.acquire(System.nanoTime());
+        return new Slot(limit);
+    }
+
+    /**
+     * Get the limit of a host, creating it and its gauges on first use.
+     * 
+     * @param host the API host
+     * 
+     * @return the limit
+     */
+    @Nonnull private HostLimit getHostLimit(@Nonnull final String host) {
+        HostLimit limit = limits.get(host);
+        if (limit == null) {
+            final HostLimit created = new HostLimit(host);
+            limit = limits.putIfAbsent(host, created);
+            if (limit == null) {
+                limit = created;
+                registerGauges(created);
+            }
+        }
+        return limit;
+    }
+
+    /**
+     * Register the gauges of a host.
+     * 
+     * @param limit the host's limit
+     */
+    private void registerGauges(@Nonnull final HostLimit limit) {
+        final String name = gaugeName(limit.host);
+        DuoMetrics.registerGauge(metricPrefix, name + ".limit", new Gauge<Integer>() {
+            public Integer getValue() {
+                return limit.getLimit();
+            }
+        });
+        DuoMetrics.registerGauge(metricPrefix, name + ".inflight", new Gauge<Integer>() {
+            public Integer getValue() {
+                return limit.getInFlight();
+            }
+        });
+        DuoMetrics.registerGauge(metricPrefix, name + ".queue", new Gauge<Integer>() {
+            public Integer getValue() {
+                return limit.getQueued();
+            }
+        });
+    }
+
+    /**
+     * Get the metric name of a host.
+     * 
+     * @param host the API host
+     * 
+     * @return the metric name, relative to the prefix
+     */
+    @Nonnull private static String gaugeName(@Nonnull final String host) {
+        return "adaptive." + host.replace('.', '_');
+    }
+
+    /** A slot taken for one exchange. */
+    public static final class Slot {
+
+        /** The host's limit. */
+        @Nonnull private final HostLimit limit;
+
+        /** Start of the exchange, in {@link System#nanoTime()} terms. */
+        private final long start;
+
+        /** Whether the slot was completed. */
+        private boolean completed;
+
+        /**
+         * Constructor.
+         * 
+         * @param hostLimit the host's limit
+         */
+        private Slot(@Nonnull final HostLimit hostLimit) {
+            limit = hostLimit;
+            start = System.nanoTime();
+        }
+
+        /**
+         * Release the slot and feed the exchange's outcome to the limit.
+         * 
+         * @param overloaded whether the exchange failed in a way that signals overload
+         */
+        public void complete(final boolean overloaded) {
+            if (!completed) {
+                completed = true;
+                limit.release(System.nanoTime() - start, overloaded);
+            }
+        }
+    }
+
+    /** The limit and measurements of one host. */
+    private final class HostLimit {
+
+        /** The API host. */
+        @Nonnull private final String host;
+
+        /** Guards the state. */
+        @Nonnull private final ReentrantLock lock;
+
+        /** Signaled when a slot is released or the limit grows. */
+        @Nonnull private final Condition available;
+
+        /** Current limit. */
+        @GuardedBy("lock") private double limit;
+
+        /** Exchanges in progress. */
+        @GuardedBy("lock") private int inFlight;
+
+        /** Exchanges waiting for a slot. */
+        @GuardedBy("lock") private int queued;
+
+        /** Floor round-trip time, in nanoseconds. */
+        @GuardedBy("lock") private long floor;
+
+        /** Lowest round-trip time in the current probe interval, in nanoseconds. */
+        @GuardedBy("lock") private long intervalFloor;
+
+        /** End of the current probe interval, in {@link System#nanoTime()} terms. */
+        @GuardedBy("lock") private long intervalEnd;
+
+        /** Time of the last decrease, in {@link System#nanoTime()} terms. */
+        @GuardedBy("lock") private long lastDecrease;
+
+        /**
+         * Constructor.
+         * 
+         * @param apiHost the API host
+         */
+        private HostLimit(@Nonnull final String apiHost) {
+            host = apiHost;
+            lock = new ReentrantLock();
+            available = lock.newCondition();
+            limit = Math.max(minLimit, Math.min(maxLimit, initialLimit));
+            floor = Long.MAX_VALUE;
+            intervalFloor = Long.MAX_VALUE;
+            intervalEnd = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(probeInterval);
+            lastDecrease = System.nanoTime();
+        }
+
+        /**
+         * Get the current limit.
+         * 
+         * @return the limit
+         */
+        private int getLimit() {
+            lock.lock();
+            try {
+                return (int) limit;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Get the exchanges in progress.
+         * 
+         * @return exchanges in progress
+         */
+        private int getInFlight() {
+            lock.lock();
+            try {
+                return inFlight;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Get the exchanges waiting for a slot.
+         * 
+         * @return waiting exchanges
+         */
+        private int getQueued() {
+            lock.lock();
+            try {
+                return queued;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Take a slot, waiting for one up to the deadline.
+         * 
+         * @param deadline deadline in {@link System#nanoTime()} terms
+         * 
+         * @throws DuoRateLimitedException if no slot is available in time
+         */
+        private void acquire(final long deadline) throws DuoRateLimitedException {
+            lock.lock();
+            try {
+                if (inFlight >= (int) limit) {
+                    if (queued >= maxQueue || deadline - System.nanoTime() <= 0) {
+                        throw shed();
+                    }
+                    queued++;
+                    try {
+                        while (inFlight >= (int) limit) {
+                            final long remaining = deadline - System.nanoTime();
+                            if (remaining <= 0) {
+                                throw shed();
+                            }
+                            available.awaitNanos(remaining);
+                        }
+                    } catch (final InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new DuoRateLimitedException("Interrupted waiting to call Duo host " + host);
+                    } finally {
+                        queued--;
+                    }
+                }
+                inFlight++;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Release a slot and adjust the limit from the exchange's outcome.
+         * 
+         * @param rtt round-trip time in nanoseconds
+         * @param overloaded whether the exchange failed in a way that signals overload
+         */
+        private void release(final long rtt, final boolean overloaded) {
+            lock.lock();
+            try {
+                final int utilized = inFlight;
+                inFlight--;
+
+                final long now = System.nanoTime();
+                if (now - intervalEnd >= 0) {
+                    // re-measure the floor
+                    floor = intervalFloor;
+                    intervalFloor = Long.MAX_VALUE;
+                    intervalEnd = now + TimeUnit.MILLISECONDS.toNanos(probeInterval);
+                }
+                if (!overloaded) {
+                    intervalFloor = Math.min(intervalFloor, rtt);
+                    floor = Math.min(floor, rtt);
+                }
+
+                if (overloaded || rtt > floor * latencyTolerance) {
+                    // decrease at most once per round trip
+                    if (now - lastDecrease > rtt) {
+                        limit = Math.max(minLimit, limit * backoffRatio);
+                        lastDecrease = now;
+                    }
+                } else if (utilized >= limit / 2) {
+                    limit = Math.min(maxLimit, limit + 1 / limit);
+                }
+                available.signal();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Count a shed exchange and build its exception.
+         * 
+         * @return the exception
+         */
+        @Nonnull private DuoRateLimitedException shed() {
+            DuoMetrics.increment(metricPrefix, "adaptive.shed");
+            return new DuoRateLimitedException("Duo concurrency limit reached for host " + host);
+        }
+    }
+
+}
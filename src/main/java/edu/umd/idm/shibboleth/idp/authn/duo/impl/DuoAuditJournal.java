@@ -0,0 +1,631 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.umd.idm.shibboleth.idp.authn.duo.impl;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.joda.time.format.DateTimeFormatter;
+import org.joda.time.format.ISODateTimeFormat;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import edu.umd.idm.shibboleth.idp.authn.duo.DuoLoginTiming;
+import net.shibboleth.utilities.java.support.annotation.constraint.NotEmpty;
+import net.shibboleth.utilities.java.support.component.AbstractDestructableInitializableComponent;
+import net.shibboleth.utilities.java.support.component.ComponentInitializationException;
+import net.shibboleth.utilities.java.support.component.ComponentSupport;
+import net.shibboleth.utilities.java.support.logic.Constraint;
+import net.shibboleth.utilities.java.support.primitive.StringSupport;
+
+/**
+ * An asynchronous journal of Duo login outcomes.
+ * 
+ * <p>
+ * Records are copied into the preallocated slots of a lock-free ring buffer, so recording an outcome never takes a
+ * lock or does I/O. A single background thread drains the buffer in batches and appends the records as tab-separated
+ * lines to a file, which is rolled over once it exceeds a maximum size. When the buffer is full, records are either
+ * dropped and counted ({@link OverflowPolicy#DROP}) or the caller waits for space ({@link OverflowPolicy#BLOCK}), up
+ * to a maximum time after which the record is dropped after all. Records are also dropped rather than waited on once
+ * the writer has stopped. Records still buffered are written out when the journal is destroyed.
+ * </p>
+ * 
+ * <p>
+ * A failed write does not stop the writer: if the file cannot be rolled over, the writer keeps appending to the
+ * current file, and if it cannot be opened, the writer retries at each flush interval, leaving records in the buffer.
+ * </p>
+ * 
+ * <p>
+ * Each line holds the time, outcome, username, API host, factor, detail, and the preauth, auth and user wait times in
+ * milliseconds (or -1).
+ * </p>
+ */
+@ThreadSafe
+public class DuoAuditJournal extends AbstractDestructableInitializableComponent {
+
+    /** What to do with a record when the buffer is full. */
+    public enum OverflowPolicy {
+
+        /** Drop the record and count it. */
+        DROP,
+
+        /** Wait for space in the buffer. */
+        BLOCK
+    }
+
+    /** Time format of the records. */
+    @Nonnull private static final DateTimeFormatter TIME_FORMAT = ISODateTimeFormat.dateTime();
+
+    /** Time a blocked caller waits between attempts, in nanoseconds. */
+    private static final long BLOCK_WAIT = TimeUnit.MICROSECONDS.toNanos(100);
+
+    /** Class logger. */
+    @Nonnull private final Logger log = LoggerFactory.getLogger(DuoAuditJournal.class);
+
+    /** Journal file. */
+    @Nullable private Path file;
+
+    /** Number of slots in the buffer, a power of two. */
+    private int capacity;
+
+    /** Maximum number of records written between flushes. */
+    private int batchSize;
+
+    /** Time the writer waits for records when the buffer is empty, in milliseconds. */
+    private long flushInterval;
+
+    /** Size in bytes above which the file is rolled over. */
+    private long maxFileSize;
+
+    /** Number of rolled-over files kept. */
+    private int maxBackups;
+
+    /** Overflow policy. */
+    @Nonnull private OverflowPolicy overflowPolicy;
+
+    /** Maximum time a caller waits for space in the buffer under {@link OverflowPolicy#BLOCK}, in milliseconds. */
+    private long maxBlockTime;
+
+    /** Maximum time to wait for the writer to drain the buffer on shutdown, in milliseconds. */
+    private long shutdownTimeout;
+
+    /** Metric name prefix. */
+    @Nullable private String metricPrefix;
+
+    /** Slots. */
+    @Nullable private Slot[] slots;
+
+    /** Per-slot sequence numbers, coordinating producers and the writer. */
+    @Nullable private AtomicLongArray sequences;
+
+    /** Next position to be claimed by a producer. */
+    @Nonnull private final AtomicLong tail;
+
+    /** Next position to be read by the writer; only accessed by the writer thread. */
+    private long head;
+
+    /** Number of dropped records. */
+    @Nonnull private final AtomicLong dropped;
+
+    /** Number of dropped records already reported. */
+    private long droppedReported;
+
+    /** Whether the writer should keep running. */
+    private volatile boolean running;
+
+    /** The writer thread. */
+    @Nullable private volatile Thread writerThread;
+
+    /** Whether the last attempt to write the file failed; only accessed by the writer thread. */
+    private boolean failing;
+
+    /** The open journal file; only accessed by the writer thread. */
+    @Nullable private Writer out;
+
+    /** Approximate size of the open file; only accessed by the writer thread. */
+    private long fileSize;
+
+    /** Constructor. */
+    public DuoAuditJournal() {
+        capacity = 8192;
+        batchSize = 256;
+        flushInterval = 200;
+        maxFileSize = 10 * 1024 * 1024;
+        maxBackups = 5;
+        overflowPolicy = OverflowPolicy.DROP;
+        maxBlockTime = TimeUnit.SECONDS.toMillis(1);
+        shutdownTimeout = TimeUnit.SECONDS.toMillis(5);
+        metricPrefix = DuoMetrics.DEFAULT_PREFIX;
+        tail = new AtomicLong();
+        dropped = new AtomicLong();
+    }
+
+    /**
+     * Set the journal file.
+     * 
+     * @param path path of the journal file
+     */
+    public void setFile(@Nonnull @NotEmpty final String path) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+
+        file = Paths.get(Constraint.isNotNull(StringSupport.trimOrNull(path), "Journal file cannot be null or empty"));
+    }
+
+    /**
+     * Set the number of records the buffer holds. It is rounded up to a power of two.
+     * 
+     * @param size number of records
+     */
+    public void setCapacity(final int size) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+
+        Constraint.isGreaterThan(0, size, "Capacity must be greater than 0");
+        capacity = Integer.highestOneBit(size) == size ? size : Integer.highestOneBit(size) << 1;
+    }
+
+    /**
+     * Set the maximum number of records written between flushes.
+     * 
+     * @param size number of records
+     */
+    public void setBatchSize(final int size) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+
+        batchSize = (int) Constraint.isGreaterThan(0, size, "Batch size must be greater than 0");
+    }
+
+    /**
+     * Set the time the writer waits for records when the buffer is empty.
+     * 
+     * @param interval interval in milliseconds
+     */
+    public void setFlushInterval(final long interval) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+
+        flushInterval = Constraint.isGreaterThan(0, interval, "Flush interval must be greater than 0");
+    }
+
+    /**
+     * Set the size above which the file is rolled over.
+     * 
+     * @param size size in bytes
+     */
+    public void setMaxFileSize(final long size) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+
+        maxFileSize = Constraint.isGreaterThan(0, size, "Maximum file size must be greater than 0");
+    }
+
+    /**
+     * Set the number of rolled-over files kept.
+     * 
+     * @param count number of files
+     */
+    public void setMaxBackups(final int count) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+
+        maxBackups = (int) Constraint.isGreaterThanOrEqual(0, count, "Maximum backups cannot be negative");
+    }
+
+    /**
+     * Set what to do with a record when the buffer is full.
+     * 
+     * @param policy the overflow policy
+     */
+    public void setOverflowPolicy(@Nonnull final OverflowPolicy policy) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+
+        overflowPolicy = Constraint.isNotNull(policy, "Overflow policy cannot be null");
+    }
+
+    /**
+     * Set the maximum time a caller waits for space in the buffer under {@link OverflowPolicy#BLOCK} before the record
+     * is dropped.
+     * 
+     * @param timeout timeout in milliseconds
+     */
+    public void setMaxBlockTime(final long timeout) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+
+        maxBlockTime = Constraint.isGreaterThanOrEqual(0, timeout, "Maximum block time cannot be negative");
+    }
+
+    /**
+     * Set the maximum time to wait for buffered records to be written on shutdown.
+     * 
+     * @param timeout timeout in milliseconds
+     */
+    public void setShutdownTimeout(final long timeout) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+
+        shutdownTimeout = Constraint.isGreaterThanOrEqual(0, timeout, "Shutdown timeout cannot be negative");
+    }
+
+    /**
+     * Set the metric name prefix, or null to record no metrics.
+     * 
+     * @param name the metric name prefix
+     */
+    public void setMetricName(@Nullable final String name) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+
+        metricPrefix = name;
+    }
+
+    /**
+     * Get the number of records dropped because the buffer was full or the writer had stopped.
+     * 
+     * @return number of dropped records
+     */
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    /** {@inheritDoc} */
+    @Override protected void doInitialize() throws ComponentInitializationException {
+        super.doInitialize();
+
+        if (file == null) {
+            throw new ComponentInitializationException("Journal file cannot be null");
+        }
+
+        slots = new Slot[capacity];
+        sequences = new AtomicLongArray(capacity);
+        for (int i = 0; i < capacity; i++) {
+            slots[i] = new Slot();
+            sequences.set(i, i);
+        }
+
+        try {
+            openFile();
+        } catch (final IOException e) {
+            throw new ComponentInitializationException("Unable to open Duo audit journal " + file, e);
+        }
+
+        running = true;
+        writerThread = new Thread(new Runnable() {
+            public void run() {
+                writeLoop();
+            }
+        }, "duo-audit-journal");
+        writerThread.setDaemon(true);
+        writerThread.start();
+    }
+
+    /** {@inheritDoc} */
+    @Override protected void doDestroy() {
+        running = false;
+        final Thread writer = writerThread;
+        if (writer != null) {
+            LockSupport.unpark(writer);
+            try {
+                writer.join(shutdownTimeout);
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            if (writer.isAlive()) {
+                log.warn("Duo audit journal writer did not finish within {} ms", shutdownTimeout);
+            }
+            writerThread = null;
+        }
+
+        super.doDestroy();
+    }
+
+    /**
+     * Record a login outcome.
+     * 
+     * @param outcome the outcome
+     * @param username the username
+     * @param apiHost the Duo API host
+     * @param factor the factor
+     * @param detail detail such as the Duo status message
+     * @param timing the login's timing
+     * 
+     * @return true if the record was buffered, false if it was dropped
+     */
+    public boolean record(@Nonnull @NotEmpty final String outcome, @Nullable final String username,
+            @Nullable final String apiHost, @Nullable final String factor, @Nullable final String detail,
+            @Nullable final DuoLoginTiming timing) {
+        final long time = System.currentTimeMillis();
+        final int mask = capacity - 1;
+
+        long blockedSince = 0;
+        long pos = tail.get();
+        for (;;) {
+            final long sequence = sequences.get((int) (pos & mask));
+            final long diff = sequence - pos;
+            if (diff == 0) {
+                if (tail.compareAndSet(pos, pos + 1)) {
+                    break;
+                }
+                pos = tail.get();
+            } else if (diff < 0) {
+                // full
+                final long now = System.nanoTime();
+                if (blockedSince == 0) {
+                    blockedSince = now;
+                }
+                if (overflowPolicy == OverflowPolicy.DROP || !isWriterRunning()
+                        || now - blockedSince >= TimeUnit.MILLISECONDS.toNanos(maxBlockTime)) {
+                    dropped.incrementAndGet();
+                    DuoMetrics.increment(metricPrefix, "audit.dropped");
+                    return false;
+                }
+                LockSupport.parkNanos(BLOCK_WAIT);
+                pos = tail.get();
+            } else {
+                pos = tail.get();
+            }
+        }
+
+        final int index = (int) (pos & mask);
+        final Slot slot = slots[index];
+        slot.time = time;
+        slot.outcome = outcome;
+        slot.username = username;
+        slot.apiHost = apiHost;
+        slot.factor = factor;
+        slot.detail = detail;
+        slot.preauthMillis = timing != null ? timing.getPreauthMillis() : -1;
+        slot.authMillis = timing != null ? timing.getAuthMillis() : -1;
+        slot.userWaitMillis = timing != null ? timing.getUserWaitMillis() : -1;
+        // publish the slot to the writer
+        sequences.lazySet(index, pos + 1);
+        return true;
+    }
+
+    /**
+     * Check whether the writer is running and so will make space in the buffer.
+     * 
+     * @return true if the writer is running
+     */
+    private boolean isWriterRunning() {
+        final Thread writer = writerThread;
+        return running && writer != null && writer.isAlive();
+    }
+
+    /** Drain the buffer until the journal is destroyed and the buffer is empty. */
+    private void writeLoop() {
+        final StringBuilder line = new StringBuilder(256);
+        for (;;) {
+            final boolean stopping = !running;
+            int written;
+            try {
+                written = writeBatch(line);
+            } catch (final RuntimeException e) {
+                log.error("Unexpected error writing Duo audit journal {}", file, e);
+                written = 0;
+            }
+            if (written == 0) {
+                if (stopping) {
+                    break;
+                }
+                LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(flushInterval));
+            }
+        }
+        closeFile();
+    }
+
+    /**
+     * Write up to a batch of records and flush them.
+     * 
+     * @param line reusable line buffer
+     * 
+     * @return number of records written
+     */
+    private int writeBatch(@Nonnull final StringBuilder line) {
+        final int mask = capacity - 1;
+        int count = 0;
+        try {
+            if (out == null) {
+                // the file could not be reopened earlier; leave the records buffered until it can
+                openFile();
+            }
+            while (count < batchSize) {
+                final int index = (int) (head & mask);
+                if (sequences.get(index) != head + 1) {
+                    break;
+                }
+                formatSlot(slots[index], line);
+                // hand the slot back to the producers
+                sequences.lazySet(index, head + capacity);
+                head++;
+                count++;
+                out.write(line.toString());
+                fileSize += line.length();
+            }
+
+            final long droppedNow = dropped.get();
+            if (droppedNow != droppedReported) {
+                log.warn("Duo audit journal dropped {} records because its buffer was full",
+                        droppedNow - droppedReported);
+                droppedReported = droppedNow;
+            }
+
+            if (count > 0) {
+                out.flush();
+                if (fileSize >= maxFileSize) {
+                    rollOver();
+                }
+            }
+            if (failing) {
+                log.info("Duo audit journal {} is being written again", file);
+                failing = false;
+            }
+        } catch (final IOException e) {
+            if (!failing) {
+                log.error("Unable to write Duo audit journal {}", file, e);
+                failing = true;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Format a slot as a line.
+     * 
+     * @param slot the slot
+     * @param line the line buffer
+     */
+    private void formatSlot(@Nonnull final Slot slot, @Nonnull final StringBuilder line) {
+        line.setLength(0);
+        TIME_FORMAT.printTo(line, slot.time);
+        appendField(line, slot.outcome);
+        appendField(line, slot.username);
+        appendField(line, slot.apiHost);
+        appendField(line, slot.factor);
+        appendField(line, slot.detail);
+        line.append('\t').append(slot.preauthMillis)
+                .append('\t').append(slot.authMillis)
+                .append('\t').append(slot.userWaitMillis)
+                .append('\n');
+        // release the references held by the slot
+        slot.outcome = null;
+        slot.username = null;
+        slot.apiHost = null;
+        slot.factor = null;
+        slot.detail = null;
+    }
+
+    /**
+     * Append a tab and a field, replacing characters that would break the line layout.
+     * 
+     * @param line the line buffer
+     * @param value the field value
+     */
+    private static void appendField(@Nonnull final StringBuilder line, @Nullable final String value) {
+        line.append('\t');
+        if (value == null) {
+            line.append('-');
+            return;
+        }
+        for (int i = 0; i < value.length(); i++) {
+            final char c = value.charAt(i);
+            line.append(c == '\t' || c == '\n' || c == '\r' ? ' ' : c);
+        }
+    }
+
+    /**
+     * Open the journal file for appending.
+     * 
+     * @throws IOException if the file cannot be opened
+     */
+    private void openFile() throws IOException {
+        if (file.getParent() != null) {
+            Files.createDirectories(file.getParent());
+        }
+        out = Files.newBufferedWriter(file, StandardCharsets.UTF_8, StandardOpenOption.CREATE,
+                StandardOpenOption.APPEND);
+        fileSize = Files.size(file);
+    }
+
+    /** Close the journal file. */
+    private void closeFile() {
+        if (out != null) {
+            try {
+                out.close();
+            } catch (final IOException e) {
+                log.warn("Error closing Duo audit journal {}", file, e);
+            }
+            out = null;
+        }
+    }
+
+    /**
+     * Roll the journal file over, shifting the backups. If that fails, the current file is reopened and appended to.
+     * 
+     * @throws IOException if no file can be reopened
+     */
+    private void rollOver() throws IOException {
+        closeFile();
+        try {
+            if (maxBackups == 0) {
+                Files.delete(file);
+            } else {
+                Files.deleteIfExists(backup(maxBackups));
+                for (int i = maxBackups - 1; i >= 1; i--) {
+                    final Path backup = backup(i);
+                    if (Files.exists(backup)) {
+                        Files.move(backup, backup(i + 1), StandardCopyOption.REPLACE_EXISTING);
+                    }
+                }
+                Files.move(file, backup(1), StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (final IOException e) {
+            log.warn("Unable to roll over Duo audit journal {}, appending to it instead", file, e);
+        }
+        openFile();
+    }
+
+    /**
+     * Get the path of a rolled-over file.
+     * 
+     * @param generation the backup generation, starting at 1
+     * 
+     * @return the path
+     */
+    @Nonnull private Path backup(final int generation) {
+        return file.resolveSibling(file.getFileName() + "." + generation);
+    }
+
+    /** A fixed-layout record. */
+    private static final class Slot {
+
+        /** Time of the record. */
+        private long time;
+
+        /** Outcome. */
+        @Nullable private String outcome;
+
+        /** Username. */
+        @Nullable private String username;
+
+        /** Duo API host. */
+        @Nullable private String apiHost;
+
+        /** Factor. */
+        @Nullable private String factor;
+
+        /** Detail. */
+        @Nullable private String detail;
+
+        /** Preauth time in milliseconds. */
+        private long preauthMillis;
+
+        /** Auth time in milliseconds. */
+        private long authMillis;
+
+        /** User wait time in milliseconds. */
+        private long userWaitMillis;
+    }
+
+}
@@ -14,36 +14,135 @@
  * See the License for the specific language governing permissions and
  * limitations under the License.
  */
-
 package edu.umd.idm.shibboleth.idp.authn.duo.impl;
 
-import java.net.URI;
 import java.security.GeneralSecurityException;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
 
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import com.google.common.util.concurrent.AsyncFunction;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
 
 import org.apache.http.client.methods.HttpUriRequest;
-import org.apache.http.client.methods.RequestBuilder;
-import org.apache.http.client.utils.URIBuilder;
 
-import com.fasterxml.jackson.core.type.TypeReference;
+import com.duosecurity.duoweb.DuoWebException;
 
 import edu.umd.idm.shibboleth.idp.authn.context.DuoAuthenticationContext;
 import edu.umd.idm.shibboleth.idp.authn.duo.DuoAuthApi;
+import edu.umd.idm.shibboleth.idp.authn.duo.DuoLoginTiming;
+import edu.umd.idm.shibboleth.idp.authn.duo.DuoRateLimitedException;
+import edu.umd.idm.shibboleth.idp.authn.duo.impl.DuoRequestEncoder.Endpoint;
 import net.shibboleth.idp.authn.duo.DuoIntegration;
+import net.shibboleth.utilities.java.support.annotation.constraint.NotEmpty;
+import net.shibboleth.utilities.java.support.component.ComponentInitializationException;
+import net.shibboleth.utilities.java.support.component.ComponentSupport;
+import net.shibboleth.utilities.java.support.logic.Constraint;
 
 /**
  * Implementation of the the Duo AuthApi /v2/auth endpoint.
+ * 
+ * <p>
+ * When asynchronous mode is enabled, out-of-band factors are started with <code>async=1</code> and the resulting
+ * transaction is completed by a shared {@link DuoAuthStatusPoller} rather than by holding the /auth call open.
+ * </p>
+ * 
+ * <p>
+ * If a {@link DuoPasscodeReplayCache} is set, a passcode submitted again within its window gets the response to the
+ * first submission without another /auth call.
+ * </p>
  */
 public class DuoAuthAuthenticator extends AbstractDuoAuthenticator {
 
-    /** a TypeReference for the repsonse generated by the endpoint. */
-    @Nonnull private final TypeReference<DuoResponseWrapper<DuoAuthResponse>> wrapperTypeRef;
+    /** a decoder for the repsonse generated by the endpoint. */
+    @Nullable private DuoResponseDecoder<DuoAuthResponse> decoder;
+
+    /** Whether out-of-band factors are started with <code>async=1</code>. */
+    private boolean asyncAuthentication;
+
+    /** Poller completing asynchronous transactions. */
+    @Nullable private volatile DuoAuthStatusPoller authStatusPoller;
+
+    /** Whether the poller was created (and so must be destroyed) by this component. */
+    private boolean ownsPoller;
+
+    /** Optional cache of responses to passcodes. */
+    @Nullable private DuoPasscodeReplayCache passcodeReplayCache;
 
     /** Constructor. */
     public DuoAuthAuthenticator() {
         super();
-        wrapperTypeRef = new TypeReference<DuoResponseWrapper<DuoAuthResponse>>() {};
+    }
+
+    /**
+     * Get whether out-of-band factors are started with <code>async=1</code>.
+     * 
+     * @return whether asynchronous mode is enabled
+     */
+    public boolean isAsyncAuthentication() {
+        return asyncAuthentication;
+    }
+
+    /**
+     * Set whether out-of-band factors are started with <code>async=1</code>.
+     * 
+     * @param flag whether asynchronous mode is enabled
+     */
+    public void setAsyncAuthentication(final boolean flag) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+
+        asyncAuthentication = flag;
+    }
+
+    /**
+     * Set the poller completing asynchronous transactions. If not set, one is created when asynchronous mode is
+     * enabled, or when a two-phase transaction is first checked on.
+     * 
+     * @param poller the poller
+     */
+    public void setAuthStatusPoller(@Nonnull final DuoAuthStatusPoller poller) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+
+        authStatusPoller = Constraint.isNotNull(poller, "Auth status poller cannot be null");
+    }
+
+    /**
+     * Set the cache remembering the responses to passcodes, so that a resubmitted passcode gets the original result.
+     * 
+     * @param cache the passcode replay cache
+     */
+    public void setPasscodeReplayCache(@Nullable final DuoPasscodeReplayCache cache) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+
+        passcodeReplayCache = cache;
+    }
+
+    /** {@inheritDoc} */
+    @Override protected void doInitialize() throws ComponentInitializationException {
+        super.doInitialize();
+
+        decoder = new DuoResponseDecoder<>(getObjectMapper(), DuoAuthResponse.class);
+
+        if (asyncAuthentication && authStatusPoller == null) {
+            authStatusPoller = new DuoAuthStatusPoller();
+            authStatusPoller.setAuthenticator(this);
+            authStatusPoller.initialize();
+            ownsPoller = true;
+        }
+    }
+
+    /** {@inheritDoc} */
+    @Override protected void doDestroy() {
+        synchronized (this) {
+            if (ownsPoller) {
+                authStatusPoller.destroy();
+            }
+        }
+
+        super.doDestroy();
     }
 
     /**
@@ -58,30 +157,303 @@ public class DuoAuthAuthenticator extends AbstractDuoAuthenticator {
      */
     @Override public DuoAuthResponse authenticate(@Nonnull final DuoAuthenticationContext duoContext,
             @Nonnull final DuoIntegration duoIntegration) throws GeneralSecurityException {
+        if (isAsync(duoContext)) {
+            final long start = System.nanoTime();
+            final ListenableFuture<DuoAuthResponse> response = authenticateAsync(duoContext, duoIntegration);
+            DuoCallDeadline.register(response);
+            try {
+                return response.get();
+            } catch (final InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new GeneralSecurityException("Interrupted waiting for Duo AuthAPI auth request");
+            } catch (final ExecutionException ex) {
+                if (ex.getCause() instanceof DuoRateLimitedException) {
+                    throw (DuoRateLimitedException) ex.getCause();
+                }
+                throw new GeneralSecurityException(
+                        "Unable to perform Duo AuthAPI auth request: " + ex.getCause().getMessage());
+            } catch (final CancellationException ex) {
+                throw new GeneralSecurityException("Duo AuthAPI auth request was cancelled");
+            } finally {
+                DuoCallDeadline.unregister(response);
+                // the transaction was being polled while the user responded
+                if (duoContext.getTiming() != null) {
+                    duoContext.getTiming().addUserWaitTime(System.nanoTime() - start);
+                }
+            }
+        }
+
+        final String passcode = duoContext.getPasscode();
+        final boolean replayable = passcodeReplayCache != null && passcode != null;
+        if (replayable) {
+            final DuoAuthResponse replayed = passcodeReplayCache.get(duoIntegration, duoContext.getUsername(),
+                    duoContext.getFactor(), passcode);
+            if (replayed != null) {
+                return replayed;
+            }
+        }
 
         try {
-            // prepare the request
-            final URI uri = new URIBuilder().setScheme("https").setHost(duoIntegration.getAPIHost())
-                    .setPath("/auth/v2/auth").build();
-            final RequestBuilder rb =
-                    RequestBuilder.post().setUri(uri).addParameter("username", duoContext.getUsername());
-            if (duoContext.getFactor() != null) {
-                rb.addParameter(DuoAuthApi.DUO_FACTOR, duoContext.getFactor());
+            // never shared with a concurrent request: the result authenticates only this caller
+            final DuoAuthResponse response = doApiRequest(buildRequest(duoContext, duoIntegration), decoder,
+                    duoContext.getTiming(), !DuoAuthApi.DUO_FACTOR_PASSCODE.equals(duoContext.getFactor()));
+            if (replayable) {
+                passcodeReplayCache.put(duoIntegration, duoContext.getUsername(), duoContext.getFactor(), passcode,
+                        response);
             }
-            if (duoContext.getDevice() != null) {
-                rb.addParameter(DuoAuthApi.DUO_DEVICE, duoContext.getDevice());
+            return response;
+        } catch (final DuoRateLimitedException ex) {
+            throw ex;
+        } catch (final Exception ex) {
+            throw new GeneralSecurityException("Unable to perform Duo AuthAPI auth request: " + ex.getMessage());
+        }
+    }
+
+    /**
+     * Start an out-of-band authentication via the Duo AuthApi /auth endpoint with <code>async=1</code>, regardless of
+     * whether asynchronous mode is enabled, and return the transaction id without waiting on the user.
+     * 
+     * @param duoContext Duo authentication context to use
+     * @param duoIntegration Duo integration to use
+     * 
+     * @return the Duo transaction id
+     * 
+     * @throws DuoRateLimitedException if the poller cannot take another transaction, before anything is sent
+     * @throws GeneralSecurityException
+     */
+    @Nonnull public String startAuthentication(@Nonnull final DuoAuthenticationContext duoContext,
+            @Nonnull final DuoIntegration duoIntegration) throws GeneralSecurityException {
+        try {
+            if (!getOrCreatePoller().isAcceptingTransactions()) {
+                // refuse before a push is sent that could not be tracked
+                throw new DuoRateLimitedException("Too many pending Duo transactions");
             }
-            if (duoContext.getPasscode() != null) {
-                rb.addParameter(DuoAuthApi.DUO_PASSCODE, duoContext.getPasscode());
+            final DuoAuthResponse response = doApiRequest(buildRequest(duoContext, duoIntegration, true), decoder,
+                    duoContext.getTiming(), false);
+            if (response == null || response.getTxid() == null) {
+                throw new DuoWebException("missing transaction id in asynchronous auth response");
             }
-            DuoSupport.signRequest(rb, duoIntegration);
-            final HttpUriRequest request = rb.build();
-
-            // do it
-            return doApiRequest(request, wrapperTypeRef).getResponse();
+            return response.getTxid();
+        } catch (final DuoRateLimitedException ex) {
+            throw ex;
         } catch (final Exception ex) {
             throw new GeneralSecurityException("Unable to perform Duo AuthAPI auth request: " + ex.getMessage());
         }
     }
 
+    /**
+     * Check the status of an asynchronous transaction via the Duo AuthApi /auth_status endpoint.
+     * 
+     * @param txid the transaction identifier
+     * @param duoIntegration Duo integration the transaction was started with
+     * 
+     * @return a {@link DuoAuthResponse}
+     * 
+     * @throws GeneralSecurityException
+     */
+    public DuoAuthResponse authStatus(@Nonnull @NotEmpty final String txid,
+            @Nonnull final DuoIntegration duoIntegration) throws GeneralSecurityException {
+        return authStatus(txid, duoIntegration, null);
+    }
+
+    /**
+     * Check the status of an asynchronous transaction via the Duo AuthApi /auth_status endpoint, adding the time
+     * spent to a login's timing.
+     * 
+     * @param txid the transaction identifier
+     * @param duoIntegration Duo integration the transaction was started with
+     * @param timing the login's timing, or null
+     * 
+     * @return a {@link DuoAuthResponse}
+     * 
+     * @throws GeneralSecurityException
+     */
+    public DuoAuthResponse authStatus(@Nonnull @NotEmpty final String txid,
+            @Nonnull final DuoIntegration duoIntegration, @Nullable final DuoLoginTiming timing)
+            throws GeneralSecurityException {
+        try {
+            return doApiRequest(buildStatusRequest(txid, duoIntegration), decoder, timing, true);
+        } catch (final DuoRateLimitedException ex) {
+            throw ex;
+        } catch (final Exception ex) {
+            throw new GeneralSecurityException(
+                    "Unable to perform Duo AuthAPI auth_status request: " + ex.getMessage());
+        }
+    }
+
+    /**
+     * Check on a transaction started by {@link #startAuthentication(DuoAuthenticationContext, DuoIntegration)}
+     * without waiting on the user. The transaction is handed to the poller on the first check, and its result is
+     * returned by the first check after the poller has it.
+     * 
+     * @param txid the transaction identifier
+     * @param duoIntegration Duo integration the transaction was started with
+     * 
+     * @return the final {@link DuoAuthResponse}, or null if the transaction is still pending
+     * 
+     * @throws DuoRateLimitedException if the transaction is not tracked yet and the poller cannot take it now
+     * @throws GeneralSecurityException if the transaction could not be completed
+     */
+    @Nullable public DuoAuthResponse checkStatus(@Nonnull @NotEmpty final String txid,
+            @Nonnull final DuoIntegration duoIntegration) throws GeneralSecurityException {
+        try {
+            return getOrCreatePoller().checkStatus(txid, duoIntegration);
+        } catch (final ExecutionException ex) {
+            throw new GeneralSecurityException(
+                    "Unable to perform Duo AuthAPI auth_status request: " + ex.getCause().getMessage());
+        }
+    }
+
+    /**
+     * Start an authentication action via the Duo AuthApi /auth endpoint without waiting for its result.
+     * 
+     * @param duoContext Duo authentication context to use
+     * @param duoIntegration Duo integration to use
+     * 
+     * @return a future {@link DuoAuthResponse}
+     */
+    @Override @Nonnull public ListenableFuture<DuoAuthResponse> authenticateAsync(
+            @Nonnull final DuoAuthenticationContext duoContext, @Nonnull final DuoIntegration duoIntegration) {
+        final HttpUriRequest request;
+        try {
+            request = buildRequest(duoContext, duoIntegration);
+        } catch (final Exception ex) {
+            return Futures.immediateFailedFuture(
+                    new GeneralSecurityException("Unable to perform Duo AuthAPI auth request: " + ex.getMessage()));
+        }
+
+        if (isAsync(duoContext) && !authStatusPoller.isAcceptingTransactions()) {
+            // refuse before a push is sent that could not be tracked
+            return Futures.<DuoAuthResponse> immediateFailedFuture(
+                    new DuoRateLimitedException("Too many pending Duo transactions"));
+        }
+
+        // without async=1, Duo holds the push open until the user responds
+        final ListenableFuture<DuoAuthResponse> response = doApiRequestAsync(request, decoder,
+                !isAsync(duoContext) && !DuoAuthApi.DUO_FACTOR_PASSCODE.equals(duoContext.getFactor()));
+        if (!isAsync(duoContext)) {
+            return response;
+        }
+
+        // hand the transaction over to the poller
+        return Futures.transformAsync(response, new AsyncFunction<DuoAuthResponse, DuoAuthResponse>() {
+            public ListenableFuture<DuoAuthResponse> apply(final DuoAuthResponse started) throws Exception {
+                if (started == null || started.getTxid() == null) {
+                    throw new DuoWebException("missing transaction id in asynchronous auth response");
+                }
+                return authStatusPoller.track(started.getTxid(), duoIntegration);
+            }
+        });
+    }
+
+    /**
+     * Check the status of an asynchronous transaction via the Duo AuthApi /auth_status endpoint without waiting for
+     * its result.
+     * 
+     * @param txid the transaction identifier
+     * @param duoIntegration Duo integration the transaction was started with
+     * 
+     * @return a future {@link DuoAuthResponse}
+     */
+    @Nonnull public ListenableFuture<DuoAuthResponse> authStatusAsync(@Nonnull @NotEmpty final String txid,
+            @Nonnull final DuoIntegration duoIntegration) {
+        try {
+            return doApiRequestAsync(buildStatusRequest(txid, duoIntegration), decoder, true);
+        } catch (final Exception ex) {
+            return Futures.immediateFailedFuture(new GeneralSecurityException(
+                    "Unable to perform Duo AuthAPI auth_status request: " + ex.getMessage()));
+        }
+    }
+
+    /**
+     * Get the poller, creating one owned by this component on first use if none was set.
+     * 
+     * @return the poller
+     * 
+     * @throws GeneralSecurityException if the poller cannot be initialized
+     */
+    @Nonnull private DuoAuthStatusPoller getOrCreatePoller() throws GeneralSecurityException {
+        DuoAuthStatusPoller poller = authStatusPoller;
+        if (poller == null) {
+            synchronized (this) {
+                poller = authStatusPoller;
+                if (poller == null) {
+                    ComponentSupport.ifDestroyedThrowDestroyedComponentException(this);
+                    poller = new DuoAuthStatusPoller();
+                    poller.setAuthenticator(this);
+                    try {
+                        poller.initialize();
+                    } catch (final ComponentInitializationException e) {
+                        throw new GeneralSecurityException("Unable to initialize Duo auth_status poller", e);
+                    }
+                    ownsPoller = true;
+                    authStatusPoller = poller;
+                }
+            }
+        }
+        return poller;
+    }
+
+    /**
+     * Check whether a request is to be performed asynchronously.
+     * 
+     * @param duoContext Duo authentication context to use
+     * 
+     * @return true if the factor is out-of-band and asynchronous mode is enabled
+     */
+    protected boolean isAsync(@Nonnull final DuoAuthenticationContext duoContext) {
+        return asyncAuthentication && !DuoAuthApi.DUO_FACTOR_PASSCODE.equals(duoContext.getFactor());
+    }
+
+    /**
+     * Build the signed request for the Duo AuthApi /auth endpoint.
+     * 
+     * @param duoContext Duo authentication context to use
+     * @param duoIntegration Duo integration to use
+     * 
+     * @return the signed request
+     * 
+     * @throws Exception if the request cannot be built or signed
+     */
+    @Nonnull protected HttpUriRequest buildRequest(@Nonnull final DuoAuthenticationContext duoContext,
+            @Nonnull final DuoIntegration duoIntegration) throws Exception {
+        return buildRequest(duoContext, duoIntegration, isAsync(duoContext));
+    }
+
+    /**
+     * Build the signed request for the Duo AuthApi /auth endpoint.
+     * 
+     * @param duoContext Duo authentication context to use
+     * @param duoIntegration Duo integration to use
+     * @param async whether to request <code>async=1</code>
+     * 
+     * @return the signed request
+     * 
+     * @throws Exception if the request cannot be built or signed
+     */
+    @Nonnull protected HttpUriRequest buildRequest(@Nonnull final DuoAuthenticationContext duoContext,
+            @Nonnull final DuoIntegration duoIntegration, final boolean async) throws Exception {
+        return post(duoIntegration, Endpoint.AUTH,
+                "username", duoContext.getUsername(),
+                DuoAuthApi.DUO_FACTOR, duoContext.getFactor(),
+                DuoAuthApi.DUO_DEVICE, duoContext.getDevice(),
+                DuoAuthApi.DUO_PASSCODE, duoContext.getPasscode(),
+                DuoAuthApi.DUO_ASYNC, async ? "1" : null);
+    }
+
+    /**
+     * Build the signed request for the Duo AuthApi /auth_status endpoint.
+     * 
+     * @param txid the transaction identifier
+     * @param duoIntegration Duo integration to use
+     * 
+     * @return the signed request
+     * 
+     * @throws Exception if the request cannot be built or signed
+     */
+    @Nonnull protected HttpUriRequest buildStatusRequest(@Nonnull @NotEmpty final String txid,
+            @Nonnull final DuoIntegration duoIntegration) throws Exception {
+        return get(duoIntegration, Endpoint.AUTH_STATUS, DuoAuthApi.DUO_TXID, txid);
+    }
+
 }
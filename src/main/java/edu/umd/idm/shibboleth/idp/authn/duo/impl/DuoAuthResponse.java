@@ -38,6 +38,9 @@ public class DuoAuthResponse extends DuoAuthApiResponse {
     /** the trusted device token string. */
     @JsonProperty("trusted_device_token") @Nullable private String trustedDeviceToken;
 
+    /** the transaction identifier returned by an asynchronous /auth call. */
+    @JsonProperty("txid") @Nullable private String txid;
+
     /**
      * Get the Duo status string.
      * 
@@ -56,4 +59,13 @@ public class DuoAuthResponse extends DuoAuthApiResponse {
         return trustedDeviceToken;
     }
 
+    /**
+     * Get the transaction identifier returned by an asynchronous /auth call.
+     * 
+     * @return the transaction identifier
+     */
+    @Nullable public String getTxid() {
+        return txid;
+    }
+
 }
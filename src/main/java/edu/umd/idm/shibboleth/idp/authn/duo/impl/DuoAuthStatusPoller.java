@@ -0,0 +1,617 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.umd.idm.shibboleth.idp.authn.duo.impl;
+
+import java.util.Iterator;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+
+import edu.umd.idm.shibboleth.idp.authn.duo.DuoAuthApi;
+import edu.umd.idm.shibboleth.idp.authn.duo.DuoRateLimitedException;
+import net.shibboleth.idp.authn.duo.DuoIntegration;
+import net.shibboleth.utilities.java.support.annotation.constraint.NotEmpty;
+import net.shibboleth.utilities.java.support.component.AbstractDestructableInitializableComponent;
+import net.shibboleth.utilities.java.support.component.ComponentInitializationException;
+import net.shibboleth.utilities.java.support.component.ComponentSupport;
+import net.shibboleth.utilities.java.support.logic.Constraint;
+
+/**
+ * Tracks outstanding asynchronous Duo /auth transactions and completes them by polling the Duo AuthApi /auth_status
+ * endpoint.
+ * 
+ * <p>
+ * Pending transactions are kept in a sharded in-flight table. A single scheduler thread sweeps the table at a fixed
+ * tick and issues non-blocking /auth_status calls. Duo holds each call open until the transaction's status changes,
+ * so a pending transaction keeps one call, and one connection of the non-blocking client, in progress nearly all the
+ * time. The number of calls in progress is bounded, and so, because it is the same quantity, is the number of
+ * transactions accepted: once the bound is reached, new transactions are refused with a
+ * {@link DuoRateLimitedException} before anything is sent to the user, instead of queueing until they time out. The
+ * bound should not exceed the connection limit of the non-blocking client.
+ * </p>
+ * 
+ * <p>
+ * A transaction is polled again as soon as a call returns, but calls for it start at most once per poll interval in
+ * case Duo answers without holding the call. Failed polls are retried at a growing interval, and a transaction is
+ * failed after a number of consecutive errors; polls refused by the local rate limiter are retried without counting
+ * as errors, since the transaction may already have been approved.
+ * </p>
+ * 
+ * <p>
+ * A transaction may instead be checked on by a caller which does not wait, as in the two-phase protocol: its result
+ * is then kept once complete until it is collected by {@link #checkStatus(String, DuoIntegration)} or the
+ * transaction times out. Such a check also refuses to start tracking a transaction once the bound is reached.
+ * </p>
+ */
+@ThreadSafe
+public class DuoAuthStatusPoller extends AbstractDestructableInitializableComponent {
+
+    /** Class logger. */
+    @Nonnull private final Logger log = LoggerFactory.getLogger(DuoAuthStatusPoller.class);
+
+    /** Authenticator used to issue /auth_status calls. */
+    @Nullable private DuoAuthAuthenticator authenticator;
+
+    /** Number of shards in the in-flight table. */
+    private int shardCount;
+
+    /** Sweep interval in milliseconds. */
+    private long tickInterval;
+
+    /** Minimum interval in milliseconds between the starts of two polls of a transaction. */
+    private long initialPollDelay;
+
+    /** Maximum interval in milliseconds between polls of a transaction after failed polls. */
+    private long maxPollDelay;
+
+    /** Maximum number of /auth_status calls, and so of pending transactions, at once. */
+    private int maxPollsInFlight;
+
+    /** Maximum number of consecutive failed polls before a transaction is failed. */
+    private int maxPollErrors;
+
+    /** Maximum lifetime in milliseconds of a transaction. */
+    private long transactionTimeout;
+
+    /** The in-flight table. */
+    @Nullable private ConcurrentMap<String, PendingTransaction>[] shards;
+
+    /** Number of /auth_status calls in progress. */
+    @Nonnull private final AtomicInteger pollsInFlight;
+
+    /** Number of transactions being tracked. */
+    @Nonnull private final AtomicInteger pendingCount;
+
+    /** Scheduler driving the sweeps. */
+    @Nullable private ScheduledExecutorService scheduler;
+
+    /** Constructor. */
+    public DuoAuthStatusPoller() {
+        pollsInFlight = new AtomicInteger();
+        pendingCount = new AtomicInteger();
+        shardCount = 16;
+        tickInterval = 250;
+        initialPollDelay = TimeUnit.SECONDS.toMillis(1);
+        maxPollDelay = TimeUnit.SECONDS.toMillis(5);
+        // matches the connection limit of the non-blocking client of DuoHttpTransport
+        maxPollsInFlight = 500;
+        maxPollErrors = 3;
+        transactionTimeout = TimeUnit.SECONDS.toMillis(120);
+    }
+
+    /**
+     * Set the authenticator used to issue /auth_status calls.
+     * 
+     * @param duoAuthenticator the authenticator
+     */
+    public void setAuthenticator(@Nonnull final DuoAuthAuthenticator duoAuthenticator) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+
+        authenticator = Constraint.isNotNull(duoAuthenticator, "Authenticator cannot be null");
+    }
+
+    /**
+     * Set the number of shards in the in-flight table.
+     * 
+     * @param count number of shards
+     */
+    public void setShardCount(final int count) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+
+        shardCount = (int) Constraint.isGreaterThan(0, count, "Shard count must be greater than 0");
+    }
+
+    /**
+     * Set the sweep interval.
+     * 
+     * @param interval interval in milliseconds
+     */
+    public void setTickInterval(final long interval) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+
+        tickInterval = Constraint.isGreaterThan(0, interval, "Tick interval must be greater than 0");
+    }
+
+    /**
+     * Set the minimum interval between the starts of two polls of a transaction, which is also the initial interval
+     * between failed polls.
+     * 
+     * @param delay interval in milliseconds
+     */
+    public void setInitialPollDelay(final long delay) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+
+        initialPollDelay = Constraint.isGreaterThan(0, delay, "Initial poll delay must be greater than 0");
+    }
+
+    /**
+     * Set the maximum interval between polls of a transaction after failed polls.
+     * 
+     * @param delay interval in milliseconds
+     */
+    public void setMaxPollDelay(final long delay) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+
+        maxPollDelay = Constraint.isGreaterThan(0, delay, "Maximum poll delay must be greater than 0");
+    }
+
+    /**
+     * Set the maximum number of /auth_status calls in progress at once. As each pending transaction holds one call
+     * open, this also bounds the number of transactions accepted.
+     * 
+     * @param max maximum number of calls
+     */
+    public void setMaxPollsInFlight(final int max) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+
+        maxPollsInFlight = (int) Constraint.isGreaterThan(0, max, "Maximum polls in flight must be greater than 0");
+    }
+
+    /**
+     * Set the maximum number of consecutive failed polls before a transaction is failed.
+     * 
+     * @param max maximum number of errors
+     */
+    public void setMaxPollErrors(final int max) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+
+        maxPollErrors = (int) Constraint.isGreaterThan(0, max, "Maximum poll errors must be greater than 0");
+    }
+
+    /**
+     * Set the maximum lifetime of a transaction.
+     * 
+     * @param timeout lifetime in milliseconds
+     */
+    public void setTransactionTimeout(final long timeout) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+
+        transactionTimeout = Constraint.isGreaterThan(0, timeout, "Transaction timeout must be greater than 0");
+    }
+
+    /**
+     * Get the number of transactions being tracked.
+     * 
+     * @return number of pending transactions
+     */
+    public int getPendingCount() {
+        return pendingCount.get();
+    }
+
+    /**
+     * Check whether a new transaction would be accepted. The check is advisory: it lets a caller refuse a login before
+     * starting a Duo transaction that could not be tracked.
+     * 
+     * @return true if fewer transactions than the limit are pending
+     */
+    public boolean isAcceptingTransactions() {
+        return pendingCount.get() < maxPollsInFlight;
+    }
+
+    /** {@inheritDoc} */
+    @SuppressWarnings("unchecked")
+    @Override protected void doInitialize() throws ComponentInitializationException {
+        super.doInitialize();
+
+        if (authenticator == null) {
+            throw new ComponentInitializationException("Authenticator cannot be null");
+        }
+
+        shards = new ConcurrentMap[shardCount];
+        for (int i = 0; i < shardCount; i++) {
+            shards[i] = new ConcurrentHashMap<>();
+        }
+
+        scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(final Runnable r) {
+                final Thread thread = new Thread(r, "duo-auth-status-poller");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        scheduler.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                try {
+                    sweep();
+                } catch (final RuntimeException e) {
+                    log.error("Error sweeping pending Duo transactions", e);
+                }
+            }
+        }, tickInterval, tickInterval, TimeUnit.MILLISECONDS);
+    }
+
+    /** {@inheritDoc} */
+    @Override protected void doDestroy() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+        }
+        if (shards != null) {
+            for (final ConcurrentMap<String, PendingTransaction> shard : shards) {
+                for (final PendingTransaction tx : shard.values()) {
+                    tx.getResult().cancel(false);
+                }
+                shard.clear();
+            }
+        }
+
+        super.doDestroy();
+    }
+
+    /**
+     * Start tracking an asynchronous /auth transaction.
+     * 
+     * @param txid the transaction identifier returned by /auth
+     * @param duoIntegration the Duo integration the transaction was started with
+     * 
+     * @return a future completed with the final /auth_status response
+     */
+    @Nonnull public ListenableFuture<DuoAuthResponse> track(@Nonnull @NotEmpty final String txid,
+            @Nonnull final DuoIntegration duoIntegration) {
+        ComponentSupport.ifNotInitializedThrowUninitializedComponentException(this);
+        ComponentSupport.ifDestroyedThrowDestroyedComponentException(this);
+
+        final PendingTransaction tx = newTransaction(txid, duoIntegration);
+        final ConcurrentMap<String, PendingTransaction> shard = shardFor(txid);
+        shard.put(txid, tx);
+
+        // stop tracking as soon as the caller is done with the result
+        tx.getResult().addListener(new Runnable() {
+            public void run() {
+                shard.remove(txid, tx);
+            }
+        }, MoreExecutors.directExecutor());
+
+        return tx.getResult();
+    }
+
+    /**
+     * Check on an asynchronous /auth transaction without waiting for it. The transaction is tracked from the first
+     * check; once complete, its result is returned, and forgotten, by the next check.
+     * 
+     * @param txid the transaction identifier returned by /auth
+     * @param duoIntegration the Duo integration the transaction was started with
+     * 
+     * @return the final /auth_status response, or null if the transaction is still pending
+     * 
+     * @throws ExecutionException if the transaction could not be completed
+     * @throws DuoRateLimitedException if the transaction is not tracked yet and no more transactions are accepted
+     */
+    @Nullable public DuoAuthResponse checkStatus(@Nonnull @NotEmpty final String txid,
+            @Nonnull final DuoIntegration duoIntegration) throws ExecutionException, DuoRateLimitedException {
+        ComponentSupport.ifNotInitializedThrowUninitializedComponentException(this);
+        ComponentSupport.ifDestroyedThrowDestroyedComponentException(this);
+
+        final ConcurrentMap<String, PendingTransaction> shard = shardFor(txid);
+        final PendingTransaction tx = shard.get(txid);
+        if (tx == null) {
+            if (!isAcceptingTransactions()) {
+                throw new DuoRateLimitedException("Too many pending Duo transactions");
+            }
+            final PendingTransaction created = newTransaction(txid, duoIntegration);
+            if (shard.putIfAbsent(txid, created) != null) {
+                created.getResult().cancel(false);
+            }
+            return null;
+        } else if (!tx.getResult().isDone() || !shard.remove(txid, tx)) {
+            return null;
+        }
+        try {
+            return Futures.getDone(tx.getResult());
+        } catch (final CancellationException e) {
+            throw new ExecutionException(e);
+        }
+    }
+
+    /**
+     * Create the state of a transaction, counted as pending until it completes.
+     * 
+     * @param txid the transaction identifier
+     * @param duoIntegration the Duo integration the transaction was started with
+     * 
+     * @return the transaction
+     */
+    @Nonnull private PendingTransaction newTransaction(@Nonnull @NotEmpty final String txid,
+            @Nonnull final DuoIntegration duoIntegration) {
+        final long now = currentTimeMillis();
+        final PendingTransaction tx = new PendingTransaction(txid, duoIntegration, now + transactionTimeout,
+                now + initialPollDelay, initialPollDelay);
+        pendingCount.incrementAndGet();
+        tx.getResult().addListener(new Runnable() {
+            public void run() {
+                pendingCount.decrementAndGet();
+            }
+        }, MoreExecutors.directExecutor());
+        return tx;
+    }
+
+    /** Issue the /auth_status calls which are due. */
+    protected void sweep() {
+        final long now = currentTimeMillis();
+        for (final ConcurrentMap<String, PendingTransaction> shard : shards) {
+            final Iterator<PendingTransaction> iterator = shard.values().iterator();
+            while (iterator.hasNext()) {
+                final PendingTransaction tx = iterator.next();
+                if (now >= tx.getDeadline()) {
+                    // also drops completed transactions which were never collected
+                    iterator.remove();
+                    tx.getResult().setException(
+                            new TimeoutException("Duo transaction " + tx.getTxid() + " did not complete in time"));
+                } else if (now >= tx.getNextPollAt() && pollsInFlight.get() < maxPollsInFlight
+                        && tx.getPolling().compareAndSet(false, true)) {
+                    poll(tx);
+                }
+            }
+        }
+    }
+
+    /**
+     * Issue a single non-blocking /auth_status call for a transaction.
+     * 
+     * @param tx the transaction
+     */
+    private void poll(@Nonnull final PendingTransaction tx) {
+        final long started = currentTimeMillis();
+        pollsInFlight.incrementAndGet();
+        final ListenableFuture<DuoAuthResponse> status =
+                authenticator.authStatusAsync(tx.getTxid(), tx.getIntegration());
+        Futures.addCallback(status, new FutureCallback<DuoAuthResponse>() {
+            public void onSuccess(final DuoAuthResponse response) {
+                pollsInFlight.decrementAndGet();
+                tx.setErrors(0);
+                tx.setDelay(initialPollDelay);
+                if (response == null || DuoAuthApi.DUO_AUTH_RESULT_WAITING.equals(response.getResult())) {
+                    // Duo held the call until the status changed, so poll again at once unless it did not
+                    tx.setNextPollAt(started + initialPollDelay);
+                    tx.getPolling().set(false);
+                } else {
+                    log.debug("Duo transaction {} completed with result '{}'", tx.getTxid(), response.getResult());
+                    tx.getResult().set(response);
+                }
+            }
+
+            public void onFailure(final Throwable t) {
+                pollsInFlight.decrementAndGet();
+                if (t instanceof DuoRateLimitedException) {
+                    log.debug("Poll of Duo transaction {} refused locally, will retry", tx.getTxid());
+                    tx.setNextPollAt(currentTimeMillis() + initialPollDelay);
+                    tx.getPolling().set(false);
+                    return;
+                }
+                final int errors = tx.getErrors() + 1;
+                tx.setErrors(errors);
+                if (errors >= maxPollErrors) {
+                    log.warn("Giving up on Duo transaction {} after {} failed polls", tx.getTxid(), errors);
+                    tx.getResult().setException(t);
+                } else {
+                    log.debug("Poll of Duo transaction {} failed, will retry", tx.getTxid(), t);
+                    tx.setDelay(Math.min(maxPollDelay, tx.getDelay() * 2));
+                    tx.setNextPollAt(currentTimeMillis() + tx.getDelay());
+                    tx.getPolling().set(false);
+                }
+            }
+        }, MoreExecutors.directExecutor());
+    }
+
+    /**
+     * Get the shard holding a transaction.
+     * 
+     * @param txid the transaction identifier
+     * 
+     * @return the shard
+     */
+    @Nonnull private ConcurrentMap<String, PendingTransaction> shardFor(@Nonnull final String txid) {
+        return shards[(txid.hashCode() & Integer.MAX_VALUE) % shards.length];
+    }
+
+    /**
+     * Get a monotonic time in milliseconds.
+     * 
+     * @return the time
+     */
+    private static long currentTimeMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime());
+    }
+
+    /** State of a single pending transaction. */
+    private static final class PendingTransaction {
+
+        /** The transaction identifier. */
+        @Nonnull private final String txid;
+
+        /** The Duo integration. */
+        @Nonnull private final DuoIntegration integration;
+
+        /** The future completed with the final status. */
+        @Nonnull private final SettableFuture<DuoAuthResponse> result;
+
+        /** Time after which the transaction is failed. */
+        private final long deadline;
+
+        /** Whether a poll is in progress. */
+        @Nonnull private final AtomicBoolean polling;
+
+        /** Time of the next poll. */
+        private volatile long nextPollAt;
+
+        /** Current interval between polls. */
+        private volatile long delay;
+
+        /** Number of consecutive failed polls. */
+        private volatile int errors;
+
+        /**
+         * Constructor.
+         * 
+         * @param id the transaction identifier
+         * @param duoIntegration the Duo integration
+         * @param expires time after which the transaction is failed
+         * @param firstPoll time of the first poll
+         * @param initialDelay initial interval between polls
+         */
+        PendingTransaction(@Nonnull final String id, @Nonnull final DuoIntegration duoIntegration,
+                final long expires, final long firstPoll, final long initialDelay) {
+            txid = id;
+            integration = duoIntegration;
+            result = SettableFuture.create();
+            deadline = expires;
+            polling = new AtomicBoolean();
+            nextPollAt = firstPoll;
+            delay = initialDelay;
+        }
+
+        /**
+         * Get the transaction identifier.
+         * 
+         * @return the transaction identifier
+         */
+        @Nonnull String getTxid() {
+            return txid;
+        }
+
+        /**
+         * Get the Duo integration.
+         * 
+         * @return the Duo integration
+         */
+        @Nonnull DuoIntegration getIntegration() {
+            return integration;
+        }
+
+        /**
+         * Get the future completed with the final status.
+         * 
+         * @return the future
+         */
+        @Nonnull SettableFuture<DuoAuthResponse> getResult() {
+            return result;
+        }
+
+        /**
+         * Get the time after which the transaction is failed.
+         * 
+         * @return the deadline
+         */
+        long getDeadline() {
+            return deadline;
+        }
+
+        /**
+         * Get the flag indicating whether a poll is in progress.
+         * 
+         * @return the flag
+         */
+        @Nonnull AtomicBoolean getPolling() {
+            return polling;
+        }
+
+        /**
+         * Get the time of the next poll.
+         * 
+         * @return the time
+         */
+        long getNextPollAt() {
+            return nextPollAt;
+        }
+
+        /**
+         * Set the time of the next poll.
+         * 
+         * @param time the time
+         */
+        void setNextPollAt(final long time) {
+            nextPollAt = time;
+        }
+
+        /**
+         * Get the current interval between polls.
+         * 
+         * @return the interval
+         */
+        long getDelay() {
+            return delay;
+        }
+
+        /**
+         * Set the current interval between polls.
+         * 
+         * @param interval the interval
+         */
+        void setDelay(final long interval) {
+            delay = interval;
+        }
+
+        /**
+         * Get the number of consecutive failed polls.
+         * 
+         * @return the number of failed polls
+         */
+        int getErrors() {
+            return errors;
+        }
+
+        /**
+         * Set the number of consecutive failed polls.
+         * 
+         * @param count the number of failed polls
+         */
+        void setErrors(final int count) {
+            errors = count;
+        }
+    }
+
+}
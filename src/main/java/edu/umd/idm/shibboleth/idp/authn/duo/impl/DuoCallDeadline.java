@@ -0,0 +1,212 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.umd.idm.shibboleth.idp.authn.duo.impl;
+
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.apache.http.client.methods.HttpUriRequest;
+
+/**
+ * A deadline for the Duo call made by the current thread.
+ * 
+ * <p>
+ * The call runs on the thread that started the deadline. Each blocking HTTP exchange, or future waited on, that the
+ * call makes registers itself with the deadline of its thread; when the deadline passes, the registered exchange is
+ * aborted, or the future cancelled, so that the thread returns promptly even while blocked in socket I/O. No thread
+ * is tied up beyond the caller's own: the deadline is a task on a shared scheduler.
+ * </p>
+ */
+@ThreadSafe
+public final class DuoCallDeadline implements AutoCloseable {
+
+    /** The deadline of each thread's call in progress. */
+    @Nonnull private static final ThreadLocal<DuoCallDeadline> CURRENT = new ThreadLocal<>();
+
+    /** The exchange or future in progress, or null. */
+    @Nullable private Object target;
+
+    /** Whether the deadline has passed. */
+    private boolean expired;
+
+    /** Time the deadline passes, in {@link System#nanoTime()} terms. */
+    private final long expiresAt;
+
+    /** The scheduled expiry. */
+    @Nullable private ScheduledFuture<?> expiry;
+
+    /**
+     * Constructor.
+     * 
+     * @param expiry time the deadline passes, in {@link System#nanoTime()} terms
+     */
+    private DuoCallDeadline(final long expiry) {
+        expiresAt = expiry;
+    }
+
+    /**
+     * Start a deadline for the call about to be made by the current thread.
+     * 
+     * @param scheduler the scheduler on which the deadline expires
+     * @param timeout time allowed for the call, in milliseconds
+     * 
+     * @return the deadline, to be closed once the call returns
+     */
+    @Nonnull public static DuoCallDeadline start(@Nonnull final ScheduledExecutorService scheduler,
+            final long timeout) {
+        final DuoCallDeadline deadline =
+                new DuoCallDeadline(System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout));
+        deadline.expiry = scheduler.schedule(new Runnable() {
+            public void run() {
+                deadline.expire();
+            }
+        }, timeout, TimeUnit.MILLISECONDS);
+        CURRENT.set(deadline);
+        return deadline;
+    }
+
+    /**
+     * Register an exchange made by the current thread, aborting it at once if the thread's deadline has passed.
+     * 
+     * @param request the request being executed
+     */
+    public static void register(@Nonnull final HttpUriRequest request) {
+        registerTarget(request);
+    }
+
+    /**
+     * Register a future waited on by the current thread, cancelling it at once if the thread's deadline has passed.
+     * 
+     * @param future the future being waited on
+     */
+    public static void register(@Nonnull final Future<?> future) {
+        registerTarget(future);
+    }
+
+    /**
+     * Unregister the exchange or future of the current thread once it has completed.
+     * 
+     * @param completed the completed request or future
+     */
+    public static void unregister(@Nonnull final Object completed) {
+        final DuoCallDeadline deadline = CURRENT.get();
+        if (deadline != null) {
+            synchronized (deadline) {
+                if (deadline.target == completed) {
+                    deadline.target = null;
+                }
+            }
+        }
+    }
+
+    /**
+     * Check whether the current thread's deadline has passed.
+     * 
+     * @return true if the thread has a deadline and it has passed
+     */
+    public static boolean isCurrentExpired() {
+        final DuoCallDeadline deadline = CURRENT.get();
+        return deadline != null && deadline.isExpired();
+    }
+
+    /**
+     * Get the time left before the current thread's deadline passes, e.g. to bound a wait.
+     * 
+     * @return the remaining time in milliseconds, 0 if the deadline has passed, or {@link Long#MAX_VALUE} if the
+     *         thread has no deadline
+     */
+    public static long getCurrentRemainingTime() {
+        final DuoCallDeadline deadline = CURRENT.get();
+        if (deadline == null) {
+            return Long.MAX_VALUE;
+        } else if (deadline.isExpired()) {
+            return 0;
+        }
+        return Math.max(0, TimeUnit.NANOSECONDS.toMillis(deadline.expiresAt - System.nanoTime()));
+    }
+
+    /**
+     * Check whether the deadline has passed.
+     * 
+     * @return true if the deadline has passed
+     */
+    public synchronized boolean isExpired() {
+        return expired;
+    }
+
+    /** {@inheritDoc} */
+    @Override public void close() {
+        expiry.cancel(false);
+        synchronized (this) {
+            target = null;
+        }
+        if (CURRENT.get() == this) {
+            CURRENT.remove();
+        }
+    }
+
+    /**
+     * Register the exchange or future of the current thread.
+     * 
+     * @param newTarget the request or future
+     */
+    private static void registerTarget(@Nonnull final Object newTarget) {
+        final DuoCallDeadline deadline = CURRENT.get();
+        if (deadline != null) {
+            final boolean abort;
+            synchronized (deadline) {
+                deadline.target = newTarget;
+                abort = deadline.expired;
+            }
+            if (abort) {
+                abort(newTarget);
+            }
+        }
+    }
+
+    /** Mark the deadline as passed and abort the exchange or future in progress. */
+    private void expire() {
+        final Object current;
+        synchronized (this) {
+            expired = true;
+            current = target;
+        }
+        if (current != null) {
+            abort(current);
+        }
+    }
+
+    /**
+     * Abort an exchange or cancel a future.
+     * 
+     * @param toAbort the request or future
+     */
+    private static void abort(@Nonnull final Object toAbort) {
+        if (toAbort instanceof HttpUriRequest) {
+            ((HttpUriRequest) toAbort).abort();
+        } else if (toAbort instanceof Future) {
+            ((Future<?>) toAbort).cancel(true);
+        }
+    }
+
+}
@@ -0,0 +1,269 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.umd.idm.shibboleth.idp.authn.duo.impl;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.NotThreadSafe;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import net.shibboleth.utilities.java.support.annotation.constraint.NotEmpty;
+
+/**
+ * A structured event describing one Duo AuthApi exchange, or one phase of a login, emitted as a single key=value line
+ * to the logger named after this class.
+ * 
+ * <p>
+ * Events are only created when that logger is enabled at INFO, so leaving the code paths in place costs one level
+ * check per exchange when it is off. An event may also be recorded without being emitted, to feed a
+ * {@link edu.umd.idm.shibboleth.idp.authn.duo.DuoLoginTiming}. Durations are in microseconds, and -1 marks a value
+ * that was not measured. The connect time runs from the start of the exchange to the connection being ready, so it
+ * includes waiting for a pooled connection; it is only measured by clients built by {@link DuoHttpTransport}.
+ * </p>
+ */
+@NotThreadSafe
+public final class DuoExchangeEvent {
+
+    /** Attribute under which an event is stored in the HTTP context of its exchange. */
+    @Nonnull @NotEmpty public static final String CONTEXT_ATTRIBUTE = DuoExchangeEvent.class.getName();
+
+    /** Event logger. */
+    @Nonnull private static final Logger EVENT_LOG = LoggerFactory.getLogger(DuoExchangeEvent.class);
+
+    /** Endpoint or phase name. */
+    @Nonnull @NotEmpty private final String name;
+
+    /** Duo API host. */
+    @Nullable private final String apiHost;
+
+    /** Whether the event is emitted on commit. */
+    private final boolean emit;
+
+    /** {@link System#nanoTime()} at which the event began. */
+    private final long start;
+
+    /** {@link System#nanoTime()} at which the connection was ready, or 0. */
+    private long connected;
+
+    /** Factor. */
+    @Nullable private String factor;
+
+    /** HTTP status. */
+    private int httpStatus;
+
+    /** Duo stat. */
+    @Nullable private String stat;
+
+    /** Duo result. */
+    @Nullable private String result;
+
+    /** Response bytes read. */
+    private long bytesRead;
+
+    /** Signing time in nanoseconds. */
+    private long signTime;
+
+    /** Time from the connection being ready to the response headers in nanoseconds. */
+    private long requestTime;
+
+    /** Decoding time in nanoseconds. */
+    private long parseTime;
+
+    /**
+     * Constructor.
+     * 
+     * @param eventName endpoint or phase name
+     * @param host Duo API host
+     * @param emitEvent whether the event is emitted on commit
+     */
+    private DuoExchangeEvent(@Nonnull @NotEmpty final String eventName, @Nullable final String host,
+            final boolean emitEvent) {
+        name = eventName;
+        apiHost = host;
+        emit = emitEvent;
+        start = System.nanoTime();
+        httpStatus = -1;
+        bytesRead = -1;
+        signTime = -1;
+        requestTime = -1;
+        parseTime = -1;
+    }
+
+    /**
+     * Check whether events are recorded.
+     * 
+     * @return true if the event logger is enabled
+     */
+    public static boolean isEnabled() {
+        return EVENT_LOG.isInfoEnabled();
+    }
+
+    /**
+     * Begin an event if events are recorded.
+     * 
+     * @param eventName endpoint or phase name
+     * @param host Duo API host
+     * 
+     * @return the event, or null if events are not recorded
+     */
+    @Nullable public static DuoExchangeEvent begin(@Nonnull @NotEmpty final String eventName,
+            @Nullable final String host) {
+        return begin(eventName, host, false);
+    }
+
+    /**
+     * Begin an event if events are recorded or the caller needs its measurements.
+     * 
+     * @param eventName endpoint or phase name
+     * @param host Duo API host
+     * @param record whether to record the event even if it is not emitted
+     * 
+     * @return the event, or null if events are not recorded and not requested
+     */
+    @Nullable public static DuoExchangeEvent begin(@Nonnull @NotEmpty final String eventName,
+            @Nullable final String host, final boolean record) {
+        final boolean enabled = isEnabled();
+        return enabled || record ? new DuoExchangeEvent(eventName, host, enabled) : null;
+    }
+
+    /** Mark the connection as ready to send the request. */
+    public void connected() {
+        connected = System.nanoTime();
+    }
+
+    /** Mark the response headers as received. */
+    public void responseReceived() {
+        requestTime = System.nanoTime() - (connected != 0 ? connected : start);
+    }
+
+    /**
+     * Get the time from the start of the exchange to the connection being ready.
+     * 
+     * @return connect time in nanoseconds, or -1 if not measured
+     */
+    public long getConnectTime() {
+        return connected != 0 ? connected - start : -1;
+    }
+
+    /**
+     * Get the time from the connection being ready to the response headers.
+     * 
+     * @return request time in nanoseconds, or -1 if not measured
+     */
+    public long getRequestTime() {
+        return requestTime;
+    }
+
+    /**
+     * Set the factor.
+     * 
+     * @param duoFactor the factor
+     */
+    public void setFactor(@Nullable final String duoFactor) {
+        factor = duoFactor;
+    }
+
+    /**
+     * Set the HTTP status.
+     * 
+     * @param status the HTTP status
+     */
+    public void setHttpStatus(final int status) {
+        httpStatus = status;
+    }
+
+    /**
+     * Set the Duo stat.
+     * 
+     * @param duoStat the stat
+     */
+    public void setStat(@Nullable final String duoStat) {
+        stat = duoStat;
+    }
+
+    /**
+     * Set the Duo result.
+     * 
+     * @param duoResult the result
+     */
+    public void setResult(@Nullable final String duoResult) {
+        result = duoResult;
+    }
+
+    /**
+     * Set the number of response bytes read.
+     * 
+     * @param bytes number of bytes
+     */
+    public void setBytesRead(final long bytes) {
+        bytesRead = bytes;
+    }
+
+    /**
+     * Set the signing time.
+     * 
+     * @param nanos signing time in nanoseconds
+     */
+    public void setSignTime(final long nanos) {
+        signTime = nanos;
+    }
+
+    /**
+     * Set the decoding time.
+     * 
+     * @param nanos decoding time in nanoseconds
+     */
+    public void setParseTime(final long nanos) {
+        parseTime = nanos;
+    }
+
+    /** End the event and emit it if events are enabled. */
+    public void commit() {
+        if (!emit) {
+            return;
+        }
+        final long end = System.nanoTime();
+        final StringBuilder line = new StringBuilder(256);
+        line.append("name=").append(name)
+                .append(" apiHost=").append(apiHost)
+                .append(" factor=").append(factor)
+                .append(" httpStatus=").append(httpStatus)
+                .append(" stat=").append(stat)
+                .append(" result=").append(result)
+                .append(" bytesRead=").append(bytesRead)
+                .append(" signMicros=").append(toMicros(signTime))
+                .append(" connectMicros=").append(toMicros(getConnectTime()))
+                .append(" requestMicros=").append(toMicros(requestTime))
+                .append(" parseMicros=").append(toMicros(parseTime))
+                .append(" durationMicros=").append(toMicros(end - start));
+        EVENT_LOG.info(line.toString());
+    }
+
+    /**
+     * Convert a duration to microseconds, preserving -1.
+     * 
+     * @param nanos duration in nanoseconds, or -1
+     * 
+     * @return duration in microseconds, or -1
+     */
+    private static long toMicros(final long nanos) {
+        return nanos < 0 ? -1 : nanos / 1000;
+    }
+
+}
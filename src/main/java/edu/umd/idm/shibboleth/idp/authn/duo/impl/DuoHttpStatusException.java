@@ -0,0 +1,54 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.umd.idm.shibboleth.idp.authn.duo.impl;
+
+import java.io.IOException;
+
+import javax.annotation.Nullable;
+
+/**
+ * Signals that Duo answered with an HTTP status other than those carrying an AuthApi response.
+ */
+public class DuoHttpStatusException extends IOException {
+
+    /** Serial version UID. */
+    private static final long serialVersionUID = 6020137445916480318L;
+
+    /** The HTTP status code. */
+    private final int statusCode;
+
+    /**
+     * Constructor.
+     * 
+     * @param code the HTTP status code
+     * @param message exception message
+     */
+    public DuoHttpStatusException(final int code, @Nullable final String message) {
+        super(message);
+        statusCode = code;
+    }
+
+    /**
+     * Get the HTTP status code.
+     * 
+     * @return the status code
+     */
+    public int getStatusCode() {
+        return statusCode;
+    }
+
+}
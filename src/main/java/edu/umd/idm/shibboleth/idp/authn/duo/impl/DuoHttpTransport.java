@@ -0,0 +1,529 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.umd.idm.shibboleth.idp.authn.duo.impl;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.apache.http.HttpClientConnection;
+import org.apache.http.HttpException;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.pool.ConnPoolControl;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.impl.nio.client.HttpAsyncClients;
+import org.apache.http.impl.nio.conn.PoolingNHttpClientConnectionManager;
+import org.apache.http.impl.nio.reactor.DefaultConnectingIOReactor;
+import org.apache.http.impl.nio.reactor.IOReactorConfig;
+import org.apache.http.nio.client.HttpAsyncClient;
+import org.apache.http.nio.reactor.IOReactorException;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.protocol.HttpRequestExecutor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.codahale.metrics.Gauge;
+
+import net.shibboleth.utilities.java.support.annotation.constraint.NotEmpty;
+import net.shibboleth.utilities.java.support.component.AbstractDestructableInitializableComponent;
+import net.shibboleth.utilities.java.support.component.ComponentSupport;
+import net.shibboleth.utilities.java.support.logic.Constraint;
+
+/**
+ * Built-in HTTP transport for the Duo AuthApi authenticators.
+ *
+ * <p>
+ * A pooled {@link HttpClient} is maintained for each Duo API host so that connections (and their TLS sessions) are
+ * kept alive and reused between requests. Expired and idle connections are evicted in the background.
+ * </p>
+ * 
+ * <p>
+ * A single non-blocking {@link HttpAsyncClient} is also available for callers that do not want to park a thread for
+ * the duration of a Duo call. It is created and started on first use.
+ * </p>
+ * 
+ * <p>
+ * The usage of each connection pool is exposed as gauges under the metric prefix, as
+ * "pool.&lt;host&gt;.{leased,pending,available,max}" and "pool.async.{leased,pending,available,max}".
+ * </p>
+ */
+@ThreadSafe
+public class DuoHttpTransport extends AbstractDestructableInitializableComponent {
+
+    /** Class logger. */
+    @Nonnull private final Logger log = LoggerFactory.getLogger(DuoHttpTransport.class);
+
+    /** Pooled clients keyed by Duo API host. */
+    @Nonnull private final ConcurrentMap<String, PooledClient> clients;
+
+    /** Non-blocking client, created on first use. */
+    @Nullable private volatile CloseableHttpAsyncClient asyncClient;
+
+    /** Metric name prefix. */
+    @Nullable private String metricPrefix;
+
+    /** Names of the gauges registered by this transport. */
+    @Nonnull private final Set<String> gaugeNames;
+
+    /** Maximum number of pooled connections per API host. */
+    private int maxConnectionsPerHost;
+
+    /** Maximum number of connections held by the non-blocking client across all API hosts. */
+    private int maxAsyncConnections;
+
+    /** Number of I/O dispatcher threads used by the non-blocking client. */
+    private int ioThreadCount;
+
+    /** Maximum lifetime of a pooled connection in milliseconds. */
+    private long connectionTimeToLive;
+
+    /** Time in milliseconds after which an idle connection is evicted. */
+    private long connectionIdleTimeout;
+
+    /** Connect timeout in milliseconds. */
+    private int connectionTimeout;
+
+    /** Socket read timeout in milliseconds. */
+    private int socketTimeout;
+
+    /** Timeout in milliseconds when waiting for a connection from the pool. */
+    private int connectionRequestTimeout;
+
+    /** Constructor. */
+    public DuoHttpTransport() {
+        clients = new ConcurrentHashMap<>();
+        metricPrefix = DuoMetrics.DEFAULT_PREFIX;
+        gaugeNames = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+        maxConnectionsPerHost = 50;
+        maxAsyncConnections = 500;
+        ioThreadCount = Runtime.getRuntime().availableProcessors();
+        connectionTimeToLive = TimeUnit.MINUTES.toMillis(5);
+        connectionIdleTimeout = TimeUnit.SECONDS.toMillis(30);
+        connectionTimeout = (int) TimeUnit.SECONDS.toMillis(10);
+        // a push on /auth/v2/auth may take up to a minute to be answered
+        socketTimeout = (int) TimeUnit.SECONDS.toMillis(75);
+        connectionRequestTimeout = (int) TimeUnit.SECONDS.toMillis(10);
+    }
+
+    /**
+     * Set the metric name prefix, or null to register no gauges.
+     *
+     * @param name the metric name prefix
+     */
+    public void setMetricName(@Nullable final String name) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+
+        metricPrefix = name;
+    }
+
+    /**
+     * Get the maximum number of pooled connections per API host.
+     *
+     * @return maximum number of connections
+     */
+    public int getMaxConnectionsPerHost() {
+        return maxConnectionsPerHost;
+    }
+
+    /**
+     * Set the maximum number of pooled connections per API host.
+     *
+     * @param max maximum number of connections
+     */
+    public void setMaxConnectionsPerHost(final int max) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+
+        maxConnectionsPerHost = (int) Constraint.isGreaterThan(0, max, "Maximum connections must be greater than 0");
+    }
+
+    /**
+     * Set the maximum number of connections held by the non-blocking client across all API hosts.
+     *
+     * @param max maximum number of connections
+     */
+    public void setMaxAsyncConnections(final int max) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+
+        maxAsyncConnections = (int) Constraint.isGreaterThan(0, max, "Maximum connections must be greater than 0");
+    }
+
+    /**
+     * Set the number of I/O dispatcher threads used by the non-blocking client.
+     *
+     * @param count number of threads
+     */
+    public void setIoThreadCount(final int count) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+
+        ioThreadCount = (int) Constraint.isGreaterThan(0, count, "I/O thread count must be greater than 0");
+    }
+
+    /**
+     * Set the maximum lifetime of a pooled connection.
+     *
+     * @param ttl lifetime in milliseconds
+     */
+    public void setConnectionTimeToLive(final long ttl) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+
+        connectionTimeToLive = Constraint.isGreaterThan(0, ttl, "Connection time to live must be greater than 0");
+    }
+
+    /**
+     * Set the time after which an idle pooled connection is evicted.
+     *
+     * @param timeout idle timeout in milliseconds
+     */
+    public void setConnectionIdleTimeout(final long timeout) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+
+        connectionIdleTimeout = Constraint.isGreaterThan(0, timeout, "Idle timeout must be greater than 0");
+    }
+
+    /**
+     * Set the connect timeout.
+     *
+     * @param timeout connect timeout in milliseconds
+     */
+    public void setConnectionTimeout(final int timeout) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+
+        connectionTimeout = (int) Constraint.isGreaterThanOrEqual(0, timeout, "Connect timeout cannot be negative");
+    }
+
+    /**
+     * Set the socket read timeout.
+     *
+     * @param timeout socket timeout in milliseconds
+     */
+    public void setSocketTimeout(final int timeout) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+
+        socketTimeout = (int) Constraint.isGreaterThanOrEqual(0, timeout, "Socket timeout cannot be negative");
+    }
+
+    /**
+     * Set the timeout used when waiting for a connection from the pool.
+     *
+     * @param timeout connection request timeout in milliseconds
+     */
+    public void setConnectionRequestTimeout(final int timeout) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+
+        connectionRequestTimeout =
+                (int) Constraint.isGreaterThanOrEqual(0, timeout, "Connection request timeout cannot be negative");
+    }
+
+    /**
+     * Get the pooled {@link HttpClient} for a Duo API host, creating it on first use.
+     *
+     * @param apiHost the Duo API host
+     *
+     * @return the pooled client for the host
+     */
+    @Nonnull public HttpClient getHttpClient(@Nonnull @NotEmpty final String apiHost) {
+        ComponentSupport.ifNotInitializedThrowUninitializedComponentException(this);
+        ComponentSupport.ifDestroyedThrowDestroyedComponentException(this);
+
+        final String key = apiHost.toLowerCase();
+        PooledClient pooled = clients.get(key);
+        if (pooled == null) {
+            synchronized (clients) {
+                pooled = clients.get(key);
+                if (pooled == null) {
+                    log.debug("Creating pooled HTTP client for Duo API host '{}'", key);
+                    pooled = createPooledClient();
+                    clients.put(key, pooled);
+                    registerPoolGauges("pool." + key.replace('.', '_'), pooled.getConnectionManager());
+                }
+            }
+        }
+        return pooled.getClient();
+    }
+
+    /**
+     * Get the shared non-blocking {@link HttpAsyncClient}, creating and starting it on first use.
+     *
+     * @return the non-blocking client
+     */
+    @Nonnull public HttpAsyncClient getHttpAsyncClient() {
+        ComponentSupport.ifNotInitializedThrowUninitializedComponentException(this);
+        ComponentSupport.ifDestroyedThrowDestroyedComponentException(this);
+
+        CloseableHttpAsyncClient client = asyncClient;
+        if (client == null) {
+            synchronized (this) {
+                client = asyncClient;
+                if (client == null) {
+                    log.debug("Creating non-blocking HTTP client for Duo API hosts");
+                    final PoolingNHttpClientConnectionManager connectionManager = createAsyncConnectionManager();
+                    client = createAsyncClient(connectionManager);
+                    client.start();
+                    asyncClient = client;
+                    registerPoolGauges("pool.async", connectionManager);
+                }
+            }
+        }
+        return client;
+    }
+
+    /** {@inheritDoc} */
+    @Override protected void doDestroy() {
+        for (final PooledClient pooled : clients.values()) {
+            try {
+                pooled.getClient().close();
+            } catch (final IOException e) {
+                log.warn("Error closing pooled Duo HTTP client", e);
+            }
+        }
+        clients.clear();
+
+        final CloseableHttpAsyncClient client = asyncClient;
+        if (client != null) {
+            try {
+                client.close();
+            } catch (final IOException e) {
+                log.warn("Error closing non-blocking Duo HTTP client", e);
+            }
+            asyncClient = null;
+        }
+
+        for (final String name : gaugeNames) {
+            DuoMetrics.remove(metricPrefix, name);
+        }
+        gaugeNames.clear();
+
+        super.doDestroy();
+    }
+
+    /**
+     * Build a pooled client for a single API host.
+     *
+     * @return the pooled client
+     */
+    @Nonnull protected PooledClient createPooledClient() {
+        final PoolingHttpClientConnectionManager connectionManager =
+                new PoolingHttpClientConnectionManager(connectionTimeToLive, TimeUnit.MILLISECONDS);
+        connectionManager.setMaxTotal(maxConnectionsPerHost);
+        connectionManager.setDefaultMaxPerRoute(maxConnectionsPerHost);
+        connectionManager.setValidateAfterInactivity((int) Math.min(connectionIdleTimeout, Integer.MAX_VALUE));
+
+        final RequestConfig requestConfig = RequestConfig.custom()
+                .setConnectTimeout(connectionTimeout)
+                .setSocketTimeout(socketTimeout)
+                .setConnectionRequestTimeout(connectionRequestTimeout)
+                .build();
+
+        final CloseableHttpClient client = HttpClientBuilder.create()
+                .setConnectionManager(connectionManager)
+                .setDefaultRequestConfig(requestConfig)
+                .setKeepAliveStrategy(new BoundedKeepAliveStrategy(connectionIdleTimeout))
+                .setRequestExecutor(new ConnectTimingRequestExecutor())
+                .evictExpiredConnections()
+                .evictIdleConnections(connectionIdleTimeout, TimeUnit.MILLISECONDS)
+                .disableCookieManagement()
+                .build();
+
+        return new PooledClient(client, connectionManager);
+    }
+
+    /**
+     * Build the connection manager of the non-blocking client.
+     *
+     * @return the connection manager
+     */
+    @Nonnull protected PoolingNHttpClientConnectionManager createAsyncConnectionManager() {
+        final IOReactorConfig reactorConfig = IOReactorConfig.custom()
+                .setIoThreadCount(ioThreadCount)
+                .setConnectTimeout(connectionTimeout)
+                .setSoTimeout(socketTimeout)
+                .setSoKeepAlive(true)
+                .build();
+
+        final PoolingNHttpClientConnectionManager connectionManager;
+        try {
+            connectionManager = new PoolingNHttpClientConnectionManager(new DefaultConnectingIOReactor(reactorConfig));
+        } catch (final IOReactorException e) {
+            throw new IllegalStateException("Unable to create I/O reactor for Duo HTTP client", e);
+        }
+        connectionManager.setMaxTotal(maxAsyncConnections);
+        connectionManager.setDefaultMaxPerRoute(maxConnectionsPerHost);
+        return connectionManager;
+    }
+
+    /**
+     * Build the non-blocking client shared by all API hosts.
+     *
+     * @param connectionManager the connection manager to use
+     *
+     * @return the non-blocking client, not yet started
+     */
+    @Nonnull protected CloseableHttpAsyncClient createAsyncClient(
+            @Nonnull final PoolingNHttpClientConnectionManager connectionManager) {
+        final RequestConfig requestConfig = RequestConfig.custom()
+                .setConnectTimeout(connectionTimeout)
+                .setSocketTimeout(socketTimeout)
+                .setConnectionRequestTimeout(connectionRequestTimeout)
+                .build();
+
+        return HttpAsyncClients.custom()
+                .setConnectionManager(connectionManager)
+                .setDefaultRequestConfig(requestConfig)
+                .setKeepAliveStrategy(new BoundedKeepAliveStrategy(connectionIdleTimeout))
+                .disableCookieManagement()
+                .build();
+    }
+
+    /**
+     * Expose the usage of a connection pool as gauges.
+     *
+     * @param name metric name of the pool, relative to the prefix
+     * @param pool the pool
+     */
+    private void registerPoolGauges(@Nonnull @NotEmpty final String name, @Nonnull final ConnPoolControl<?> pool) {
+        registerGauge(name + ".leased", new Gauge<Integer>() {
+            public Integer getValue() {
+                return pool.getTotalStats().getLeased();
+            }
+        });
+        registerGauge(name + ".pending", new Gauge<Integer>() {
+            public Integer getValue() {
+                return pool.getTotalStats().getPending();
+            }
+        });
+        registerGauge(name + ".available", new Gauge<Integer>() {
+            public Integer getValue() {
+                return pool.getTotalStats().getAvailable();
+            }
+        });
+        registerGauge(name + ".max", new Gauge<Integer>() {
+            public Integer getValue() {
+                return pool.getTotalStats().getMax();
+            }
+        });
+    }
+
+    /**
+     * Register a gauge and remember it for removal when the transport is destroyed.
+     *
+     * @param name metric name, relative to the prefix
+     * @param gauge the gauge
+     */
+    private void registerGauge(@Nonnull @NotEmpty final String name, @Nonnull final Gauge<?> gauge) {
+        DuoMetrics.registerGauge(metricPrefix, name, gauge);
+        gaugeNames.add(name);
+    }
+
+    /** A pooled client and its connection manager. */
+    protected static class PooledClient {
+
+        /** The client. */
+        @Nonnull private final CloseableHttpClient client;
+
+        /** The connection manager backing the client. */
+        @Nonnull private final PoolingHttpClientConnectionManager connectionManager;
+
+        /**
+         * Constructor.
+         *
+         * @param httpClient the client
+         * @param manager the connection manager backing the client
+         */
+        public PooledClient(@Nonnull final CloseableHttpClient httpClient,
+                @Nonnull final PoolingHttpClientConnectionManager manager) {
+            client = httpClient;
+            connectionManager = manager;
+        }
+
+        /**
+         * Get the client.
+         *
+         * @return the client
+         */
+        @Nonnull public CloseableHttpClient getClient() {
+            return client;
+        }
+
+        /**
+         * Get the connection manager backing the client.
+         *
+         * @return the connection manager
+         */
+        @Nonnull public PoolingHttpClientConnectionManager getConnectionManager() {
+            return connectionManager;
+        }
+    }
+
+    /**
+     * Keep-alive strategy honoring the server's Keep-Alive header but never keeping a connection longer than the idle
+     * timeout.
+     */
+    private static class BoundedKeepAliveStrategy implements ConnectionKeepAliveStrategy {
+
+        /** Upper bound in milliseconds. */
+        private final long maxKeepAlive;
+
+        /**
+         * Constructor.
+         *
+         * @param max upper bound in milliseconds
+         */
+        BoundedKeepAliveStrategy(final long max) {
+            maxKeepAlive = max;
+        }
+
+        /** {@inheritDoc} */
+        @Override public long getKeepAliveDuration(final HttpResponse response, final HttpContext context) {
+            final long duration = DefaultConnectionKeepAliveStrategy.INSTANCE.getKeepAliveDuration(response, context);
+            if (duration <= 0) {
+                return maxKeepAlive;
+            }
+            return Math.min(duration, maxKeepAlive);
+        }
+    }
+
+    /** Request executor marking the {@link DuoExchangeEvent} of an exchange once its connection is ready. */
+    private static class ConnectTimingRequestExecutor extends HttpRequestExecutor {
+
+        /** {@inheritDoc} */
+        @Override public HttpResponse execute(final HttpRequest request, final HttpClientConnection conn,
+                final HttpContext context) throws IOException, HttpException {
+            final Object event = context.getAttribute(DuoExchangeEvent.CONTEXT_ATTRIBUTE);
+            if (event instanceof DuoExchangeEvent) {
+                ((DuoExchangeEvent) event).connected();
+            }
+            return super.execute(request, conn, context);
+        }
+    }
+
+}
@@ -0,0 +1,316 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.umd.idm.shibboleth.idp.authn.duo.impl;
+
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+
+import com.codahale.metrics.Reservoir;
+import com.codahale.metrics.Snapshot;
+
+/**
+ * A {@link Reservoir} for latencies that records into fixed log-linear buckets, in the manner of an HDR histogram.
+ * 
+ * <p>
+ * Values are bucketed at microsecond resolution with 16 linear sub-buckets per power of two, so quantiles are within
+ * about 3% of the recorded value. Recording is a single atomic increment with no locks and no allocation, unlike the
+ * stock reservoirs. Snapshots cover the current and the previous window, so they reflect recent behavior rather than
+ * the whole lifetime of the process. Increments racing with a window rotation may be lost, which is acceptable for
+ * monitoring.
+ * </p>
+ */
+@ThreadSafe
+public class DuoLatencyReservoir implements Reservoir {
+
+    /** log2 of the number of linear sub-buckets per power of two. */
+    private static final int SUB_BUCKET_BITS = 4;
+
+    /** Number of linear sub-buckets per power of two. */
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    /** Largest recorded value in microseconds; larger values are clamped. */
+    private static final long MAX_MICROS = (1L << 40) - 1;
+
+    /** Number of buckets. */
+    private static final int BUCKETS = bucketIndex(MAX_MICROS) + 1;
+
+    /** Default window length. */
+    private static final long DEFAULT_WINDOW = TimeUnit.MINUTES.toNanos(1);
+
+    /** Window length in nanoseconds. */
+    private final long windowLength;
+
+    /** The window being recorded into. */
+    @Nonnull private final AtomicReference<Window> current;
+
+    /** Constructor. */
+    public DuoLatencyReservoir() {
+        this(DEFAULT_WINDOW, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Constructor.
+     * 
+     * @param window length of a window
+     * @param unit unit of the window length
+     */
+    public DuoLatencyReservoir(final long window, @Nonnull final TimeUnit unit) {
+        windowLength = unit.toNanos(window);
+        current = new AtomicReference<>(new Window(System.nanoTime(), null));
+    }
+
+    /** {@inheritDoc} */
+    @Override public int size() {
+        return (int) Math.min(getSnapshot().size(), Integer.MAX_VALUE);
+    }
+
+    /** {@inheritDoc} */
+    @Override public void update(final long nanos) {
+        currentWindow(System.nanoTime()).counts.incrementAndGet(bucketIndex(Math.max(0, nanos) / 1000));
+    }
+
+    /** {@inheritDoc} */
+    @Override public Snapshot getSnapshot() {
+        final long now = System.nanoTime();
+        final Window window = currentWindow(now);
+        final long[] counts = new long[BUCKETS];
+        window.addTo(counts);
+        final Window previous = window.previous;
+        if (previous != null && now - previous.start < 2 * windowLength) {
+            previous.addTo(counts);
+        }
+        return new BucketSnapshot(counts);
+    }
+
+    /**
+     * Get the window to record into, rotating the windows if the current one has expired.
+     * 
+     * @param now current {@link System#nanoTime()}
+     * 
+     * @return the current window
+     */
+    @Nonnull private Window currentWindow(final long now) {
+        final Window window = current.get();
+        if (now - window.start < windowLength) {
+            return window;
+        }
+        final Window next = new Window(now, window);
+        if (current.compareAndSet(window, next)) {
+            // keep only one window of history
+            window.previous = null;
+            return next;
+        }
+        return current.get();
+    }
+
+    /**
+     * Get the bucket for a value.
+     * 
+     * @param micros value in microseconds
+     * 
+     * @return the bucket index
+     */
+    private static int bucketIndex(final long micros) {
+        final long value = Math.min(micros, MAX_MICROS);
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        final int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        return (shift + 1) * SUB_BUCKETS + (int) (value >>> shift) - SUB_BUCKETS;
+    }
+
+    /**
+     * Get the value representing a bucket, the midpoint of its range.
+     * 
+     * @param index the bucket index
+     * 
+     * @return the value in nanoseconds
+     */
+    private static long bucketValue(final int index) {
+        if (index < SUB_BUCKETS) {
+            return index * 1000L;
+        }
+        final int shift = index / SUB_BUCKETS - 1;
+        final long lower = (long) (index % SUB_BUCKETS + SUB_BUCKETS) << shift;
+        return (lower + ((1L << shift) - 1) / 2) * 1000L;
+    }
+
+    /** Bucket counts for one window. */
+    private static final class Window {
+
+        /** {@link System#nanoTime()} at which the window started. */
+        private final long start;
+
+        /** Bucket counts. */
+        @Nonnull private final AtomicLongArray counts;
+
+        /** The previous window. */
+        @Nullable private volatile Window previous;
+
+        /**
+         * Constructor.
+         * 
+         * @param startTime {@link System#nanoTime()} at which the window started
+         * @param previousWindow the previous window
+         */
+        Window(final long startTime, @Nullable final Window previousWindow) {
+            start = startTime;
+            counts = new AtomicLongArray(BUCKETS);
+            previous = previousWindow;
+        }
+
+        /**
+         * Add the window's counts to an array.
+         * 
+         * @param totals the array to add to
+         */
+        void addTo(@Nonnull final long[] totals) {
+            for (int i = 0; i < BUCKETS; i++) {
+                totals[i] += counts.get(i);
+            }
+        }
+    }
+
+    /** A snapshot computed from bucket counts. */
+    private static final class BucketSnapshot extends Snapshot {
+
+        /** Bucket counts. */
+        @Nonnull private final long[] counts;
+
+        /** Total count. */
+        private final long total;
+
+        /**
+         * Constructor.
+         * 
+         * @param bucketCounts bucket counts
+         */
+        BucketSnapshot(@Nonnull final long[] bucketCounts) {
+            counts = bucketCounts;
+            long sum = 0;
+            for (final long count : counts) {
+                sum += count;
+            }
+            total = sum;
+        }
+
+        /** {@inheritDoc} */
+        @Override public double getValue(final double quantile) {
+            if (quantile < 0.0 || quantile > 1.0 || Double.isNaN(quantile)) {
+                throw new IllegalArgumentException(quantile + " is not in [0..1]");
+            }
+            if (total == 0) {
+                return 0.0;
+            }
+            final long rank = Math.max(1, (long) Math.ceil(quantile * total));
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank) {
+                    return bucketValue(i);
+                }
+            }
+            return getMax();
+        }
+
+        /** {@inheritDoc} */
+        @Override public long[] getValues() {
+            final long[] values = new long[(int) Math.min(total, Integer.MAX_VALUE)];
+            int n = 0;
+            for (int i = 0; i < counts.length && n < values.length; i++) {
+                final long value = bucketValue(i);
+                for (long c = 0; c < counts[i] && n < values.length; c++) {
+                    values[n++] = value;
+                }
+            }
+            return values;
+        }
+
+        /** {@inheritDoc} */
+        @Override public int size() {
+            return (int) Math.min(total, Integer.MAX_VALUE);
+        }
+
+        /** {@inheritDoc} */
+        @Override public long getMax() {
+            for (int i = counts.length - 1; i >= 0; i--) {
+                if (counts[i] > 0) {
+                    return bucketValue(i);
+                }
+            }
+            return 0;
+        }
+
+        /** {@inheritDoc} */
+        @Override public double getMean() {
+            if (total == 0) {
+                return 0.0;
+            }
+            double sum = 0;
+            for (int i = 0; i < counts.length; i++) {
+                sum += (double) counts[i] * bucketValue(i);
+            }
+            return sum / total;
+        }
+
+        /** {@inheritDoc} */
+        @Override public long getMin() {
+            for (int i = 0; i < counts.length; i++) {
+                if (counts[i] > 0) {
+                    return bucketValue(i);
+                }
+            }
+            return 0;
+        }
+
+        /** {@inheritDoc} */
+        @Override public double getStdDev() {
+            if (total <= 1) {
+                return 0.0;
+            }
+            final double mean = getMean();
+            double variance = 0;
+            for (int i = 0; i < counts.length; i++) {
+                final double diff = bucketValue(i) - mean;
+                variance += counts[i] * diff * diff;
+            }
+            return Math.sqrt(variance / (total - 1));
+        }
+
+        /** {@inheritDoc} */
+        @Override public void dump(final OutputStream output) {
+            try (final PrintWriter out =
+                    new PrintWriter(new OutputStreamWriter(output, StandardCharsets.UTF_8))) {
+                for (int i = 0; i < counts.length; i++) {
+                    if (counts[i] > 0) {
+                        out.printf("%d\t%d%n", bucketValue(i), counts[i]);
+                    }
+                }
+            }
+        }
+    }
+
+}
@@ -0,0 +1,247 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.umd.idm.shibboleth.idp.authn.duo.impl;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.opensaml.core.metrics.MetricsSupport;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+
+import net.shibboleth.utilities.java.support.annotation.constraint.NotEmpty;
+
+/**
+ * Helpers for recording Duo metrics into the IdP's metric registry. All methods are no-ops when no prefix is set or
+ * no registry is configured.
+ * 
+ * <p>
+ * Timers are backed by a {@link DuoLatencyReservoir}, so recording never takes a lock. They are cached per registry,
+ * and in-flight gauges are registered with each registry the first time it is used, so metrics follow the registry
+ * if it is replaced.
+ * </p>
+ */
+public final class DuoMetrics {
+
+    /** Default prefix for Duo metrics. */
+    @Nonnull @NotEmpty public static final String DEFAULT_PREFIX = "net.shibboleth.idp.authn.duo";
+
+    /** Outcome recorded for calls that failed. */
+    @Nonnull @NotEmpty public static final String OUTCOME_ERROR = "error";
+
+    /** In-flight counters by full name. */
+    @Nonnull private static final ConcurrentMap<String, AtomicInteger> COUNTERS = new ConcurrentHashMap<>();
+
+    /** In-flight counters exposed as gauges, by full gauge name. */
+    @Nonnull private static final ConcurrentMap<String, AtomicInteger> GAUGES = new ConcurrentHashMap<>();
+
+    /** Timers by full name, per registry; a registry seen for the first time gets the in-flight gauges. */
+    @Nonnull private static final LoadingCache<MetricRegistry, ConcurrentMap<String, Timer>> TIMERS =
+            CacheBuilder.newBuilder().weakKeys().build(new CacheLoader<MetricRegistry, ConcurrentMap<String, Timer>>() {
+                public ConcurrentMap<String, Timer> load(final MetricRegistry registry) {
+                    for (final Map.Entry<String, AtomicInteger> gauge : GAUGES.entrySet()) {
+                        register(registry, gauge.getKey(), gauge.getValue());
+                    }
+                    return new ConcurrentHashMap<>();
+                }
+            });
+
+    /** Constructor. */
+    private DuoMetrics() {
+    }
+
+    /**
+     * Record an elapsed time.
+     * 
+     * @param prefix metric name prefix, may be null
+     * @param name metric name, relative to the prefix
+     * @param nanos elapsed time in nanoseconds
+     */
+    public static void recordTime(@Nullable final String prefix, @Nonnull @NotEmpty final String name,
+            final long nanos) {
+        final MetricRegistry registry = getRegistry(prefix);
+        if (registry != null) {
+            getTimer(registry, MetricRegistry.name(prefix, name)).update(nanos, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    /**
+     * Record an elapsed time under a name built from several parts, e.g. phase, factor and outcome.
+     * 
+     * @param prefix metric name prefix, may be null
+     * @param nanos elapsed time in nanoseconds
+     * @param names metric name parts, relative to the prefix; null parts are skipped
+     */
+    public static void recordTime(@Nullable final String prefix, final long nanos, @Nonnull final String... names) {
+        final MetricRegistry registry = getRegistry(prefix);
+        if (registry != null) {
+            getTimer(registry, MetricRegistry.name(prefix, names)).update(nanos, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    /**
+     * Increment a counter.
+     * 
+     * @param prefix metric name prefix, may be null
+     * @param name metric name, relative to the prefix
+     */
+    public static void increment(@Nullable final String prefix, @Nonnull @NotEmpty final String name) {
+        final MetricRegistry registry = getRegistry(prefix);
+        if (registry != null) {
+            registry.counter(MetricRegistry.name(prefix, name)).inc();
+        }
+    }
+
+    /**
+     * Register a gauge, replacing any gauge of the same name registered by an earlier component.
+     * 
+     * @param prefix metric name prefix, may be null
+     * @param name metric name, relative to the prefix
+     * @param gauge the gauge
+     */
+    public static void registerGauge(@Nullable final String prefix, @Nonnull @NotEmpty final String name,
+            @Nonnull final Gauge<?> gauge) {
+        final MetricRegistry registry = getRegistry(prefix);
+        if (registry != null) {
+            final String fullName = MetricRegistry.name(prefix, name);
+            registry.remove(fullName);
+            try {
+                registry.register(fullName, gauge);
+            } catch (final IllegalArgumentException e) {
+                // registered concurrently, which is just as good
+            }
+        }
+    }
+
+    /**
+     * Remove a metric.
+     * 
+     * @param prefix metric name prefix, may be null
+     * @param name metric name, relative to the prefix
+     */
+    public static void remove(@Nullable final String prefix, @Nonnull @NotEmpty final String name) {
+        final MetricRegistry registry = getRegistry(prefix);
+        if (registry != null) {
+            registry.remove(MetricRegistry.name(prefix, name));
+        }
+    }
+
+    /**
+     * Get a counter of calls in progress shared by every component using the same prefix and name, exposed as a
+     * gauge. Unlike a metric, the counter works without a registry, so it must be decremented on every path.
+     * 
+     * @param prefix metric name prefix, may be null
+     * @param name metric name, relative to the prefix
+     * 
+     * @return the counter
+     */
+    @Nonnull public static AtomicInteger inFlight(@Nullable final String prefix, @Nonnull @NotEmpty final String name) {
+        final String fullName = MetricRegistry.name(prefix, name);
+        AtomicInteger counter = COUNTERS.get(fullName);
+        if (counter == null) {
+            final AtomicInteger created = new AtomicInteger();
+            counter = COUNTERS.putIfAbsent(fullName, created);
+            if (counter == null) {
+                counter = created;
+            }
+        }
+        if (prefix != null && GAUGES.putIfAbsent(fullName, counter) == null) {
+            // registries seen from now on get the gauge when first used; the current one, if any, gets it here
+            final MetricRegistry registry = getRegistry(prefix);
+            if (registry != null) {
+                register(registry, fullName, counter);
+            }
+        }
+        return counter;
+    }
+
+    /**
+     * Register an in-flight counter as a gauge, replacing any gauge of the same name.
+     * 
+     * @param registry the registry
+     * @param fullName the full metric name
+     * @param counter the counter
+     */
+    private static void register(@Nonnull final MetricRegistry registry, @Nonnull @NotEmpty final String fullName,
+            @Nonnull final AtomicInteger counter) {
+        registry.remove(fullName);
+        try {
+            registry.register(fullName, new Gauge<Integer>() {
+                public Integer getValue() {
+                    return counter.get();
+                }
+            });
+        } catch (final IllegalArgumentException e) {
+            // registered concurrently, which is just as good
+        }
+    }
+
+    /**
+     * Get a timer backed by a {@link DuoLatencyReservoir}, registering it on first use.
+     * 
+     * @param registry the registry
+     * @param fullName the full metric name
+     * 
+     * @return the timer
+     */
+    @Nonnull private static Timer getTimer(@Nonnull final MetricRegistry registry,
+            @Nonnull @NotEmpty final String fullName) {
+        final ConcurrentMap<String, Timer> timers = TIMERS.getUnchecked(registry);
+        Timer timer = timers.get(fullName);
+        if (timer == null) {
+            try {
+                timer = registry.register(fullName, new Timer(new DuoLatencyReservoir()));
+            } catch (final IllegalArgumentException e) {
+                // already registered, by another thread or before this class cached it
+                timer = registry.timer(fullName);
+            }
+            timers.put(fullName, timer);
+        }
+        return timer;
+    }
+
+    /**
+     * Get the metric registry to record into.
+     * 
+     * @param prefix metric name prefix, may be null
+     * 
+     * @return the registry, or null if nothing should be recorded
+     */
+    @Nullable private static MetricRegistry getRegistry(@Nullable final String prefix) {
+        if (prefix == null) {
+            return null;
+        }
+        final MetricRegistry registry = MetricsSupport.getMetricRegistry();
+        if (registry != null) {
+            // makes sure a new registry has the in-flight gauges
+            TIMERS.getUnchecked(registry);
+        }
+        return registry;
+    }
+
+}
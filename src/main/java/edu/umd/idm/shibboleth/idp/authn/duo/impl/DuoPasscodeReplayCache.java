@@ -0,0 +1,217 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.umd.idm.shibboleth.idp.authn.duo.impl;
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.io.BaseEncoding;
+
+import net.shibboleth.idp.authn.duo.DuoIntegration;
+import net.shibboleth.utilities.java.support.annotation.constraint.NotEmpty;
+import net.shibboleth.utilities.java.support.component.AbstractDestructableInitializableComponent;
+import net.shibboleth.utilities.java.support.component.ComponentInitializationException;
+import net.shibboleth.utilities.java.support.component.ComponentSupport;
+import net.shibboleth.utilities.java.support.logic.Constraint;
+
+/**
+ * Remembers the Duo AuthApi /auth response to a passcode for a short window, so that a client resubmitting the same
+ * passcode gets the original result instead of a second /auth call, which Duo would reject because the passcode has
+ * already been used.
+ * 
+ * <p>
+ * Entries are keyed by an HMAC over the integration key, username, factor and passcode, under a random key generated
+ * when the cache is initialized, so no passcode is held in plaintext and the keys are useless outside this process.
+ * Hits are counted under the metric prefix as "passcode.replay.hit".
+ * </p>
+ */
+@ThreadSafe
+public class DuoPasscodeReplayCache extends AbstractDestructableInitializableComponent {
+
+    /** HMAC algorithm used for the keys. */
+    @Nonnull @NotEmpty private static final String HMAC_ALGORITHM = "HmacSHA256";
+
+    /** Size of the random HMAC key, in bytes. */
+    private static final int KEY_SIZE = 32;
+
+    /** Time a response is remembered, in milliseconds. */
+    private long window;
+
+    /** Maximum number of entries. */
+    private long maxSize;
+
+    /** Metric name prefix. */
+    @Nullable private String metricPrefix;
+
+    /** The entries, keyed by HMAC. */
+    @Nullable private Cache<String, DuoAuthResponse> entries;
+
+    /** Initialized Mac cloned for each thread. */
+    @Nullable private Mac prototype;
+
+    /** Per-thread Mac. */
+    @Nullable private ThreadLocal<Mac> macs;
+
+    /** Constructor. */
+    public DuoPasscodeReplayCache() {
+        window = TimeUnit.MINUTES.toMillis(2);
+        maxSize = 10000;
+        metricPrefix = DuoMetrics.DEFAULT_PREFIX;
+    }
+
+    /**
+     * Set the time a response is remembered.
+     * 
+     * @param time time in milliseconds
+     */
+    public void setWindow(final long time) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+
+        window = Constraint.isGreaterThan(0, time, "Window must be greater than 0");
+    }
+
+    /**
+     * Set the maximum number of entries.
+     * 
+     * @param size maximum number of entries
+     */
+    public void setMaxSize(final long size) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+
+        maxSize = Constraint.isGreaterThan(0, size, "Maximum size must be greater than 0");
+    }
+
+    /**
+     * Set the metric name prefix, or null to record no metrics.
+     * 
+     * @param name the metric name prefix
+     */
+    public void setMetricName(@Nullable final String name) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+
+        metricPrefix = name;
+    }
+
+    /** {@inheritDoc} */
+    @Override protected void doInitialize() throws ComponentInitializationException {
+        super.doInitialize();
+
+        final byte[] key = new byte[KEY_SIZE];
+        new SecureRandom().nextBytes(key);
+        final SecretKeySpec keySpec = new SecretKeySpec(key, HMAC_ALGORITHM);
+        try {
+            prototype = Mac.getInstance(HMAC_ALGORITHM);
+            prototype.init(keySpec);
+        } catch (final GeneralSecurityException e) {
+            throw new ComponentInitializationException("Unable to initialize " + HMAC_ALGORITHM, e);
+        }
+
+        macs = new ThreadLocal<Mac>() {
+            @Override protected Mac initialValue() {
+                try {
+                    return (Mac) prototype.clone();
+                } catch (final CloneNotSupportedException e) {
+                    try {
+                        final Mac mac = Mac.getInstance(HMAC_ALGORITHM);
+                        mac.init(keySpec);
+                        return mac;
+                    } catch (final GeneralSecurityException ex) {
+                        // cannot happen, the prototype was initialized with the same key
+                        throw new IllegalStateException(ex);
+                    }
+                }
+            }
+        };
+
+        entries = CacheBuilder.newBuilder()
+                .maximumSize(maxSize)
+                .expireAfterWrite(window, TimeUnit.MILLISECONDS)
+                .build();
+    }
+
+    /** {@inheritDoc} */
+    @Override protected void doDestroy() {
+        if (entries != null) {
+            entries.invalidateAll();
+        }
+
+        super.doDestroy();
+    }
+
+    /**
+     * Get the response remembered for a passcode.
+     * 
+     * @param duo the Duo integration
+     * @param username the username
+     * @param factor the factor
+     * @param passcode the passcode
+     * 
+     * @return the response to the first submission, or null
+     */
+    @Nullable public DuoAuthResponse get(@Nonnull final DuoIntegration duo, @Nonnull @NotEmpty final String username,
+            @Nullable final String factor, @Nonnull @NotEmpty final String passcode) {
+        final DuoAuthResponse response = entries.getIfPresent(key(duo, username, factor, passcode));
+        if (response != null) {
+            DuoMetrics.increment(metricPrefix, "passcode.replay.hit");
+        }
+        return response;
+    }
+
+    /**
+     * Remember the response to a passcode.
+     * 
+     * @param duo the Duo integration
+     * @param username the username
+     * @param factor the factor
+     * @param passcode the passcode
+     * @param response the response
+     */
+    public void put(@Nonnull final DuoIntegration duo, @Nonnull @NotEmpty final String username,
+            @Nullable final String factor, @Nonnull @NotEmpty final String passcode,
+            @Nullable final DuoAuthResponse response) {
+        if (response != null && response.getResult() != null) {
+            entries.put(key(duo, username, factor, passcode), response);
+        }
+    }
+
+    /**
+     * Build the key of a submission.
+     * 
+     * @param duo the Duo integration
+     * @param username the username
+     * @param factor the factor
+     * @param passcode the passcode
+     * 
+     * @return the base64 encoded HMAC
+     */
+    @Nonnull private String key(@Nonnull final DuoIntegration duo, @Nonnull final String username,
+            @Nullable final String factor, @Nonnull final String passcode) {
+        final String binding = duo.getIntegrationKey() + "\n" + username + "\n" + factor + "\n" + passcode;
+        return BaseEncoding.base64().encode(macs.get().doFinal(binding.getBytes(StandardCharsets.UTF_8)));
+    }
+
+}
@@ -17,34 +17,84 @@
 
 package edu.umd.idm.shibboleth.idp.authn.duo.impl;
 
-import java.net.URI;
 import java.security.GeneralSecurityException;
+import java.util.concurrent.Callable;
 
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 
-//import javax.json.JsonObject;
-import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
 
 import org.apache.http.client.methods.HttpUriRequest;
-import org.apache.http.client.methods.RequestBuilder;
-import org.apache.http.client.utils.URIBuilder;
 
 import edu.umd.idm.shibboleth.idp.authn.context.DuoAuthenticationContext;
+import edu.umd.idm.shibboleth.idp.authn.duo.DuoAuthApi;
+import edu.umd.idm.shibboleth.idp.authn.duo.DuoRateLimitedException;
+import edu.umd.idm.shibboleth.idp.authn.duo.impl.DuoRequestEncoder.Endpoint;
 
 import net.shibboleth.idp.authn.duo.DuoIntegration;
+import net.shibboleth.utilities.java.support.annotation.constraint.NotEmpty;
+import net.shibboleth.utilities.java.support.component.ComponentInitializationException;
+import net.shibboleth.utilities.java.support.component.ComponentSupport;
 
 /**
  * Implementation of the the Duo AuthApi /v2/preauth endpoint.
+ * 
+ * <p>
+ * If a {@link DuoPreauthCache} is set, a cached response for the integration and username is returned without
+ * calling the endpoint, and fresh responses are added to it. Entries about to expire are refreshed through the
+ * same endpoint in the background.
+ * </p>
  */
 public class DuoPreauthAuthenticator extends AbstractDuoAuthenticator {
 
-    /** a TypeReference for the response generated by the endpoint. */
-    @Nonnull private final TypeReference<DuoResponseWrapper<DuoPreauthResponse>> wrapperTypeRef;
+    /** a decoder for the response generated by the endpoint. */
+    @Nullable private DuoResponseDecoder<DuoPreauthResponse> decoder;
+
+    /** a decoder for the response generated by the endpoint which skips the device list. */
+    @Nullable private DuoResponseDecoder<DuoPreauthResponse> decoderWithoutDevices;
+
+    /** Optional cache of responses. */
+    @Nullable private DuoPreauthCache responseCache;
 
     /** Constructor. */
     public DuoPreauthAuthenticator() {
         super();
-        wrapperTypeRef = new TypeReference<DuoResponseWrapper<DuoPreauthResponse>>() {};
+    }
+
+    /**
+     * Set the cache of responses consulted before calling the endpoint.
+     * 
+     * @param cache the response cache
+     */
+    public void setResponseCache(@Nullable final DuoPreauthCache cache) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+
+        responseCache = cache;
+    }
+
+    /**
+     * Remove the cached response for a user, if there is a response cache, e.g. after Duo denied the user.
+     * 
+     * @param duo the Duo integration
+     * @param username the username
+     */
+    public void invalidateCachedResponse(@Nonnull final DuoIntegration duo, @Nonnull @NotEmpty final String username) {
+        if (responseCache != null) {
+            responseCache.invalidate(duo, username);
+        }
+    }
+
+    /** {@inheritDoc} */
+    @Override protected void doInitialize() throws ComponentInitializationException {
+        super.doInitialize();
+
+        decoder = new DuoResponseDecoder<>(getObjectMapper(), DuoPreauthResponse.class);
+        decoderWithoutDevices =
+                new DuoResponseDecoder<>(getObjectMapper(), DuoPreauthResponse.class, IgnoreDevicesMixIn.class);
     }
 
     /**
@@ -59,20 +109,129 @@ public class DuoPreauthAuthenticator extends AbstractDuoAuthenticator {
      */
     @Override public DuoPreauthResponse authenticate(@Nonnull final DuoAuthenticationContext duoContext,
             @Nonnull final DuoIntegration duoIntegration) throws GeneralSecurityException {
+        final DuoResponseDecoder<DuoPreauthResponse> selected = selectDecoder(duoContext);
+        if (responseCache != null) {
+            final DuoPreauthResponse cached = responseCache.get(duoIntegration, duoContext.getUsername(),
+                    selected == decoder, createLoader(duoContext, duoIntegration));
+            if (cached != null) {
+                return cached;
+            }
+        }
         try {
-            // prepare the request
-            final URI uri = new URIBuilder().setScheme("https").setHost(duoIntegration.getAPIHost())
-                    .setPath("/auth/v2/preauth").build();
-            final RequestBuilder rb =
-                    RequestBuilder.post().setUri(uri).addParameter("username", duoContext.getUsername());
-            DuoSupport.signRequest(rb, duoIntegration);
-            final HttpUriRequest request = rb.build();
-
-            // do it
-            return doApiRequest(request, wrapperTypeRef).getResponse();
+            // do it, unless an identical request is already in flight
+            return coalesce(Endpoint.PREAUTH, duoIntegration,
+                    new String[] {duoContext.getUsername(), selected == decoder ? "devices" : null},
+                    new Callable<DuoPreauthResponse>() {
+                        public DuoPreauthResponse call() throws Exception {
+                            final DuoPreauthResponse response = doApiRequest(buildRequest(duoContext, duoIntegration),
+                                    selected, duoContext.getTiming(), false);
+                            if (responseCache != null) {
+                                responseCache.put(duoIntegration, duoContext.getUsername(), selected == decoder,
+                                        response);
+                            }
+                            return response;
+                        }
+                    });
+        } catch (final DuoRateLimitedException ex) {
+            throw ex;
         } catch (final Exception ex) {
             throw new GeneralSecurityException("Unable to perform Duo AuthAPI auth request: " + ex.getMessage());
         }
     }
 
+    /**
+     * Start an authentication action via the Duo AuthApi /preauth endpoint without waiting for its result.
+     * 
+     * @param duoContext Duo authentication context to use
+     * @param duoIntegration Duo integration to use
+     * 
+     * @return a future {@link DuoPreauthResponse}
+     */
+    @Override @Nonnull public ListenableFuture<DuoPreauthResponse> authenticateAsync(
+            @Nonnull final DuoAuthenticationContext duoContext, @Nonnull final DuoIntegration duoIntegration) {
+        final DuoResponseDecoder<DuoPreauthResponse> selected = selectDecoder(duoContext);
+        final String username = duoContext.getUsername();
+        if (responseCache != null) {
+            final DuoPreauthResponse cached = responseCache.get(duoIntegration, username, selected == decoder,
+                    createLoader(duoContext, duoIntegration));
+            if (cached != null) {
+                return Futures.immediateFuture(cached);
+            }
+        }
+        try {
+            final ListenableFuture<DuoPreauthResponse> future =
+                    doApiRequestAsync(buildRequest(duoContext, duoIntegration), selected);
+            if (responseCache != null) {
+                Futures.addCallback(future, new FutureCallback<DuoPreauthResponse>() {
+                    public void onSuccess(final DuoPreauthResponse response) {
+                        responseCache.put(duoIntegration, username, selected == decoder, response);
+                    }
+
+                    public void onFailure(final Throwable t) {
+                        // failures are not cached
+                    }
+                });
+            }
+            return future;
+        } catch (final Exception ex) {
+            return Futures.immediateFailedFuture(
+                    new GeneralSecurityException("Unable to perform Duo AuthAPI auth request: " + ex.getMessage()));
+        }
+    }
+
+    /**
+     * Select the decoder for a request. The device list is only needed when the factor or device is chosen
+     * explicitly; with "auto" it is skipped rather than bound.
+     * 
+     * @param duoContext Duo authentication context to use
+     * 
+     * @return the decoder
+     */
+    @Nonnull protected DuoResponseDecoder<DuoPreauthResponse> selectDecoder(
+            @Nonnull final DuoAuthenticationContext duoContext) {
+        if (DuoAuthApi.DUO_FACTOR_AUTO.equals(duoContext.getFactor())
+                && (duoContext.getDevice() == null || DuoAuthApi.DUO_DEVICE_AUTO.equals(duoContext.getDevice()))) {
+            return decoderWithoutDevices;
+        }
+        return decoder;
+    }
+
+    /**
+     * Create the loader the response cache uses to refresh an entry in the background.
+     * 
+     * @param duoContext Duo authentication context to use
+     * @param duoIntegration Duo integration to use
+     * 
+     * @return the loader
+     */
+    @Nonnull private DuoPreauthCache.Loader createLoader(@Nonnull final DuoAuthenticationContext duoContext,
+            @Nonnull final DuoIntegration duoIntegration) {
+        return new DuoPreauthCache.Loader() {
+            public DuoPreauthResponse load(final boolean withDevices) throws Exception {
+                return doApiRequest(buildRequest(duoContext, duoIntegration),
+                        withDevices ? decoder : decoderWithoutDevices);
+            }
+        };
+    }
+
+    /**
+     * Build the signed request for the Duo AuthApi /preauth endpoint.
+     * 
+     * @param duoContext Duo authentication context to use
+     * @param duoIntegration Duo integration to use
+     * 
+     * @return the signed request
+     * 
+     * @throws Exception if the request cannot be built or signed
+     */
+    @Nonnull protected HttpUriRequest buildRequest(@Nonnull final DuoAuthenticationContext duoContext,
+            @Nonnull final DuoIntegration duoIntegration) throws Exception {
+        return post(duoIntegration, Endpoint.PREAUTH, "username", duoContext.getUsername());
+    }
+
+    /** Jackson mix-in skipping the device list of a preauth response. */
+    @JsonIgnoreProperties(value = {"devices"}, ignoreUnknown = true)
+    private abstract static class IgnoreDevicesMixIn {
+    }
+
 }
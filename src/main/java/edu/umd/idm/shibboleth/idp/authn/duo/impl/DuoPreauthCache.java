@@ -0,0 +1,459 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.umd.idm.shibboleth.idp.authn.duo.impl;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+
+import com.codahale.metrics.Gauge;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import edu.umd.idm.shibboleth.idp.authn.duo.DuoAuthApi;
+import net.shibboleth.idp.authn.duo.DuoIntegration;
+import net.shibboleth.utilities.java.support.annotation.constraint.NotEmpty;
+import net.shibboleth.utilities.java.support.component.AbstractDestructableInitializableComponent;
+import net.shibboleth.utilities.java.support.component.ComponentInitializationException;
+import net.shibboleth.utilities.java.support.component.ComponentSupport;
+import net.shibboleth.utilities.java.support.logic.Constraint;
+
+/**
+ * A bounded cache of Duo AuthApi /preauth responses, keyed by integration key and username.
+ * 
+ * <p>
+ * Each response is kept for the time-to-live of its result ("auth", "allow", "deny" or "enroll"); responses with any
+ * other result are not cached, and a time-to-live of 0 disables caching for that result. The least recently used
+ * entries are evicted once the cache is full. A response decoded without its device list only satisfies lookups
+ * that do not need the devices.
+ * </p>
+ * 
+ * <p>
+ * When a lookup supplies a {@link Loader}, an entry read within the refresh-ahead window before its expiry is
+ * revalidated in the background, and an expired entry keeps being served for a grace period while it is revalidated.
+ * Each entry is refreshed by at most one task at a time, and refreshes run on a small pool with a bounded queue;
+ * refreshes that do not fit are skipped, so they cannot flood the Duo API host. A refreshed response replaces the
+ * entry, or removes it if its result is not cacheable.
+ * </p>
+ * 
+ * <p>
+ * Hits and misses are counted under the metric prefix as "preauth.cache.hit" and "preauth.cache.miss", and the
+ * number of entries is exposed as "preauth.cache.size". Stale hits are counted as "preauth.cache.stale", and
+ * refreshes as "preauth.cache.refresh", "preauth.cache.refresh.skipped" and "preauth.cache.refresh.error".
+ * </p>
+ */
+@ThreadSafe
+public class DuoPreauthCache extends AbstractDestructableInitializableComponent {
+
+    /** Reloads a response in the background. */
+    public interface Loader {
+
+        /**
+         * Call the /preauth endpoint again.
+         * 
+         * @param withDevices whether the response must include the device list
+         * 
+         * @return the response
+         * 
+         * @throws Exception if the call fails
+         */
+        @Nullable DuoPreauthResponse load(boolean withDevices) throws Exception;
+    }
+
+    /** Class logger. */
+    @Nonnull private final Logger log = LoggerFactory.getLogger(DuoPreauthCache.class);
+
+    /** Time-to-live of "auth" results, in milliseconds. */
+    private long authTTL;
+
+    /** Time-to-live of "allow" results, in milliseconds. */
+    private long allowTTL;
+
+    /** Time-to-live of "deny" results, in milliseconds. */
+    private long denyTTL;
+
+    /** Time-to-live of "enroll" results, in milliseconds. */
+    private long enrollTTL;
+
+    /** Maximum number of entries. */
+    private long maxSize;
+
+    /** Time before expiry from which a read entry is refreshed, in milliseconds. */
+    private long refreshAhead;
+
+    /** Time after expiry during which an entry is still served while it is refreshed, in milliseconds. */
+    private long staleGrace;
+
+    /** Maximum number of concurrent refreshes. */
+    private int maxRefreshes;
+
+    /** Maximum number of queued refreshes. */
+    private int refreshQueueSize;
+
+    /** Pool running the refreshes. */
+    @Nullable private ThreadPoolExecutor refreshExecutor;
+
+    /** Metric name prefix. */
+    @Nullable private String metricPrefix;
+
+    /** The entries. */
+    @Nullable private Cache<String, Entry> entries;
+
+    /** Constructor. */
+    public DuoPreauthCache() {
+        authTTL = TimeUnit.MINUTES.toMillis(5);
+        allowTTL = TimeUnit.MINUTES.toMillis(1);
+        denyTTL = TimeUnit.MINUTES.toMillis(1);
+        enrollTTL = TimeUnit.MINUTES.toMillis(1);
+        maxSize = 10000;
+        refreshAhead = TimeUnit.SECONDS.toMillis(10);
+        staleGrace = TimeUnit.SECONDS.toMillis(10);
+        maxRefreshes = 2;
+        refreshQueueSize = 100;
+        metricPrefix = DuoMetrics.DEFAULT_PREFIX;
+    }
+
+    /**
+     * Set the time-to-live of "auth" results.
+     * 
+     * @param ttl time-to-live in milliseconds, 0 to not cache them
+     */
+    public void setAuthTTL(final long ttl) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+
+        authTTL = Constraint.isGreaterThanOrEqual(0, ttl, "TTL cannot be negative");
+    }
+
+    /**
+     * Set the time-to-live of "allow" (bypass) results.
+     * 
+     * @param ttl time-to-live in milliseconds, 0 to not cache them
+     */
+    public void setAllowTTL(final long ttl) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+
+        allowTTL = Constraint.isGreaterThanOrEqual(0, ttl, "TTL cannot be negative");
+    }
+
+    /**
+     * Set the time-to-live of "deny" results.
+     * 
+     * @param ttl time-to-live in milliseconds, 0 to not cache them
+     */
+    public void setDenyTTL(final long ttl) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+
+        denyTTL = Constraint.isGreaterThanOrEqual(0, ttl, "TTL cannot be negative");
+    }
+
+    /**
+     * Set the time-to-live of "enroll" results.
+     * 
+     * @param ttl time-to-live in milliseconds, 0 to not cache them
+     */
+    public void setEnrollTTL(final long ttl) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+
+        enrollTTL = Constraint.isGreaterThanOrEqual(0, ttl, "TTL cannot be negative");
+    }
+
+    /**
+     * Set the maximum number of entries.
+     * 
+     * @param size maximum number of entries
+     */
+    public void setMaxSize(final long size) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+
+        maxSize = Constraint.isGreaterThan(0, size, "Maximum size must be greater than 0");
+    }
+
+    /**
+     * Set the time before expiry from which an entry that is read is refreshed in the background. It is capped at
+     * half of the entry's time-to-live.
+     * 
+     * @param time time in milliseconds, 0 to not refresh ahead
+     */
+    public void setRefreshAhead(final long time) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+
+        refreshAhead = Constraint.isGreaterThanOrEqual(0, time, "Refresh-ahead time cannot be negative");
+    }
+
+    /**
+     * Set the time after expiry during which an entry is still served while it is refreshed.
+     * 
+     * @param time time in milliseconds, 0 to never serve expired entries
+     */
+    public void setStaleGrace(final long time) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+
+        staleGrace = Constraint.isGreaterThanOrEqual(0, time, "Stale grace time cannot be negative");
+    }
+
+    /**
+     * Set the maximum number of concurrent refreshes.
+     * 
+     * @param max maximum number of refreshes
+     */
+    public void setMaxRefreshes(final int max) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+
+        maxRefreshes = (int) Constraint.isGreaterThan(0, max, "Maximum refreshes must be greater than 0");
+    }
+
+    /**
+     * Set the maximum number of refreshes waiting for a thread; refreshes beyond it are skipped.
+     * 
+     * @param size queue size
+     */
+    public void setRefreshQueueSize(final int size) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+
+        refreshQueueSize = (int) Constraint.isGreaterThan(0, size, "Refresh queue size must be greater than 0");
+    }
+
+    /**
+     * Set the metric name prefix, or null to record no metrics.
+     * 
+     * @param name the metric name prefix
+     */
+    public void setMetricName(@Nullable final String name) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+
+        metricPrefix = name;
+    }
+
+    /** {@inheritDoc} */
+    @Override protected void doInitialize() throws ComponentInitializationException {
+        super.doInitialize();
+
+        final long maxTTL = Math.max(Math.max(authTTL, allowTTL), Math.max(denyTTL, enrollTTL));
+        entries = CacheBuilder.newBuilder()
+                .maximumSize(maxSize)
+                .expireAfterWrite(Math.max(maxTTL + staleGrace, 1), TimeUnit.MILLISECONDS)
+                .build();
+
+        refreshExecutor = new ThreadPoolExecutor(maxRefreshes, maxRefreshes, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(refreshQueueSize),
+                new ThreadFactoryBuilder().setNameFormat("duo-preauth-refresh-%d").setDaemon(true).build());
+        refreshExecutor.allowCoreThreadTimeOut(true);
+
+        DuoMetrics.registerGauge(metricPrefix, "preauth.cache.size", new Gauge<Long>() {
+            public Long getValue() {
+                return entries.size();
+            }
+        });
+    }
+
+    /** {@inheritDoc} */
+    @Override protected void doDestroy() {
+        DuoMetrics.remove(metricPrefix, "preauth.cache.size");
+        if (refreshExecutor != null) {
+            refreshExecutor.shutdownNow();
+        }
+        if (entries != null) {
+            entries.invalidateAll();
+        }
+
+        super.doDestroy();
+    }
+
+    /**
+     * Look up a cached response.
+     * 
+     * @param duo the Duo integration
+     * @param username the username
+     * @param needsDevices whether the response must include the device list
+     * @param loader reloads the response in the background, or null to not refresh it
+     * 
+     * @return the cached response, or null
+     */
+    @Nullable public DuoPreauthResponse get(@Nonnull final DuoIntegration duo, @Nonnull @NotEmpty final String username,
+            final boolean needsDevices, @Nullable final Loader loader) {
+        final String key = key(duo, username);
+        final Entry entry = entries.getIfPresent(key);
+        final long now = System.nanoTime();
+        if (entry == null || needsDevices && !entry.hasDevices
+                || now - entry.expires - TimeUnit.MILLISECONDS.toNanos(staleGrace) >= 0
+                || loader == null && now - entry.expires >= 0) {
+            DuoMetrics.increment(metricPrefix, "preauth.cache.miss");
+            return null;
+        }
+        if (now - entry.expires >= 0) {
+            DuoMetrics.increment(metricPrefix, "preauth.cache.stale");
+            refresh(key, entry, loader);
+        } else if (loader != null && now - entry.refreshAt >= 0) {
+            refresh(key, entry, loader);
+        }
+        DuoMetrics.increment(metricPrefix, "preauth.cache.hit");
+        return entry.response;
+    }
+
+    /**
+     * Cache a response, if its result is cacheable.
+     * 
+     * @param duo the Duo integration
+     * @param username the username
+     * @param hasDevices whether the response was decoded with its device list
+     * @param response the response
+     */
+    public void put(@Nonnull final DuoIntegration duo, @Nonnull @NotEmpty final String username,
+            final boolean hasDevices, @Nullable final DuoPreauthResponse response) {
+        put(key(duo, username), hasDevices, response);
+    }
+
+    /**
+     * Remove the cached response for a user, e.g. after the user's Duo status changed.
+     * 
+     * @param duo the Duo integration
+     * @param username the username
+     */
+    public void invalidate(@Nonnull final DuoIntegration duo, @Nonnull @NotEmpty final String username) {
+        entries.invalidate(key(duo, username));
+    }
+
+    /**
+     * Cache a response, or remove the entry if its result is not cacheable.
+     * 
+     * @param key the key
+     * @param hasDevices whether the response was decoded with its device list
+     * @param response the response
+     */
+    private void put(@Nonnull final String key, final boolean hasDevices,
+            @Nullable final DuoPreauthResponse response) {
+        final long ttl = response != null ? getTTL(response.getResult()) : 0;
+        if (ttl > 0) {
+            final long now = System.nanoTime();
+            final long expires = now + TimeUnit.MILLISECONDS.toNanos(ttl);
+            final long refreshAt = expires - TimeUnit.MILLISECONDS.toNanos(Math.min(refreshAhead, ttl / 2));
+            entries.put(key, new Entry(response, hasDevices, expires, refreshAt));
+        } else {
+            entries.invalidate(key);
+        }
+    }
+
+    /**
+     * Refresh an entry in the background, unless it is already being refreshed or the pool is full.
+     * 
+     * @param key the key
+     * @param entry the entry
+     * @param loader reloads the response
+     */
+    private void refresh(@Nonnull final String key, @Nonnull final Entry entry, @Nonnull final Loader loader) {
+        if (!entry.refreshing.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            refreshExecutor.execute(new Runnable() {
+                public void run() {
+                    try {
+                        put(key, entry.hasDevices, loader.load(entry.hasDevices));
+                        DuoMetrics.increment(metricPrefix, "preauth.cache.refresh");
+                    } catch (final Exception e) {
+                        log.debug("Refresh of cached Duo preauth response failed", e);
+                        DuoMetrics.increment(metricPrefix, "preauth.cache.refresh.error");
+                    } finally {
+                        entry.refreshing.set(false);
+                    }
+                }
+            });
+        } catch (final RejectedExecutionException e) {
+            entry.refreshing.set(false);
+            DuoMetrics.increment(metricPrefix, "preauth.cache.refresh.skipped");
+        }
+    }
+
+    /**
+     * Get the time-to-live of a result.
+     * 
+     * @param result the preauth result
+     * 
+     * @return the time-to-live in milliseconds, 0 if the result is not cached
+     */
+    private long getTTL(@Nullable final String result) {
+        if (DuoAuthApi.DUO_PREAUTH_RESULT_AUTH.equals(result)) {
+            return authTTL;
+        } else if (DuoAuthApi.DUO_PREAUTH_RESULT_ALLOW.equals(result)) {
+            return allowTTL;
+        } else if (DuoAuthApi.DUO_PREAUTH_RESULT_DENY.equals(result)) {
+            return denyTTL;
+        } else if (DuoAuthApi.DUO_PREAUTH_RESULT_ENROLL.equals(result)) {
+            return enrollTTL;
+        }
+        return 0;
+    }
+
+    /**
+     * Build the cache key.
+     * 
+     * @param duo the Duo integration
+     * @param username the username
+     * 
+     * @return the key
+     */
+    @Nonnull private static String key(@Nonnull final DuoIntegration duo, @Nonnull final String username) {
+        return duo.getIntegrationKey() + '\n' + username;
+    }
+
+    /** A cached response. */
+    private static final class Entry {
+
+        /** The response. */
+        @Nonnull private final DuoPreauthResponse response;
+
+        /** Whether the response includes the device list. */
+        private final boolean hasDevices;
+
+        /** Expiry, in {@link System#nanoTime()} terms. */
+        private final long expires;
+
+        /** Time from which the entry is refreshed when read, in {@link System#nanoTime()} terms. */
+        private final long refreshAt;
+
+        /** Whether a refresh is in progress. */
+        @Nonnull private final AtomicBoolean refreshing;
+
+        /**
+         * Constructor.
+         * 
+         * @param resp the response
+         * @param devices whether the response includes the device list
+         * @param expiry expiry, in {@link System#nanoTime()} terms
+         * @param refresh time from which the entry is refreshed, in {@link System#nanoTime()} terms
+         */
+        private Entry(@Nonnull final DuoPreauthResponse resp, final boolean devices, final long expiry,
+                final long refresh) {
+            response = resp;
+            hasDevices = devices;
+            expires = expiry;
+            refreshAt = refresh;
+            refreshing = new AtomicBoolean();
+        }
+    }
+
+}
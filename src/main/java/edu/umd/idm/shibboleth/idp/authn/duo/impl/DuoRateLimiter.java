@@ -0,0 +1,465 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.umd.idm.shibboleth.idp.authn.duo.impl;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+
+import edu.umd.idm.shibboleth.idp.authn.duo.DuoRateLimitedException;
+import net.shibboleth.utilities.java.support.annotation.constraint.NotEmpty;
+import net.shibboleth.utilities.java.support.component.AbstractDestructableInitializableComponent;
+import net.shibboleth.utilities.java.support.component.ComponentSupport;
+import net.shibboleth.utilities.java.support.logic.Constraint;
+
+/**
+ * Bounds the calls made to Duo for each integration, so that a storm on one integration is shed locally instead of
+ * collecting rate-limit responses from Duo, and cannot starve the other integrations.
+ * 
+ * <p>
+ * Each integration has its own bulkhead, capping the exchanges in progress, and its own token bucket, capping the
+ * request rate while allowing a burst. A call that cannot proceed at once waits, but only up to a deadline and only if
+ * fewer than a maximum number of calls are already waiting for that integration; otherwise it fails immediately with
+ * a {@link DuoRateLimitedException}. The bucket is kept as the theoretical arrival time of the next request and updated
+ * with a compare-and-set, so taking a token never locks.
+ * </p>
+ * 
+ * <p>
+ * Calls that Duo holds open until the user responds may skip the bulkhead and only take a token, so that pending pushes
+ * cannot shed the integration's other calls. Callers that must not block, such as non-blocking exchanges, use
+ * {@link #tryAcquire(String, boolean)}, which never waits nor reaches the shared budget's store. A call never waits
+ * past its {@link DuoCallDeadline}, and a call shed after taking a token gives the token back.
+ * </p>
+ * 
+ * <p>
+ * If a {@link DuoSharedRateBudget} is set, each call must also fit in the integration's budget shared with the other
+ * IdP nodes, waiting for its next window within the same deadline.
+ * </p>
+ * 
+ * <p>
+ * Shed calls are counted under the metric prefix as "ratelimit.shed.concurrency", "ratelimit.shed.rate" and
+ * "ratelimit.shed.shared".
+ * </p>
+ */
+@ThreadSafe
+public class DuoRateLimiter extends AbstractDestructableInitializableComponent {
+
+    /** Maximum exchanges in progress per integration. */
+    private int maxConcurrent;
+
+    /** Sustained requests per second per integration. */
+    private double requestsPerSecond;
+
+    /** Requests per integration that may be made back to back after an idle period. */
+    private int burst;
+
+    /** Maximum time a call waits for a permit or token, in milliseconds. */
+    private long maxWait;
+
+    /** Maximum calls per integration waiting for a permit or token. */
+    private int maxWaiting;
+
+    /** Metric name prefix. */
+    @Nullable private String metricPrefix;
+
+    /** Optional budget shared with the other nodes. */
+    @Nullable private DuoSharedRateBudget sharedBudget;
+
+    /** Limits by integration key. */
+    @Nonnull private final ConcurrentMap<String, Limit> limits;
+
+    /** Constructor. */
+    public DuoRateLimiter() {
+        maxConcurrent = 50;
+        requestsPerSecond = 50;
+        burst = 50;
+        maxWait = TimeUnit.SECONDS.toMillis(1);
+        maxWaiting = 100;
+        metricPrefix = DuoMetrics.DEFAULT_PREFIX;
+        limits = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Set the maximum exchanges in progress per integration.
+     * 
+     * @param max maximum exchanges
+     */
+    public void setMaxConcurrent(final int max) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+
+        maxConcurrent = (int) Constraint.isGreaterThan(0, max, "Maximum concurrent calls must be greater than 0");
+    }
+
+    /**
+     * Set the sustained requests per second per integration.
+     * 
+     * @param rate requests per second
+     */
+    public void setRequestsPerSecond(final double rate) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+
+        if (rate <= 0) {
+            throw new IllegalArgumentException("Requests per second must be greater than 0");
+        }
+        requestsPerSecond = rate;
+    }
+
+    /**
+     * Set the number of requests per integration that may be made back to back after an idle period.
+     * 
+     * @param size burst size
+     */
+    public void setBurst(final int size) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+
+        burst = (int) Constraint.isGreaterThan(0, size, "Burst must be greater than 0");
+    }
+
+    /**
+     * Set the maximum time a call waits for a permit or token.
+     * 
+     * @param time time in milliseconds, 0 to never wait
+     */
+    public void setMaxWait(final long time) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+
+        maxWait = Constraint.isGreaterThanOrEqual(0, time, "Maximum wait cannot be negative");
+    }
+
+    /**
+     * Set the maximum calls per integration waiting for a permit or token.
+     * 
+     * @param max maximum waiting calls
+     */
+    public void setMaxWaiting(final int max) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+
+        maxWaiting = (int) Constraint.isGreaterThanOrEqual(0, max, "Maximum waiting calls cannot be negative");
+    }
+
+    /**
+     * Set the request budget shared with the other nodes, which calls must also fit in.
+     * 
+     * @param budget the shared budget
+     */
+    public void setSharedBudget(@Nullable final DuoSharedRateBudget budget) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+
+        sharedBudget = budget;
+    }
+
+    /**
+     * Set the metric name prefix, or null to record no metrics.
+     * 
+     * @param name the metric name prefix
+     */
+    public void setMetricName(@Nullable final String name) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+
+        metricPrefix = name;
+    }
+
+    /**
+     * Acquire the right to make a call for an integration, waiting up to the deadline. The returned permit must be
+     * closed when the exchange completes.
+     * 
+     * @param integrationKey the integration key
+     * 
+     * @return the permit
+     * 
+     * @throws DuoRateLimitedException if the integration's budget is exhausted
+     */
+    @Nonnull public Permit acquire(@Nonnull @NotEmpty final String integrationKey) throws DuoRateLimitedException {
+        return acquire(integrationKey, true);
+    }
+
+    /**
+     * Acquire the right to make a call for an integration, waiting up to the deadline. The returned permit must be
+     * closed when the exchange completes.
+     * 
+     * @param integrationKey the integration key
+     * @param bulkhead whether the call takes a bulkhead permit, as opposed to only a token
+     * 
+     * @return the permit
+     * 
+     * @throws DuoRateLimitedException if the integration's budget is exhausted
+     */
+    @Nonnull public Permit acquire(@Nonnull @NotEmpty final String integrationKey, final boolean bulkhead)
+            throws DuoRateLimitedException {
+        return acquire(integrationKey, bulkhead, TimeUnit.MILLISECONDS.toNanos(maxWait));
+    }
+
+    /**
+     * Acquire the right to make a call for an integration if it is available at once, never blocking the caller.
+     * The returned permit must be closed when the exchange completes.
+     * 
+     * @param integrationKey the integration key
+     * @param bulkhead whether the call takes a bulkhead permit, as opposed to only a token
+     * 
+     * @return the permit
+     * 
+     * @throws DuoRateLimitedException if the integration's budget is exhausted right now
+     */
+    @Nonnull public Permit tryAcquire(@Nonnull @NotEmpty final String integrationKey, final boolean bulkhead)
+            throws DuoRateLimitedException {
+        return acquire(integrationKey, bulkhead, 0);
+    }
+
+    /**
+     * Acquire the right to make a call for an integration, waiting up to a given time.
+     * 
+     * @param integrationKey the integration key
+     * @param bulkhead whether the call takes a bulkhead permit
+     * @param maxWaitNanos maximum time to wait, in nanoseconds
+     * 
+     * @return the permit
+     * 
+     * @throws DuoRateLimitedException if the integration's budget is exhausted
+     */
+    @Nonnull private Permit acquire(@Nonnull final String integrationKey, final boolean bulkhead,
+            final long maxWaitNanos) throws DuoRateLimitedException {
+        // never wait past the caller's own deadline, if it has one
+        final long remaining = DuoCallDeadline.getCurrentRemainingTime();
+        final long wait = remaining < TimeUnit.NANOSECONDS.toMillis(maxWaitNanos)
+                ? TimeUnit.MILLISECONDS.toNanos(remaining) : maxWaitNanos;
+        final long deadline = System.nanoTime() + wait;
+        final Limit limit = getLimit(integrationKey);
+        final Semaphore concurrency = bulkhead ? limit.concurrency : null;
+
+        if (concurrency != null && !concurrency.tryAcquire()) {
+            if (wait == 0 || !awaitPermit(limit, deadline)) {
+                throw shed(integrationKey, "concurrency");
+            }
+        }
+
+        boolean reserved = false;
+        boolean acquired = false;
+        try {
+            final long tokenWait = limit.reserve(deadline);
+            if (tokenWait < 0) {
+                throw shed(integrationKey, "rate");
+            }
+            reserved = true;
+            if (tokenWait > 0) {
+                limit.waiting.incrementAndGet();
+                try {
+                    TimeUnit.NANOSECONDS.sleep(tokenWait);
+                } finally {
+                    limit.waiting.decrementAndGet();
+                }
+            }
+            if (sharedBudget != null) {
+                awaitSharedBudget(integrationKey, limit, deadline, wait > 0);
+            }
+            acquired = true;
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new DuoRateLimitedException("Interrupted waiting to call Duo for integration " + integrationKey);
+        } finally {
+            if (!acquired) {
+                if (reserved) {
+                    // the call is not made, so its token goes back to the bucket
+                    limit.refund();
+                }
+                if (concurrency != null) {
+                    concurrency.release();
+                }
+            }
+        }
+        return new Permit(concurrency);
+    }
+
+    /**
+     * Wait for a bulkhead permit, if the queue of waiting calls is not full.
+     * 
+     * @param limit the integration's limit
+     * @param deadline deadline in {@link System#nanoTime()} terms
+     * 
+     * @return whether a permit was acquired
+     * 
+     * @throws DuoRateLimitedException if interrupted
+     */
+    private boolean awaitPermit(@Nonnull final Limit limit, final long deadline) throws DuoRateLimitedException {
+        if (limit.waiting.incrementAndGet() > maxWaiting) {
+            limit.waiting.decrementAndGet();
+            return false;
+        }
+        try {
+            return limit.concurrency.tryAcquire(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new DuoRateLimitedException("Interrupted waiting to call Duo");
+        } finally {
+            limit.waiting.decrementAndGet();
+        }
+    }
+
+    /**
+     * Take a request from the shared budget, waiting for the next window if it starts before the deadline.
+     * 
+     * @param integrationKey the integration key
+     * @param limit the integration's limit
+     * @param deadline deadline in {@link System#nanoTime()} terms
+     * @param mayLease whether the shared budget may reach its store, false for a caller which must not block
+     * 
+     * @throws DuoRateLimitedException if the shared budget is spent until after the deadline
+     * @throws InterruptedException if interrupted while waiting
+     */
+    private void awaitSharedBudget(@Nonnull final String integrationKey, @Nonnull final Limit limit,
+            final long deadline, final boolean mayLease) throws DuoRateLimitedException, InterruptedException {
+        long wait = sharedBudget.tryAcquire(integrationKey, mayLease);
+        while (wait > 0) {
+            if (System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(wait) - deadline > 0
+                    || limit.waiting.get() >= maxWaiting) {
+                throw shed(integrationKey, "shared");
+            }
+            limit.waiting.incrementAndGet();
+            try {
+                TimeUnit.MILLISECONDS.sleep(wait);
+            } finally {
+                limit.waiting.decrementAndGet();
+            }
+            wait = sharedBudget.tryAcquire(integrationKey, mayLease);
+        }
+    }
+
+    /**
+     * Count a shed call and build its exception.
+     * 
+     * @param integrationKey the integration key
+     * @param reason the exhausted budget
+     * 
+     * @return the exception
+     */
+    @Nonnull private DuoRateLimitedException shed(@Nonnull final String integrationKey,
+            @Nonnull @NotEmpty final String reason) {
+        DuoMetrics.increment(metricPrefix, "ratelimit.shed." + reason);
+        return new DuoRateLimitedException("Duo " + reason + " budget exhausted for integration " + integrationKey);
+    }
+
+    /**
+     * Get the limit of an integration, creating it on first use.
+     * 
+     * @param integrationKey the integration key
+     * 
+     * @return the limit
+     */
+    @Nonnull private Limit getLimit(@Nonnull final String integrationKey) {
+        Limit limit = limits.get(integrationKey);
+        if (limit == null) {
+            final Limit created = new Limit();
+            limit = limits.putIfAbsent(integrationKey, created);
+            if (limit == null) {
+                limit = created;
+            }
+        }
+        return limit;
+    }
+
+    /** The right to make one call; closing it releases the integration's bulkhead permit, if it took one. */
+    public static final class Permit implements AutoCloseable {
+
+        /** The bulkhead the permit was taken from, or null. */
+        @Nullable private final Semaphore concurrency;
+
+        /** Whether the permit was released. */
+        @Nonnull private final AtomicBoolean released;
+
+        /**
+         * Constructor.
+         * 
+         * @param semaphore the bulkhead the permit was taken from, or null
+         */
+        private Permit(@Nullable final Semaphore semaphore) {
+            concurrency = semaphore;
+            released = new AtomicBoolean();
+        }
+
+        /** {@inheritDoc} */
+        @Override public void close() {
+            if (released.compareAndSet(false, true) && concurrency != null) {
+                concurrency.release();
+            }
+        }
+    }
+
+    /** The bulkhead and token bucket of one integration. */
+    private final class Limit {
+
+        /** Bulkhead permits. */
+        @Nonnull private final Semaphore concurrency;
+
+        /** Calls waiting for a permit or token. */
+        @Nonnull private final AtomicInteger waiting;
+
+        /** Theoretical arrival time of the next request, in {@link System#nanoTime()} terms. */
+        @Nonnull private final AtomicLong nextArrival;
+
+        /** Time between requests at the sustained rate, in nanoseconds. */
+        private final long interval;
+
+        /** How far ahead of the sustained rate a request may be made, in nanoseconds. */
+        private final long tolerance;
+
+        /** Constructor. */
+        private Limit() {
+            concurrency = new Semaphore(maxConcurrent);
+            waiting = new AtomicInteger();
+            nextArrival = new AtomicLong(System.nanoTime());
+            interval = (long) (TimeUnit.SECONDS.toNanos(1) / requestsPerSecond);
+            tolerance = interval * (burst - 1);
+        }
+
+        /**
+         * Take a token, reserving a future one if none is available now.
+         * 
+         * @param deadline latest time the token may be used, in {@link System#nanoTime()} terms
+         * 
+         * @return the time to wait before making the request in nanoseconds, or -1 if no token is available by the
+         *         deadline or too many calls are waiting
+         */
+        private long reserve(final long deadline) {
+            for (;;) {
+                final long now = System.nanoTime();
+                final long arrival = nextArrival.get();
+                final long base = arrival - now > 0 ? arrival : now;
+                final long allowedAt = base - tolerance - now > 0 ? base - tolerance : now;
+                final long wait = allowedAt - now;
+                if (wait > 0 && (allowedAt - deadline > 0 || waiting.get() >= maxWaiting)) {
+                    return -1;
+                }
+                if (nextArrival.compareAndSet(arrival, base + interval)) {
+                    return wait;
+                }
+            }
+        }
+
+        /** Give back a token taken by {@link #reserve(long)} for a call that was not made. */
+        private void refund() {
+            nextArrival.addAndGet(-interval);
+        }
+    }
+
+}
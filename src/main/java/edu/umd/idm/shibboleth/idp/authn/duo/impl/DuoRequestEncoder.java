@@ -0,0 +1,370 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.umd.idm.shibboleth.idp.authn.duo.impl;
+
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
+
+import net.shibboleth.idp.authn.duo.DuoIntegration;
+import net.shibboleth.utilities.java.support.annotation.constraint.NotEmpty;
+
+/**
+ * Builds signed Duo AuthApi requests for a single integration without going through {@link java.net.URI} building,
+ * <code>RequestBuilder</code> or name/value pair lists.
+ * 
+ * <p>
+ * The endpoint URIs are resolved once per integration. The parameters are canonicalized once, into the signature,
+ * and the same encoded bytes become the form body of a POST or the query string of a GET, so the request on the
+ * wire always matches what was signed. A request keeps its parameters, so that it can be signed again with a new date
+ * before it is resent.
+ * </p>
+ */
+@ThreadSafe
+public final class DuoRequestEncoder {
+
+    /** Duo AuthApi endpoints. */
+    public enum Endpoint {
+
+        /** The /preauth endpoint. */
+        PREAUTH("/auth/v2/preauth", true),
+
+        /** The /auth endpoint, which may push to or call the user. */
+        AUTH("/auth/v2/auth", false),
+
+        /** The /auth_status endpoint. */
+        AUTH_STATUS("/auth/v2/auth_status", true);
+
+        /** The endpoint path. */
+        @Nonnull @NotEmpty private final String path;
+
+        /** The endpoint name, the last segment of its path. */
+        @Nonnull @NotEmpty private final String endpointName;
+
+        /** Whether a request can be repeated without side effects. */
+        private final boolean idempotent;
+
+        /**
+         * Constructor.
+         * 
+         * @param endpointPath the endpoint path
+         * @param isIdempotent whether a request can be repeated without side effects
+         */
+        Endpoint(@Nonnull @NotEmpty final String endpointPath, final boolean isIdempotent) {
+            path = endpointPath;
+            endpointName = endpointPath.substring(endpointPath.lastIndexOf('/') + 1);
+            idempotent = isIdempotent;
+        }
+
+        /**
+         * Get whether a request can be repeated without side effects.
+         * 
+         * @return whether the endpoint is idempotent
+         */
+        public boolean isIdempotent() {
+            return idempotent;
+        }
+
+        /**
+         * Get the endpoint name, the last segment of its path.
+         * 
+         * @return the endpoint name
+         */
+        @Nonnull @NotEmpty public String getName() {
+            return endpointName;
+        }
+
+        /**
+         * Get the endpoint path.
+         * 
+         * @return the endpoint path
+         */
+        @Nonnull @NotEmpty public String getPath() {
+            return path;
+        }
+    }
+
+    /** A request built by the encoder. */
+    public interface SignedRequest extends HttpUriRequest {
+
+        /**
+         * Get the endpoint the request is for.
+         * 
+         * @return the endpoint
+         */
+        @Nonnull Endpoint getEndpoint();
+
+        /**
+         * Get the key of the integration the request is signed for.
+         * 
+         * @return the integration key
+         */
+        @Nonnull String getIntegrationKey();
+
+        /**
+         * Get the time spent canonicalizing and signing the request.
+         * 
+         * @return signing time in nanoseconds
+         */
+        long getSigningTime();
+
+        /**
+         * Build the same request signed anew, with the current date, e.g. to send it again after a delay.
+         * 
+         * @return the newly signed request
+         */
+        @Nonnull SignedRequest resign();
+    }
+
+    /** Content type of form bodies, matching the UTF-8 encoding used for the signature. */
+    @Nonnull private static final ContentType FORM_CONTENT_TYPE =
+            ContentType.create("application/x-www-form-urlencoded", StandardCharsets.UTF_8);
+
+    /** Encoders keyed by integration key. */
+    @Nonnull private static final ConcurrentMap<String, DuoRequestEncoder> ENCODERS = new ConcurrentHashMap<>();
+
+    /** The integration key the encoder was built for. */
+    @Nonnull private final String integrationKey;
+
+    /** The API host the encoder was built for. */
+    @Nonnull private final String apiHost;
+
+    /** Lower-case API host, as signed. */
+    @Nonnull private final String canonicalHost;
+
+    /** The signer for the integration. */
+    @Nonnull private final DuoRequestSigner signer;
+
+    /** Endpoint URIs indexed by ordinal. */
+    @Nonnull private final URI[] uris;
+
+    /** Endpoint URI prefixes for query strings, indexed by ordinal. */
+    @Nonnull private final String[] queryPrefixes;
+
+    /**
+     * Constructor.
+     * 
+     * @param duo integration parameters to use
+     * @param duoSigner the signer for the integration
+     */
+    private DuoRequestEncoder(@Nonnull final DuoIntegration duo, @Nonnull final DuoRequestSigner duoSigner) {
+        integrationKey = duo.getIntegrationKey();
+        apiHost = duo.getAPIHost();
+        canonicalHost = apiHost.toLowerCase();
+        signer = duoSigner;
+
+        final Endpoint[] endpoints = Endpoint.values();
+        uris = new URI[endpoints.length];
+        queryPrefixes = new String[endpoints.length];
+        for (final Endpoint endpoint : endpoints) {
+            queryPrefixes[endpoint.ordinal()] = "https://" + apiHost + endpoint.getPath() + "?";
+            uris[endpoint.ordinal()] = URI.create("https://" + apiHost + endpoint.getPath());
+        }
+    }
+
+    /**
+     * Get the encoder for an integration, building it on first use or if the host or secret key has changed.
+     * 
+     * @param duo integration parameters to use
+     * 
+     * @return the encoder
+     * 
+     * @throws InvalidKeyException bad skey value
+     * @throws NoSuchAlgorithmException unknown encryption algorithm
+     */
+    @Nonnull public static DuoRequestEncoder forIntegration(@Nonnull final DuoIntegration duo)
+            throws InvalidKeyException, NoSuchAlgorithmException {
+        final DuoRequestSigner duoSigner = DuoRequestSigner.forIntegration(duo);
+        DuoRequestEncoder encoder = ENCODERS.get(duo.getIntegrationKey());
+        if (encoder == null || encoder.signer != duoSigner || !encoder.apiHost.equals(duo.getAPIHost())) {
+            encoder = new DuoRequestEncoder(duo, duoSigner);
+            ENCODERS.put(duo.getIntegrationKey(), encoder);
+        }
+        return encoder;
+    }
+
+    /**
+     * Build a signed POST with the parameters as a form body.
+     * 
+     * @param endpoint the endpoint
+     * @param params alternating parameter names and values, pairs with a null value are omitted
+     * 
+     * @return the signed request
+     */
+    @Nonnull public HttpPost post(@Nonnull final Endpoint endpoint, @Nonnull final String... params) {
+        final long start = System.nanoTime();
+        final String date = DuoRequestSigner.currentDate();
+        final DuoRequestSigner.Signature signature =
+                signer.sign(date, "POST", canonicalHost, endpoint.getPath(), params);
+        final SignedPost request = new SignedPost(uris[endpoint.ordinal()], endpoint, this, params);
+        request.setEntity(new ByteArrayEntity(signature.getQuery(), FORM_CONTENT_TYPE));
+        addHeaders(request, date, signature);
+        request.signingTime = System.nanoTime() - start;
+        return request;
+    }
+
+    /**
+     * Build a signed GET with the parameters as a query string.
+     * 
+     * @param endpoint the endpoint
+     * @param params alternating parameter names and values, pairs with a null value are omitted
+     * 
+     * @return the signed request
+     */
+    @Nonnull public HttpGet get(@Nonnull final Endpoint endpoint, @Nonnull final String... params) {
+        final long start = System.nanoTime();
+        final String date = DuoRequestSigner.currentDate();
+        final DuoRequestSigner.Signature signature =
+                signer.sign(date, "GET", canonicalHost, endpoint.getPath(), params);
+        final SignedGet request = new SignedGet(URI.create(queryPrefixes[endpoint.ordinal()]
+                + new String(signature.getQuery(), StandardCharsets.US_ASCII)), endpoint, this, params);
+        addHeaders(request, date, signature);
+        request.signingTime = System.nanoTime() - start;
+        return request;
+    }
+
+    /**
+     * Add the Authorization and Date headers.
+     * 
+     * @param request the request
+     * @param date the Date header value
+     * @param signature the signature
+     */
+    private void addHeaders(@Nonnull final HttpRequestBase request, @Nonnull final String date,
+            @Nonnull final DuoRequestSigner.Signature signature) {
+        request.addHeader("Authorization", signer.authorizationHeader(signature.getValue()));
+        request.addHeader("Date", date);
+    }
+
+    /** A signed POST. */
+    private static final class SignedPost extends HttpPost implements SignedRequest {
+
+        /** The endpoint. */
+        @Nonnull private final Endpoint endpoint;
+
+        /** The encoder that signed the request. */
+        @Nonnull private final DuoRequestEncoder encoder;
+
+        /** The parameters, alternating names and values. */
+        @Nonnull private final String[] params;
+
+        /** Signing time in nanoseconds. */
+        private long signingTime;
+
+        /**
+         * Constructor.
+         * 
+         * @param uri the request URI
+         * @param requestEndpoint the endpoint
+         * @param requestEncoder the encoder that signed the request
+         * @param requestParams the parameters, alternating names and values
+         */
+        SignedPost(@Nonnull final URI uri, @Nonnull final Endpoint requestEndpoint,
+                @Nonnull final DuoRequestEncoder requestEncoder, @Nonnull final String[] requestParams) {
+            super(uri);
+            endpoint = requestEndpoint;
+            encoder = requestEncoder;
+            params = requestParams;
+        }
+
+        /** {@inheritDoc} */
+        @Override @Nonnull public Endpoint getEndpoint() {
+            return endpoint;
+        }
+
+        /** {@inheritDoc} */
+        @Override @Nonnull public String getIntegrationKey() {
+            return encoder.integrationKey;
+        }
+
+        /** {@inheritDoc} */
+        @Override public long getSigningTime() {
+            return signingTime;
+        }
+
+        /** {@inheritDoc} */
+        @Override @Nonnull public SignedRequest resign() {
+            return (SignedRequest) encoder.post(endpoint, params);
+        }
+    }
+
+    /** A signed GET. */
+    private static final class SignedGet extends HttpGet implements SignedRequest {
+
+        /** The endpoint. */
+        @Nonnull private final Endpoint endpoint;
+
+        /** The encoder that signed the request. */
+        @Nonnull private final DuoRequestEncoder encoder;
+
+        /** The parameters, alternating names and values. */
+        @Nonnull private final String[] params;
+
+        /** Signing time in nanoseconds. */
+        private long signingTime;
+
+        /**
+         * Constructor.
+         * 
+         * @param uri the request URI
+         * @param requestEndpoint the endpoint
+         * @param requestEncoder the encoder that signed the request
+         * @param requestParams the parameters, alternating names and values
+         */
+        SignedGet(@Nonnull final URI uri, @Nonnull final Endpoint requestEndpoint,
+                @Nonnull final DuoRequestEncoder requestEncoder, @Nonnull final String[] requestParams) {
+            super(uri);
+            endpoint = requestEndpoint;
+            encoder = requestEncoder;
+            params = requestParams;
+        }
+
+        /** {@inheritDoc} */
+        @Override @Nonnull public Endpoint getEndpoint() {
+            return endpoint;
+        }
+
+        /** {@inheritDoc} */
+        @Override @Nonnull public String getIntegrationKey() {
+            return encoder.integrationKey;
+        }
+
+        /** {@inheritDoc} */
+        @Override public long getSigningTime() {
+            return signingTime;
+        }
+
+        /** {@inheritDoc} */
+        @Override @Nonnull public SignedRequest resign() {
+            return (SignedRequest) encoder.get(endpoint, params);
+        }
+    }
+
+}
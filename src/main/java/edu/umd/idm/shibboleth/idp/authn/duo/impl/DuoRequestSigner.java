@@ -0,0 +1,284 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.umd.idm.shibboleth.idp.authn.duo.impl;
+
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.ThreadSafe;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.joda.time.DateTime;
+
+import com.duosecurity.duoweb.Base64;
+
+import net.shibboleth.idp.authn.duo.DuoIntegration;
+import net.shibboleth.utilities.java.support.annotation.constraint.NotEmpty;
+
+/**
+ * Signs Duo AuthApi requests for a single integration.
+ * 
+ * <p>
+ * The HMAC key is derived once per integration and an initialized {@link Mac} is cloned for each thread, so signing
+ * does no key setup. The "ikey:" prefix of the Authorization header is prebuilt, and the Date header is formatted at
+ * most once per second for all integrations.
+ * </p>
+ */
+@ThreadSafe
+public final class DuoRequestSigner {
+
+    /** HMAC algorithm used by the Duo v2 signature. */
+    @Nonnull @NotEmpty private static final String HMAC_ALGORITHM = "HmacSHA1";
+
+    /** Lower-case hex digits. */
+    @Nonnull private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    /** Signers keyed by integration key. */
+    @Nonnull private static final ConcurrentMap<String, DuoRequestSigner> SIGNERS = new ConcurrentHashMap<>();
+
+    /** Date header for the current second. */
+    @Nonnull private static volatile CachedDate cachedDate = new CachedDate(-1, "");
+
+    /** The secret key the signer was built from. */
+    @Nonnull private final String secretKey;
+
+    /** Bytes of "ikey:". */
+    @Nonnull private final byte[] authorizationPrefix;
+
+    /** Initialized Mac cloned for each thread. */
+    @Nonnull private final Mac prototype;
+
+    /** Per-thread Mac. */
+    @Nonnull private final ThreadLocal<Mac> macs;
+
+    /**
+     * Constructor.
+     * 
+     * @param duo integration parameters to use
+     * 
+     * @throws InvalidKeyException bad skey value
+     * @throws NoSuchAlgorithmException unknown encryption algorithm
+     */
+    private DuoRequestSigner(@Nonnull final DuoIntegration duo)
+            throws InvalidKeyException, NoSuchAlgorithmException {
+        secretKey = duo.getSecretKey();
+        authorizationPrefix = (duo.getIntegrationKey() + ":").getBytes();
+
+        final SecretKeySpec keySpec = new SecretKeySpec(secretKey.getBytes(), HMAC_ALGORITHM);
+        prototype = Mac.getInstance(HMAC_ALGORITHM);
+        prototype.init(keySpec);
+
+        macs = new ThreadLocal<Mac>() {
+            @Override protected Mac initialValue() {
+                try {
+                    return (Mac) prototype.clone();
+                } catch (final CloneNotSupportedException e) {
+                    try {
+                        final Mac mac = Mac.getInstance(HMAC_ALGORITHM);
+                        mac.init(keySpec);
+                        return mac;
+                    } catch (final NoSuchAlgorithmException | InvalidKeyException ex) {
+                        // cannot happen, the prototype was initialized with the same key
+                        throw new IllegalStateException(ex);
+                    }
+                }
+            }
+        };
+    }
+
+    /**
+     * Get the signer for an integration, building it on first use or if the secret key has changed.
+     * 
+     * @param duo integration parameters to use
+     * 
+     * @return the signer
+     * 
+     * @throws InvalidKeyException bad skey value
+     * @throws NoSuchAlgorithmException unknown encryption algorithm
+     */
+    @Nonnull public static DuoRequestSigner forIntegration(@Nonnull final DuoIntegration duo)
+            throws InvalidKeyException, NoSuchAlgorithmException {
+        final String ikey = duo.getIntegrationKey();
+        DuoRequestSigner signer = SIGNERS.get(ikey);
+        if (signer == null || !signer.secretKey.equals(duo.getSecretKey())) {
+            signer = new DuoRequestSigner(duo);
+            SIGNERS.put(ikey, signer);
+        }
+        return signer;
+    }
+
+    /**
+     * Get the value of the Date header for the current second.
+     * 
+     * @return the RFC 2822 formatted date
+     */
+    @Nonnull public static String currentDate() {
+        final long now = System.currentTimeMillis();
+        final long second = now / 1000;
+        CachedDate date = cachedDate;
+        if (date.getSecond() != second) {
+            date = new CachedDate(second, new DateTime(second * 1000).toString(DuoSupport.RFC_2822_DATE_FORMAT));
+            cachedDate = date;
+        }
+        return date.getValue();
+    }
+
+    /**
+     * Compute the hex-encoded signature of a canonical request.
+     * 
+     * @param canon the canonical request
+     * 
+     * @return the signature
+     */
+    @Nonnull public String sign(@Nonnull final String canon) {
+        return toHex(macs.get().doFinal(canon.getBytes()));
+    }
+
+    /**
+     * Compute the hex-encoded signature of a request, canonicalizing it directly into the {@link Mac}.
+     * 
+     * @param date the Date header value
+     * @param method the upper-case HTTP method
+     * @param host the lower-case API host
+     * @param path the request path
+     * @param params alternating parameter names and values
+     * 
+     * @return the signature, together with the encoded query it covers
+     */
+    @Nonnull public Signature sign(@Nonnull final String date, @Nonnull final String method,
+            @Nonnull final String host, @Nonnull final String path, @Nonnull final String[] params) {
+        final Mac mac = macs.get();
+        final byte[] query = DuoCanonicalizer.update(mac, date, method, host, path, params);
+        return new Signature(toHex(mac.doFinal()), query);
+    }
+
+    /**
+     * Build the Authorization header for a signature.
+     * 
+     * @param signature the hex-encoded signature
+     * 
+     * @return the header value
+     */
+    @Nonnull public String authorizationHeader(@Nonnull final String signature) {
+        final byte[] auth = new byte[authorizationPrefix.length + signature.length()];
+        System.arraycopy(authorizationPrefix, 0, auth, 0, authorizationPrefix.length);
+        for (int i = 0; i < signature.length(); i++) {
+            auth[authorizationPrefix.length + i] = (byte) signature.charAt(i);
+        }
+        return "Basic " + Base64.encodeBytes(auth);
+    }
+
+    /**
+     * Hex-encode bytes.
+     * 
+     * @param bytes the bytes
+     * 
+     * @return lower-case hex string
+     */
+    @Nonnull static String toHex(@Nonnull final byte[] bytes) {
+        final char[] out = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            out[2 * i] = HEX[(bytes[i] >> 4) & 0xf];
+            out[2 * i + 1] = HEX[bytes[i] & 0xf];
+        }
+        return new String(out);
+    }
+
+    /** The signature of a request and the encoded query it covers. */
+    public static final class Signature {
+
+        /** Hex-encoded signature. */
+        @Nonnull private final String value;
+
+        /** Encoded query, as signed. */
+        @Nonnull private final byte[] query;
+
+        /**
+         * Constructor.
+         * 
+         * @param hex hex-encoded signature
+         * @param encodedQuery encoded query, as signed
+         */
+        Signature(@Nonnull final String hex, @Nonnull final byte[] encodedQuery) {
+            value = hex;
+            query = encodedQuery;
+        }
+
+        /**
+         * Get the hex-encoded signature.
+         * 
+         * @return the signature
+         */
+        @Nonnull public String getValue() {
+            return value;
+        }
+
+        /**
+         * Get the encoded query, to be sent as the form body or query string so that the request on the wire matches
+         * what was signed.
+         * 
+         * @return the encoded query
+         */
+        @Nonnull public byte[] getQuery() {
+            return query;
+        }
+    }
+
+    /** A formatted date and the second it was formatted for. */
+    private static final class CachedDate {
+
+        /** Epoch second. */
+        private final long second;
+
+        /** Formatted value. */
+        @Nonnull private final String value;
+
+        /**
+         * Constructor.
+         * 
+         * @param epochSecond epoch second
+         * @param formatted formatted value
+         */
+        CachedDate(final long epochSecond, @Nonnull final String formatted) {
+            second = epochSecond;
+            value = formatted;
+        }
+
+        /**
+         * Get the epoch second.
+         * 
+         * @return epoch second
+         */
+        long getSecond() {
+            return second;
+        }
+
+        /**
+         * Get the formatted value.
+         * 
+         * @return formatted value
+         */
+        @Nonnull String getValue() {
+            return value;
+        }
+    }
+
+}
@@ -0,0 +1,147 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.umd.idm.shibboleth.idp.authn.duo.impl;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.apache.http.HttpStatus;
+
+import com.duosecurity.duoweb.DuoWebException;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+
+import edu.umd.idm.shibboleth.idp.authn.duo.DuoAuthApiResponse;
+import net.shibboleth.utilities.java.support.annotation.constraint.NotEmpty;
+
+/**
+ * Decodes the JSON body of a Duo AuthApi response in a single streaming pass.
+ * 
+ * <p>
+ * The envelope (<code>stat</code>, <code>response</code> and, on failure, <code>code</code>, <code>message</code>
+ * and <code>message_detail</code>) is read token by token, in whatever order Duo sends it, and only the inner
+ * response is bound, with an {@link ObjectReader} created once per decoder. Failure responses are read from the same
+ * pass instead of being re-parsed.
+ * </p>
+ * 
+ * @param <R> the inner response type
+ */
+@ThreadSafe
+public class DuoResponseDecoder<R extends DuoAuthApiResponse> {
+
+    /** The <code>stat</code> of a successful response. */
+    @Nonnull @NotEmpty public static final String STAT_OK = "OK";
+
+    /** The <code>stat</code> of a failed response. */
+    @Nonnull @NotEmpty public static final String STAT_FAIL = "FAIL";
+
+    /** Factory for streaming parsers; its buffers are recycled between parsers. */
+    @Nonnull private final JsonFactory jsonFactory;
+
+    /** Cached reader for the inner response. */
+    @Nonnull private final ObjectReader responseReader;
+
+    /**
+     * Constructor.
+     * 
+     * @param mapper the object mapper to derive the reader from
+     * @param responseType the inner response type
+     */
+    public DuoResponseDecoder(@Nonnull final ObjectMapper mapper, @Nonnull final Class<R> responseType) {
+        jsonFactory = mapper.getFactory();
+        responseReader =
+                mapper.readerFor(responseType).without(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES);
+    }
+
+    /**
+     * Constructor which applies a Jackson mix-in to the inner response type, e.g. to skip fields that are never read.
+     * 
+     * @param mapper the object mapper to derive the reader from; it is copied, not modified
+     * @param responseType the inner response type
+     * @param mixIn the mix-in class
+     */
+    public DuoResponseDecoder(@Nonnull final ObjectMapper mapper, @Nonnull final Class<R> responseType,
+            @Nonnull final Class<?> mixIn) {
+        this(mapper.copy().addMixIn(responseType, mixIn), responseType);
+    }
+
+    /**
+     * Decode a Duo AuthApi response.
+     * 
+     * @param httpStatusCode the HTTP status code
+     * @param reasonPhrase the HTTP reason phrase
+     * @param body the response body
+     * 
+     * @return the inner response, which may be null if Duo did not return one
+     * 
+     * @throws DuoHttpStatusException if the status is unexpected
+     * @throws IOException if the body cannot be read
+     * @throws DuoWebException if Duo reports a failure
+     */
+    @Nullable public R decode(final int httpStatusCode, @Nullable final String reasonPhrase,
+            @Nonnull final InputStream body) throws IOException, DuoWebException {
+        if (httpStatusCode != HttpStatus.SC_OK && httpStatusCode != HttpStatus.SC_BAD_REQUEST) {
+            throw new DuoHttpStatusException(httpStatusCode,
+                    "Non-ok status code (" + httpStatusCode + ") returned from Duo: " + reasonPhrase);
+        }
+
+        String stat = null;
+        String message = null;
+        String messageDetail = null;
+        R response = null;
+
+        try (final JsonParser parser = jsonFactory.createParser(body)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new DuoWebException("Unable to parse JSON response");
+            }
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                final String field = parser.getCurrentName();
+                final JsonToken value = parser.nextToken();
+                if ("stat".equals(field)) {
+                    stat = parser.getValueAsString();
+                } else if ("response".equals(field) && httpStatusCode == HttpStatus.SC_OK
+                        && value == JsonToken.START_OBJECT) {
+                    response = responseReader.readValue(parser);
+                } else if ("message".equals(field)) {
+                    message = parser.getValueAsString();
+                } else if ("message_detail".equals(field)) {
+                    messageDetail = parser.getValueAsString();
+                } else {
+                    parser.skipChildren();
+                }
+            }
+        }
+
+        if (httpStatusCode == HttpStatus.SC_BAD_REQUEST) {
+            throw new DuoWebException(message + "(" + messageDetail + ")");
+        }
+        if (!STAT_OK.equals(stat)) {
+            throw new DuoWebException("Unexpected 'STAT' value JSON response: " + stat);
+        }
+
+        return response;
+    }
+
+}
@@ -0,0 +1,291 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.umd.idm.shibboleth.idp.authn.duo.impl;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.apache.http.HttpStatus;
+import org.apache.http.conn.ConnectTimeoutException;
+
+import edu.umd.idm.shibboleth.idp.authn.duo.impl.DuoRequestEncoder.Endpoint;
+import net.shibboleth.utilities.java.support.component.AbstractDestructableInitializableComponent;
+import net.shibboleth.utilities.java.support.component.ComponentInitializationException;
+import net.shibboleth.utilities.java.support.component.ComponentSupport;
+import net.shibboleth.utilities.java.support.logic.Constraint;
+
+/**
+ * Decides whether a failed Duo exchange is retried, and after how long.
+ * 
+ * <p>
+ * Requests to idempotent endpoints are retried after any I/O failure, including 429 and 5xx responses. Requests to
+ * /auth, which may already have pushed to or called the user, are only retried when Duo refused them with a 429 or
+ * the connection could not be established, so the request was never processed. Delays follow decorrelated jitter:
+ * each is drawn at random between the base delay and three times the previous one, or three times the base delay for
+ * the first retry, capped at the maximum delay.
+ * </p>
+ * 
+ * <p>
+ * Retries are also bounded by a budget shared by every caller of the policy: over a sliding window, retries may not
+ * exceed a fixed allowance plus a ratio of the requests made, so that retries cannot amplify an outage. The window is
+ * kept in one-second buckets and is approximate under concurrent rotation. Retries refused by the budget are counted
+ * under the metric prefix as "retry.budget.exhausted".
+ * </p>
+ */
+@ThreadSafe
+public class DuoRetryPolicy extends AbstractDestructableInitializableComponent {
+
+    /** Status Duo answers with when a request is rate limited. */
+    private static final int SC_TOO_MANY_REQUESTS = 429;
+
+    /** Maximum attempts per request, including the first. */
+    private int maxAttempts;
+
+    /** Lowest delay before a retry, in milliseconds. */
+    private long baseDelay;
+
+    /** Highest delay before a retry, in milliseconds. */
+    private long maxDelay;
+
+    /** Retries allowed per request made within the window. */
+    private double budgetRatio;
+
+    /** Retries allowed within the window regardless of traffic. */
+    private int minRetries;
+
+    /** Length of the budget window, in seconds. */
+    private int budgetWindow;
+
+    /** Metric name prefix. */
+    @Nullable private String metricPrefix;
+
+    /** The second each bucket covers. */
+    @Nullable private AtomicLongArray bucketSeconds;
+
+    /** Requests per bucket. */
+    @Nullable private AtomicLongArray requests;
+
+    /** Retries per bucket. */
+    @Nullable private AtomicLongArray retries;
+
+    /** Constructor. */
+    public DuoRetryPolicy() {
+        maxAttempts = 3;
+        baseDelay = 100;
+        maxDelay = TimeUnit.SECONDS.toMillis(2);
+        budgetRatio = 0.1;
+        minRetries = 10;
+        budgetWindow = 10;
+        metricPrefix = DuoMetrics.DEFAULT_PREFIX;
+    }
+
+    /**
+     * Get the maximum attempts per request, including the first.
+     * 
+     * @return maximum attempts
+     */
+    public int getMaxAttempts() {
+        return maxAttempts;
+    }
+
+    /**
+     * Set the maximum attempts per request, including the first.
+     * 
+     * @param attempts maximum attempts
+     */
+    public void setMaxAttempts(final int attempts) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+
+        maxAttempts = (int) Constraint.isGreaterThan(0, attempts, "Maximum attempts must be greater than 0");
+    }
+
+    /**
+     * Set the lowest delay before a retry.
+     * 
+     * @param delay delay in milliseconds
+     */
+    public void setBaseDelay(final long delay) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+
+        baseDelay = Constraint.isGreaterThan(0, delay, "Base delay must be greater than 0");
+    }
+
+    /**
+     * Set the highest delay before a retry.
+     * 
+     * @param delay delay in milliseconds
+     */
+    public void setMaxDelay(final long delay) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+
+        maxDelay = Constraint.isGreaterThan(0, delay, "Maximum delay must be greater than 0");
+    }
+
+    /**
+     * Set the retries allowed per request made within the budget window.
+     * 
+     * @param ratio budget ratio
+     */
+    public void setBudgetRatio(final double ratio) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+
+        if (ratio < 0) {
+            throw new IllegalArgumentException("Budget ratio cannot be negative");
+        }
+        budgetRatio = ratio;
+    }
+
+    /**
+     * Set the retries allowed within the budget window regardless of traffic.
+     * 
+     * @param retriesAllowed number of retries
+     */
+    public void setMinRetries(final int retriesAllowed) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+
+        minRetries = (int) Constraint.isGreaterThanOrEqual(0, retriesAllowed, "Minimum retries cannot be negative");
+    }
+
+    /**
+     * Set the length of the budget window.
+     * 
+     * @param seconds window length in seconds
+     */
+    public void setBudgetWindow(final int seconds) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+
+        budgetWindow = (int) Constraint.isGreaterThan(0, seconds, "Budget window must be greater than 0");
+    }
+
+    /**
+     * Set the metric name prefix, or null to record no metrics.
+     * 
+     * @param name the metric name prefix
+     */
+    public void setMetricName(@Nullable final String name) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+
+        metricPrefix = name;
+    }
+
+    /** {@inheritDoc} */
+    @Override protected void doInitialize() throws ComponentInitializationException {
+        super.doInitialize();
+
+        if (maxDelay < baseDelay) {
+            throw new ComponentInitializationException("Maximum delay cannot be less than the base delay");
+        }
+
+        bucketSeconds = new AtomicLongArray(budgetWindow);
+        requests = new AtomicLongArray(budgetWindow);
+        retries = new AtomicLongArray(budgetWindow);
+        for (int i = 0; i < budgetWindow; i++) {
+            bucketSeconds.set(i, -1);
+        }
+    }
+
+    /** Count a request towards the retry budget. */
+    public void recordRequest() {
+        requests.incrementAndGet(currentBucket());
+    }
+
+    /**
+     * Check whether a failure of a request to an endpoint may be retried.
+     * 
+     * @param endpoint the endpoint, or null if unknown
+     * @param failure the failure
+     * 
+     * @return whether the request may be retried
+     */
+    public boolean isRetryable(@Nullable final Endpoint endpoint, @Nonnull final IOException failure) {
+        if (failure instanceof DuoHttpStatusException) {
+            final int status = ((DuoHttpStatusException) failure).getStatusCode();
+            if (status == SC_TOO_MANY_REQUESTS) {
+                return true;
+            }
+            return endpoint != null && endpoint.isIdempotent()
+                    && (status == HttpStatus.SC_INTERNAL_SERVER_ERROR || status == HttpStatus.SC_BAD_GATEWAY
+                            || status == HttpStatus.SC_SERVICE_UNAVAILABLE
+                            || status == HttpStatus.SC_GATEWAY_TIMEOUT);
+        }
+        if (failure instanceof ConnectException || failure instanceof ConnectTimeoutException) {
+            // the request was never sent
+            return true;
+        }
+        return endpoint != null && endpoint.isIdempotent();
+    }
+
+    /**
+     * Take a retry from the budget.
+     * 
+     * @return whether the budget allows the retry
+     */
+    public boolean tryAcquireRetry() {
+        final int bucket = currentBucket();
+        final long second = bucketSeconds.get(bucket);
+        long requestCount = 0;
+        long retryCount = 0;
+        for (int i = 0; i < budgetWindow; i++) {
+            if (second - bucketSeconds.get(i) < budgetWindow) {
+                requestCount += requests.get(i);
+                retryCount += retries.get(i);
+            }
+        }
+        if (retryCount >= minRetries + budgetRatio * requestCount) {
+            DuoMetrics.increment(metricPrefix, "retry.budget.exhausted");
+            return false;
+        }
+        retries.incrementAndGet(bucket);
+        return true;
+    }
+
+    /**
+     * Get the delay before the next retry.
+     * 
+     * @param previousDelay the previous delay in milliseconds, 0 before the first retry
+     * 
+     * @return the delay in milliseconds
+     */
+    public long nextDelay(final long previousDelay) {
+        final long upper = Math.max(baseDelay, previousDelay) * 3;
+        return Math.min(maxDelay, ThreadLocalRandom.current().nextLong(baseDelay, upper + 1));
+    }
+
+    /**
+     * Get the bucket of the current second, resetting it if it last covered an earlier second.
+     * 
+     * @return the bucket index
+     */
+    private int currentBucket() {
+        final long second = System.currentTimeMillis() / 1000;
+        final int bucket = (int) (second % budgetWindow);
+        final long covered = bucketSeconds.get(bucket);
+        if (covered != second && bucketSeconds.compareAndSet(bucket, covered, second)) {
+            requests.set(bucket, 0);
+            retries.set(bucket, 0);
+        }
+        return bucket;
+    }
+
+}
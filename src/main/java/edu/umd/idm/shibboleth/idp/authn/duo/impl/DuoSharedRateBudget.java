@@ -0,0 +1,327 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.umd.idm.shibboleth.idp.authn.duo.impl;
+
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.opensaml.storage.StorageRecord;
+import org.opensaml.storage.StorageService;
+import org.opensaml.storage.VersionMismatchException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import net.shibboleth.utilities.java.support.annotation.constraint.NotEmpty;
+import net.shibboleth.utilities.java.support.component.AbstractDestructableInitializableComponent;
+import net.shibboleth.utilities.java.support.component.ComponentInitializationException;
+import net.shibboleth.utilities.java.support.component.ComponentSupport;
+import net.shibboleth.utilities.java.support.logic.Constraint;
+import net.shibboleth.utilities.java.support.primitive.StringSupport;
+
+/**
+ * A request budget per integration shared by every IdP node through a {@link StorageService}, so that scaling out
+ * does not multiply the rate at which an integration's Duo quota is consumed.
+ * 
+ * <p>
+ * Time is divided into fixed windows, and the storage record of an integration's current window counts the requests
+ * granted to all nodes in it. A node leases requests from the record in chunks, with an optimistic versioned update,
+ * and spends them locally, so the store is only reached once per chunk rather than per request, by one caller at a
+ * time and without holding up callers spending requests already leased. Leased requests left unused at the end of a
+ * window are forfeited, which errs on the side of staying under the quota. The nodes' clocks are assumed to be
+ * synchronized to well within a window.
+ * </p>
+ * 
+ * <p>
+ * Any {@link StorageService} supporting versioned updates can be used, e.g. the in-memory one for testing or a JPA
+ * one on an embedded database. If the store fails, requests are allowed and the local limits apply alone for a
+ * window before the store is tried again. Lease failures are counted under the metric prefix as
+ * "ratelimit.shared.error".
+ * </p>
+ */
+@ThreadSafe
+public class DuoSharedRateBudget extends AbstractDestructableInitializableComponent {
+
+    /** Maximum attempts at a versioned update before giving up on a lease. */
+    private static final int MAX_UPDATE_ATTEMPTS = 5;
+
+    /** Time in milliseconds a caller is asked to wait while another caller leases from the store. */
+    private static final long LEASE_RETRY_INTERVAL = 5;
+
+    /** Class logger. */
+    @Nonnull private final Logger log = LoggerFactory.getLogger(DuoSharedRateBudget.class);
+
+    /** The shared store. */
+    @Nullable private StorageService storageService;
+
+    /** Storage context of the budget records. */
+    @Nonnull @NotEmpty private String storageContext;
+
+    /** Length of a window, in milliseconds. */
+    private long window;
+
+    /** Requests per integration per window, across all nodes. */
+    private long requestsPerWindow;
+
+    /** Requests leased at a time. */
+    private long leaseSize;
+
+    /** Metric name prefix. */
+    @Nullable private String metricPrefix;
+
+    /** Local leases by integration key. */
+    @Nonnull private final ConcurrentMap<String, Lease> leases;
+
+    /** Constructor. */
+    public DuoSharedRateBudget() {
+        storageContext = DuoSharedRateBudget.class.getName();
+        window = TimeUnit.SECONDS.toMillis(1);
+        requestsPerWindow = 50;
+        leaseSize = 5;
+        metricPrefix = DuoMetrics.DEFAULT_PREFIX;
+        leases = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Set the shared store.
+     * 
+     * @param storage the storage service
+     */
+    public void setStorageService(@Nonnull final StorageService storage) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+
+        storageService = Constraint.isNotNull(storage, "StorageService cannot be null");
+    }
+
+    /**
+     * Set the storage context of the budget records.
+     * 
+     * @param context the storage context
+     */
+    public void setStorageContext(@Nonnull @NotEmpty final String context) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+
+        storageContext = Constraint.isNotNull(StringSupport.trimOrNull(context),
+                "Storage context cannot be null or empty");
+    }
+
+    /**
+     * Set the length of a window.
+     * 
+     * @param time window length in milliseconds
+     */
+    public void setWindow(final long time) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+
+        window = Constraint.isGreaterThan(0, time, "Window must be greater than 0");
+    }
+
+    /**
+     * Set the requests per integration per window, across all nodes.
+     * 
+     * @param requests number of requests
+     */
+    public void setRequestsPerWindow(final long requests) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+
+        requestsPerWindow = Constraint.isGreaterThan(0, requests, "Requests per window must be greater than 0");
+    }
+
+    /**
+     * Set the number of requests leased from the store at a time. Larger leases reach the store less often but can
+     * leave more of the budget unused on idle nodes.
+     * 
+     * @param size lease size
+     */
+    public void setLeaseSize(final long size) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+
+        leaseSize = Constraint.isGreaterThan(0, size, "Lease size must be greater than 0");
+    }
+
+    /**
+     * Set the metric name prefix, or null to record no metrics.
+     * 
+     * @param name the metric name prefix
+     */
+    public void setMetricName(@Nullable final String name) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+
+        metricPrefix = name;
+    }
+
+    /** {@inheritDoc} */
+    @Override protected void doInitialize() throws ComponentInitializationException {
+        super.doInitialize();
+
+        if (storageService == null) {
+            throw new ComponentInitializationException("StorageService cannot be null");
+        }
+    }
+
+    /**
+     * Take one request from the integration's shared budget, leasing more from the store if needed.
+     * 
+     * @param integrationKey the integration key
+     * 
+     * @return 0 if a request was granted, otherwise the time in milliseconds to wait before trying again
+     */
+    public long tryAcquire(@Nonnull @NotEmpty final String integrationKey) {
+        return tryAcquire(integrationKey, true);
+    }
+
+    /**
+     * Take one request from the integration's shared budget. At most one caller at a time leases from the store, and
+     * it does so without holding up the others, which meanwhile only spend requests already leased.
+     * 
+     * @param integrationKey the integration key
+     * @param mayLease whether the caller may reach the store to lease more requests, false for a caller which must
+     *            not block
+     * 
+     * @return 0 if a request was granted, otherwise the time in milliseconds to wait before trying again: until the
+     *         next window if the budget is spent, or briefly if a lease is in progress or not allowed
+     */
+    public long tryAcquire(@Nonnull @NotEmpty final String integrationKey, final boolean mayLease) {
+        final long now = System.currentTimeMillis();
+        final long windowIndex = now / window;
+        final long untilNextWindow = (windowIndex + 1) * window - now;
+
+        Lease lease = leases.get(integrationKey);
+        if (lease == null) {
+            final Lease created = new Lease();
+            lease = leases.putIfAbsent(integrationKey, created);
+            if (lease == null) {
+                lease = created;
+            }
+        }
+
+        synchronized (lease) {
+            if (lease.windowIndex != windowIndex) {
+                lease.windowIndex = windowIndex;
+                lease.remaining = 0;
+                lease.exhausted = false;
+            }
+            if (lease.remaining > 0) {
+                lease.remaining--;
+                return 0;
+            } else if (lease.exhausted) {
+                return untilNextWindow;
+            } else if (now < lease.failOpenUntil) {
+                // the store failed recently: the local limits apply alone until it is tried again
+                return 0;
+            } else if (lease.leasing || !mayLease) {
+                return Math.min(LEASE_RETRY_INTERVAL, untilNextWindow);
+            }
+            lease.leasing = true;
+        }
+
+        // reach the store without holding the lease, so that other callers can spend what is already leased
+        long granted = -1;
+        try {
+            granted = lease(integrationKey, windowIndex);
+        } finally {
+            synchronized (lease) {
+                lease.leasing = false;
+                if (granted < 0) {
+                    // fail open, and back off from the store for a window
+                    lease.failOpenUntil = System.currentTimeMillis() + window;
+                } else if (lease.windowIndex == windowIndex) {
+                    if (granted == 0) {
+                        lease.exhausted = true;
+                    } else {
+                        lease.remaining += granted - 1;
+                    }
+                }
+            }
+        }
+        if (granted == 0) {
+            return untilNextWindow;
+        }
+        return 0;
+    }
+
+    /**
+     * Lease requests from the store.
+     * 
+     * @param integrationKey the integration key
+     * @param windowIndex the current window
+     * 
+     * @return the number of requests granted, 0 if the window's budget is spent, or -1 if the store failed
+     */
+    private long lease(@Nonnull final String integrationKey, final long windowIndex) {
+        final String key = integrationKey + ':' + windowIndex;
+        // keep the record a little beyond its window to allow for clock skew between nodes
+        final Long expiration = (windowIndex + 2) * window;
+        try {
+            for (int attempt = 0; attempt < MAX_UPDATE_ATTEMPTS; attempt++) {
+                final StorageRecord<?> record = storageService.read(storageContext, key);
+                if (record == null) {
+                    final long granted = Math.min(leaseSize, requestsPerWindow);
+                    if (storageService.create(storageContext, key, Long.toString(granted), expiration)) {
+                        return granted;
+                    }
+                    continue;
+                }
+
+                final long used = Long.parseLong(record.getValue());
+                if (used >= requestsPerWindow) {
+                    return 0;
+                }
+                final long granted = Math.min(leaseSize, requestsPerWindow - used);
+                try {
+                    if (storageService.updateWithVersion(record.getVersion(), storageContext, key,
+                            Long.toString(used + granted), expiration) != null) {
+                        return granted;
+                    }
+                } catch (final VersionMismatchException e) {
+                    // another node leased first, try again
+                }
+            }
+            log.debug("Contention leasing Duo request budget for integration {}", integrationKey);
+        } catch (final IOException | RuntimeException e) {
+            log.warn("Unable to lease Duo request budget for integration {}: {}", integrationKey, e.getMessage());
+        }
+        DuoMetrics.increment(metricPrefix, "ratelimit.shared.error");
+        return -1;
+    }
+
+    /** Requests leased by this node for an integration's current window. */
+    private static final class Lease {
+
+        /** The window the lease is for. */
+        @GuardedBy("this") private long windowIndex = -1;
+
+        /** Requests left. */
+        @GuardedBy("this") private long remaining;
+
+        /** Whether the window's shared budget is spent. */
+        @GuardedBy("this") private boolean exhausted;
+
+        /** Whether a caller is leasing from the store. */
+        @GuardedBy("this") private boolean leasing;
+
+        /** Time until which the store is not tried again after it failed, in milliseconds since the epoch. */
+        @GuardedBy("this") private long failOpenUntil;
+    }
+
+}
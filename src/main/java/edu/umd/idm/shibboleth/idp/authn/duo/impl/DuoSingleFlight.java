@@ -0,0 +1,117 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.umd.idm.shibboleth.idp.authn.duo.impl;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+
+import com.google.common.util.concurrent.SettableFuture;
+
+import net.shibboleth.utilities.java.support.annotation.constraint.NotEmpty;
+
+/**
+ * Coalesces concurrent identical calls, so that they share a single execution and its result.
+ * 
+ * <p>
+ * The first caller for a key runs the call; callers arriving with the same key while it is in flight wait for its
+ * result, or its exception. Nothing is kept once the call completes.
+ * </p>
+ */
+@ThreadSafe
+public final class DuoSingleFlight {
+
+    /** Calls in flight, by key. */
+    @Nonnull private final ConcurrentMap<String, SettableFuture<Object>> inFlight;
+
+    /** Constructor. */
+    public DuoSingleFlight() {
+        inFlight = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Run a call, or join the identical call already in flight.
+     * 
+     * @param <T> the result type
+     * @param key identifies identical calls
+     * @param call the call
+     * 
+     * @return the result of the call
+     * 
+     * @throws Exception the exception thrown by the call
+     */
+    @SuppressWarnings("unchecked") @Nullable public <T> T execute(@Nonnull @NotEmpty final String key,
+            @Nonnull final Callable<T> call) throws Exception {
+        final SettableFuture<Object> future = SettableFuture.create();
+        final SettableFuture<Object> existing = inFlight.putIfAbsent(key, future);
+        if (existing != null) {
+            try {
+                return (T) existing.get();
+            } catch (final ExecutionException e) {
+                final Throwable cause = e.getCause();
+                if (cause instanceof Exception) {
+                    throw (Exception) cause;
+                }
+                throw e;
+            }
+        }
+
+        try {
+            final T result = call.call();
+            future.set(result);
+            return result;
+        } catch (final Exception | Error e) {
+            future.setException(e);
+            throw e;
+        } finally {
+            inFlight.remove(key, future);
+        }
+    }
+
+    /**
+     * Get the number of calls in flight.
+     * 
+     * @return number of calls in flight
+     */
+    public int size() {
+        return inFlight.size();
+    }
+
+    /**
+     * Build a key from its parts.
+     * 
+     * @param parts the parts, which may be null
+     * 
+     * @return the key
+     */
+    @Nonnull @NotEmpty public static String key(@Nonnull final String... parts) {
+        final StringBuilder key = new StringBuilder(64);
+        for (final String part : parts) {
+            if (part != null) {
+                key.append(part);
+            }
+            key.append('\n');
+        }
+        return key.toString();
+    }
+
+}
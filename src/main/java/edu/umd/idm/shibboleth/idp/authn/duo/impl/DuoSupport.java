@@ -21,23 +21,21 @@ import net.shibboleth.idp.authn.duo.DuoIntegration;
 import net.shibboleth.utilities.java.support.annotation.constraint.NotEmpty;
 
 import java.net.URI;
-import java.net.URLEncoder;
-import java.io.UnsupportedEncodingException;
+import java.nio.charset.StandardCharsets;
 import java.security.InvalidKeyException;
+import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Comparator;
-import java.util.List;
+import java.util.concurrent.TimeUnit;
+
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
 
-import com.duosecurity.duoweb.Base64;
-import com.duosecurity.duoweb.Util;
+import com.google.common.io.BaseEncoding;
 
 import org.apache.http.client.methods.RequestBuilder;
-import org.apache.http.NameValuePair;
 
-import org.joda.time.DateTime;
 import org.joda.time.format.DateTimeFormat;
 import org.joda.time.format.DateTimeFormatter;
 
@@ -51,115 +49,166 @@ public final class DuoSupport {
     public static final DateTimeFormatter RFC_2822_DATE_FORMAT =
             DateTimeFormat.forPattern("EEE', 'dd' 'MMM' 'yyyy' 'HH:mm:ss' 'Z");
 
+    /** Separator between the transaction id, issue time and MAC in a transaction handle. */
+    private static final char HANDLE_SEPARATOR = '.';
+
+    /** MAC algorithm of transaction handles. */
+    @Nonnull @NotEmpty private static final String HANDLE_MAC_ALGORITHM = "HmacSHA256";
+
+    /** Label from which the transaction handle key is derived. */
+    @Nonnull @NotEmpty private static final String HANDLE_KEY_LABEL = "duo-non-browser transaction handle";
+
+    /** Tolerance in milliseconds for handles issued by a node whose clock is ahead. */
+    private static final long HANDLE_CLOCK_SKEW = TimeUnit.SECONDS.toMillis(30);
+
     /** Constructor. */
     private DuoSupport() {
     }
 
     /**
-     * Sign a Duo request.
+     * Create the handle returned to a client for a pending two-phase authentication. The handle binds the Duo
+     * transaction id and the time it was issued to the integration and username with a MAC, so a client cannot
+     * present a transaction started for another user, or present a handle past its lifetime. The MAC key is derived
+     * from the integration's secret key rather than being the secret key itself.
      * 
-     * @param request the request to be signed
-     * @param duo integration parameters to use
+     * @param duo integration the transaction was started with
+     * @param username the username the transaction was started for
+     * @param txid the Duo transaction id
+     * 
+     * @return the transaction handle
      * 
      * @throws InvalidKeyException bad skey value
      * @throws NoSuchAlgorithmException unknown encryption algorithm
-     * @throws UnsupportedEncodingException failure from {@link URLEncoder}
      */
-    @Nonnull @NotEmpty public static void signRequest(@Nonnull final RequestBuilder request,
-            @Nonnull final DuoIntegration duo)
-            throws InvalidKeyException, NoSuchAlgorithmException, UnsupportedEncodingException {
-        final String ikey = duo.getIntegrationKey();
-        final String skey = duo.getSecretKey();
-        final int sigVersion = 2;
-        final String date = new DateTime().toString(RFC_2822_DATE_FORMAT);
-        final String canon = canonRequest(request, date, sigVersion);
-        final String sig = Util.hmacSign(skey, canon);
-
-        final String auth = ikey + ":" + sig;
-        final String header = "Basic " + Base64.encodeBytes(auth.getBytes());
-        request.addHeader("Authorization", header);
-        request.addHeader("Date", date);
+    @Nonnull @NotEmpty public static String createTransactionHandle(@Nonnull final DuoIntegration duo,
+            @Nonnull @NotEmpty final String username, @Nonnull @NotEmpty final String txid)
+            throws InvalidKeyException, NoSuchAlgorithmException {
+        return createTransactionHandle(duo, username, txid, System.currentTimeMillis() / 1000);
     }
 
     /**
-     * The signature requires that the request parameters being in a particular order as specified in the API.
+     * Verify a transaction handle presented by a client and extract the Duo transaction id from it.
      * 
-     * @param request the request
-     * @param date the date
-     * @param sigVersion the signature version
+     * @param duo integration the transaction should have been started with
+     * @param username the username the transaction should have been started for
+     * @param handle the transaction handle
+     * @param lifetime the time in milliseconds for which a handle is valid after it was issued
      * 
-     * @return the parameters to be signed in their canonical order
+     * @return the Duo transaction id, or null if the handle is not valid for the integration and username, or expired
      * 
-     * @throws UnsupportedEncodingException failure from {@link URLEncoder}
+     * @throws InvalidKeyException bad skey value
+     * @throws NoSuchAlgorithmException unknown encryption algorithm
      */
-    protected static String canonRequest(@Nonnull final RequestBuilder request, @Nonnull final String date,
-            final int sigVersion) throws UnsupportedEncodingException {
-        final URI uri = request.getUri();
-        String canon = "";
-        if (sigVersion == 2) {
-            canon += date + "\n";
+    @Nullable public static String extractTransactionId(@Nonnull final DuoIntegration duo,
+            @Nonnull @NotEmpty final String username, @Nonnull @NotEmpty final String handle, final long lifetime)
+            throws InvalidKeyException, NoSuchAlgorithmException {
+        final int macSeparator = handle.lastIndexOf(HANDLE_SEPARATOR);
+        final int timeSeparator = macSeparator > 0 ? handle.lastIndexOf(HANDLE_SEPARATOR, macSeparator - 1) : -1;
+        if (timeSeparator <= 0) {
+            return null;
+        }
+        final String txid = handle.substring(0, timeSeparator);
+        final long issued;
+        try {
+            issued = Long.parseLong(handle.substring(timeSeparator + 1, macSeparator));
+        } catch (final NumberFormatException e) {
+            return null;
         }
-        canon += request.getMethod().toUpperCase() + "\n";
-        canon += uri.getHost().toLowerCase() + "\n";
-        canon += uri.getPath() + "\n";
-        canon += createQueryString(request.getParameters());
+        final String expected = createTransactionHandle(duo, username, txid, issued);
+        if (!MessageDigest.isEqual(expected.getBytes(StandardCharsets.UTF_8),
+                handle.getBytes(StandardCharsets.UTF_8))) {
+            return null;
+        }
+        final long age = System.currentTimeMillis() - TimeUnit.SECONDS.toMillis(issued);
+        if (age > lifetime || age < -HANDLE_CLOCK_SKEW) {
+            return null;
+        }
+        return txid;
+    }
 
-        return canon;
+    /**
+     * Create a transaction handle issued at a given time.
+     * 
+     * @param duo integration the transaction was started with
+     * @param username the username the transaction was started for
+     * @param txid the Duo transaction id
+     * @param issued the time the handle is issued, in seconds since the epoch
+     * 
+     * @return the transaction handle
+     * 
+     * @throws InvalidKeyException bad skey value
+     * @throws NoSuchAlgorithmException unknown encryption algorithm
+     */
+    @Nonnull @NotEmpty private static String createTransactionHandle(@Nonnull final DuoIntegration duo,
+            @Nonnull @NotEmpty final String username, @Nonnull @NotEmpty final String txid, final long issued)
+            throws InvalidKeyException, NoSuchAlgorithmException {
+        final String prefix = txid + HANDLE_SEPARATOR + issued;
+        final Mac mac = Mac.getInstance(HANDLE_MAC_ALGORITHM);
+        mac.init(new SecretKeySpec(hmac(duo.getSecretKey().getBytes(StandardCharsets.UTF_8), HANDLE_KEY_LABEL),
+                HANDLE_MAC_ALGORITHM));
+        final byte[] tag = mac.doFinal((duo.getIntegrationKey() + "\n" + username + "\n" + prefix)
+                .getBytes(StandardCharsets.UTF_8));
+        return prefix + HANDLE_SEPARATOR + BaseEncoding.base64Url().omitPadding().encode(tag);
     }
 
     /**
-     * Builds a string representaion of the query string with the parameter names is alphabetical order. The names and
-     * values are URL encoded and then they are concatenated with '&' in between.
+     * Compute an HMAC, used to derive the transaction handle key from the secret key.
      * 
-     * @param params the name/value pairs to be joined
+     * @param key the key
+     * @param label the data
      * 
-     * @return the canonical query string
+     * @return the HMAC
      * 
-     * @throws UnsupportedEncodingException failure from {@link URLEncoder}
+     * @throws InvalidKeyException bad key value
+     * @throws NoSuchAlgorithmException unknown algorithm
      */
-    private static String createQueryString(@Nonnull final List<NameValuePair> params)
-            throws UnsupportedEncodingException {
-
-        final ArrayList<String> args = new ArrayList<String>();
-
-        // sort by name
-        Collections.sort(params, new Comparator<NameValuePair>() {
-            public int compare(final NameValuePair nvp1, final NameValuePair nvp2) {
-                return nvp1.getName().compareTo(nvp2.getName());
-            }
-        });
-
-        // URL encode and join the name/values with '='
-        for (final NameValuePair nvp : params) {
-            final String name = URLEncoder.encode(nvp.getName(), "UTF-8").replace("+", "%20").replace("*", "%2A")
-                    .replace("%7E", "~");
-            final String value = URLEncoder.encode(nvp.getValue(), "UTF-8").replace("+", "%20").replace("*", "%2A")
-                    .replace("%7E", "~");
-            args.add(name + "=" + value);
-        }
+    @Nonnull private static byte[] hmac(@Nonnull final byte[] key, @Nonnull @NotEmpty final String label)
+            throws InvalidKeyException, NoSuchAlgorithmException {
+        final Mac mac = Mac.getInstance(HANDLE_MAC_ALGORITHM);
+        mac.init(new SecretKeySpec(key, HANDLE_MAC_ALGORITHM));
+        return mac.doFinal(label.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Sign a Duo request.
+     * 
+     * @param request the request to be signed
+     * @param duo integration parameters to use
+     * 
+     * @throws InvalidKeyException bad skey value
+     * @throws NoSuchAlgorithmException unknown encryption algorithm
+     */
+    @Nonnull @NotEmpty public static void signRequest(@Nonnull final RequestBuilder request,
+            @Nonnull final DuoIntegration duo) throws InvalidKeyException, NoSuchAlgorithmException {
+        final DuoRequestSigner signer = DuoRequestSigner.forIntegration(duo);
+        final String date = DuoRequestSigner.currentDate();
+        final URI uri = request.getUri();
+        final String sig = signer.sign(date, request.getMethod().toUpperCase(), uri.getHost().toLowerCase(),
+                uri.getPath(), DuoCanonicalizer.flatten(request.getParameters())).getValue();
 
-        // concatenate everything togther with '&'
-        return join(args.toArray(), "&");
+        request.addHeader("Authorization", signer.authorizationHeader(sig));
+        request.addHeader("Date", date);
     }
 
     /**
-     * Concatenate an array of objects together with a specifed string seprater.
+     * The signature requires that the request parameters being in a particular order as specified in the API.
      * 
-     * @param s the array of objects
-     * @param glue the sting separator
+     * @param request the request
+     * @param date the date
+     * @param sigVersion the signature version
      * 
-     * @return the concatenated string
+     * @return the parameters to be signed in their canonical order
      */
-    static String join(@Nonnull final Object[] s, @Nonnull final String glue) {
-        final int k = s.length;
-        if (k == 0) {
-            return "";
-        }
-        final StringBuilder out = new StringBuilder();
-        out.append(s[0]);
-        for (int x = 1; x < k; ++x) {
-            out.append(glue).append(s[x]);
+    protected static String canonRequest(@Nonnull final RequestBuilder request, @Nonnull final String date,
+            final int sigVersion) {
+        final URI uri = request.getUri();
+        final String canon = DuoCanonicalizer.canonicalize(date, request.getMethod().toUpperCase(),
+                uri.getHost().toLowerCase(), uri.getPath(), DuoCanonicalizer.flatten(request.getParameters()));
+        if (sigVersion == 2) {
+            return canon;
         }
-        return out.toString();
+        // version 1 signatures omit the date line
+        return canon.substring(canon.indexOf('\n') + 1);
     }
+
 }
@@ -0,0 +1,314 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.umd.idm.shibboleth.idp.authn.duo.impl;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.cert.CertificateEncodingException;
+import java.security.cert.X509Certificate;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+import javax.servlet.http.HttpServletRequest;
+
+import com.codahale.metrics.Gauge;
+import com.google.common.base.Function;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.io.BaseEncoding;
+
+import edu.umd.idm.shibboleth.idp.authn.duo.DuoAuthApi;
+import net.shibboleth.idp.authn.duo.DuoIntegration;
+import net.shibboleth.utilities.java.support.annotation.constraint.NotEmpty;
+import net.shibboleth.utilities.java.support.component.AbstractDestructableInitializableComponent;
+import net.shibboleth.utilities.java.support.component.ComponentInitializationException;
+import net.shibboleth.utilities.java.support.component.ComponentSupport;
+import net.shibboleth.utilities.java.support.logic.Constraint;
+
+/**
+ * Remembers successful Duo authentications for a short window, so that a client repeating its login from the same
+ * place skips Duo entirely.
+ * 
+ * <p>
+ * Entries are kept per integration key and username, and within those per client binding, which is computed from
+ * the request by the client binding strategy. The default strategy, {@link ClientCertificateBinding}, binds to the
+ * client's TLS certificate and yields no binding, and thus no caching, for a client without one; a strategy must
+ * only rely on what the client cannot choose or share with other clients. Only "allow" results are remembered. The
+ * number of users is bounded, and the entries of a user can be removed in one step, e.g. when the user's Duo status
+ * changes.
+ * </p>
+ * 
+ * <p>
+ * Hits and misses are counted under the metric prefix as "verified.cache.hit" and "verified.cache.miss", and the
+ * number of users with entries is exposed as "verified.cache.size".
+ * </p>
+ */
+@ThreadSafe
+public class DuoVerifiedResultCache extends AbstractDestructableInitializableComponent {
+
+    /** Time an authentication is remembered, in milliseconds. */
+    private long window;
+
+    /** Maximum number of users. */
+    private long maxSize;
+
+    /** Metric name prefix. */
+    @Nullable private String metricPrefix;
+
+    /** Strategy computing the client binding of a request. */
+    @Nonnull private Function<HttpServletRequest, String> clientBindingStrategy;
+
+    /** The entries of each user, by client binding. */
+    @Nullable private Cache<String, ConcurrentMap<String, Entry>> entries;
+
+    /** Constructor. */
+    public DuoVerifiedResultCache() {
+        window = TimeUnit.MINUTES.toMillis(5);
+        maxSize = 10000;
+        metricPrefix = DuoMetrics.DEFAULT_PREFIX;
+        clientBindingStrategy = new ClientCertificateBinding();
+    }
+
+    /**
+     * Set the time a successful authentication is remembered.
+     * 
+     * @param time time in milliseconds
+     */
+    public void setWindow(final long time) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+
+        window = Constraint.isGreaterThan(0, time, "Window must be greater than 0");
+    }
+
+    /**
+     * Set the maximum number of users with entries.
+     * 
+     * @param size maximum number of users
+     */
+    public void setMaxSize(final long size) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+
+        maxSize = Constraint.isGreaterThan(0, size, "Maximum size must be greater than 0");
+    }
+
+    /**
+     * Set the metric name prefix, or null to record no metrics.
+     * 
+     * @param name the metric name prefix
+     */
+    public void setMetricName(@Nullable final String name) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+
+        metricPrefix = name;
+    }
+
+    /**
+     * Set the strategy computing the client binding of a request. A null binding means the request is not bound to
+     * a client and is neither answered from nor added to the cache.
+     * 
+     * @param strategy the client binding strategy
+     */
+    public void setClientBindingStrategy(@Nonnull final Function<HttpServletRequest, String> strategy) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+
+        clientBindingStrategy = Constraint.isNotNull(strategy, "Client binding strategy cannot be null");
+    }
+
+    /** {@inheritDoc} */
+    @Override protected void doInitialize() throws ComponentInitializationException {
+        super.doInitialize();
+
+        entries = CacheBuilder.newBuilder()
+                .maximumSize(maxSize)
+                .expireAfterAccess(window, TimeUnit.MILLISECONDS)
+                .build();
+
+        DuoMetrics.registerGauge(metricPrefix, "verified.cache.size", new Gauge<Long>() {
+            public Long getValue() {
+                return entries.size();
+            }
+        });
+    }
+
+    /** {@inheritDoc} */
+    @Override protected void doDestroy() {
+        DuoMetrics.remove(metricPrefix, "verified.cache.size");
+        if (entries != null) {
+            entries.invalidateAll();
+        }
+
+        super.doDestroy();
+    }
+
+    /**
+     * Get the client binding of a request.
+     * 
+     * @param request the request
+     * 
+     * @return the client binding, or null if the request is not bound to a client
+     */
+    @Nullable public String getClientBinding(@Nullable final HttpServletRequest request) {
+        if (request == null) {
+            return null;
+        }
+        return clientBindingStrategy.apply(request);
+    }
+
+    /**
+     * Get the remembered authentication of a user from a client.
+     * 
+     * @param duo the Duo integration
+     * @param username the username
+     * @param binding the client binding
+     * 
+     * @return the response of the remembered authentication, or null
+     */
+    @Nullable public DuoAuthResponse get(@Nonnull final DuoIntegration duo, @Nonnull @NotEmpty final String username,
+            @Nonnull @NotEmpty final String binding) {
+        DuoAuthResponse response = null;
+        final ConcurrentMap<String, Entry> bindings = entries.getIfPresent(key(duo, username));
+        if (bindings != null) {
+            final Entry entry = bindings.get(binding);
+            if (entry != null) {
+                if (entry.expires - System.nanoTime() > 0) {
+                    response = entry.response;
+                } else {
+                    bindings.remove(binding, entry);
+                }
+            }
+        }
+        DuoMetrics.increment(metricPrefix, response != null ? "verified.cache.hit" : "verified.cache.miss");
+        return response;
+    }
+
+    /**
+     * Remember a successful authentication of a user from a client.
+     * 
+     * @param duo the Duo integration
+     * @param username the username
+     * @param binding the client binding
+     * @param response the response; it is only remembered if its result is "allow"
+     */
+    public void put(@Nonnull final DuoIntegration duo, @Nonnull @NotEmpty final String username,
+            @Nonnull @NotEmpty final String binding, @Nullable final DuoAuthResponse response) {
+        if (response == null || !DuoAuthApi.DUO_AUTH_RESULT_ALLOW.equals(response.getResult())) {
+            return;
+        }
+        final String key = key(duo, username);
+        ConcurrentMap<String, Entry> bindings = entries.getIfPresent(key);
+        if (bindings == null) {
+            final ConcurrentMap<String, Entry> created = new ConcurrentHashMap<>();
+            bindings = entries.asMap().putIfAbsent(key, created);
+            if (bindings == null) {
+                bindings = created;
+            }
+        }
+        final long now = System.nanoTime();
+        final Iterator<Map.Entry<String, Entry>> it = bindings.entrySet().iterator();
+        while (it.hasNext()) {
+            if (it.next().getValue().expires - now <= 0) {
+                it.remove();
+            }
+        }
+        bindings.put(binding, new Entry(response, now + TimeUnit.MILLISECONDS.toNanos(window)));
+    }
+
+    /**
+     * Forget the authentications of a user from every client.
+     * 
+     * @param duo the Duo integration
+     * @param username the username
+     */
+    public void invalidate(@Nonnull final DuoIntegration duo, @Nonnull @NotEmpty final String username) {
+        entries.invalidate(key(duo, username));
+    }
+
+    /** Forget every authentication. */
+    public void invalidateAll() {
+        entries.invalidateAll();
+    }
+
+    /**
+     * Build the key of a user.
+     * 
+     * @param duo the Duo integration
+     * @param username the username
+     * 
+     * @return the key
+     */
+    @Nonnull private static String key(@Nonnull final DuoIntegration duo, @Nonnull final String username) {
+        return duo.getIntegrationKey() + '\n' + username;
+    }
+
+    /**
+     * Client binding strategy binding to the TLS client certificate the client presented, as a hash of the
+     * certificate. A request without a client certificate is not bound.
+     */
+    public static class ClientCertificateBinding implements Function<HttpServletRequest, String> {
+
+        /** Request attribute holding the client certificate chain. */
+        @Nonnull @NotEmpty private static final String CERTIFICATE_ATTRIBUTE = "javax.servlet.request.X509Certificate";
+
+        /** Digest algorithm of the client binding. */
+        @Nonnull @NotEmpty private static final String DIGEST_ALGORITHM = "SHA-256";
+
+        /** {@inheritDoc} */
+        @Override @Nullable public String apply(@Nullable final HttpServletRequest request) {
+            if (request == null) {
+                return null;
+            }
+            final Object certificates = request.getAttribute(CERTIFICATE_ATTRIBUTE);
+            if (!(certificates instanceof X509Certificate[]) || ((X509Certificate[]) certificates).length == 0) {
+                return null;
+            }
+            try {
+                final MessageDigest digest = MessageDigest.getInstance(DIGEST_ALGORITHM);
+                return BaseEncoding.base64().encode(digest.digest(((X509Certificate[]) certificates)[0].getEncoded()));
+            } catch (final NoSuchAlgorithmException | CertificateEncodingException e) {
+                return null;
+            }
+        }
+    }
+
+    /** A remembered authentication. */
+    private static final class Entry {
+
+        /** The response. */
+        @Nonnull private final DuoAuthResponse response;
+
+        /** Expiry, in {@link System#nanoTime()} terms. */
+        private final long expires;
+
+        /**
+         * Constructor.
+         * 
+         * @param resp the response
+         * @param expiry expiry, in {@link System#nanoTime()} terms
+         */
+        private Entry(@Nonnull final DuoAuthResponse resp, final long expiry) {
+            response = resp;
+            expires = expiry;
+        }
+    }
+
+}
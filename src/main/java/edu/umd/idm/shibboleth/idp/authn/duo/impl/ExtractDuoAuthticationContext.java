@@ -72,6 +72,9 @@ public class ExtractDuoAuthticationContext extends AbstractExtractionAction {
     /** Header name for passcode. */
     @Nonnull @NotEmpty private String passcodeHeaderName;
 
+    /** Header name for the transaction handle of a two-phase authentication. */
+    @Nonnull @NotEmpty private String transactionHeaderName;
+
     /** parameter name for factor. */
     @Nonnull @NotEmpty private String factorParameterName;
 
@@ -81,6 +84,9 @@ public class ExtractDuoAuthticationContext extends AbstractExtractionAction {
     /** parameter name for passcode. */
     @Nonnull @NotEmpty private String passcodeParameterName;
 
+    /** parameter name for the transaction handle of a two-phase authentication. */
+    @Nonnull @NotEmpty private String transactionParameterName;
+
     /** flag indicating if HTTP headers should be examined. */
     private boolean useHeaders;
 
@@ -96,10 +102,12 @@ public class ExtractDuoAuthticationContext extends AbstractExtractionAction {
         factorHeaderName = "X-Shiboleth-Duo-Factor";
         deviceHeaderName = "X-Shiboleth-Duo-Device";
         passcodeHeaderName = "X-Shiboleth-Duo-Passcode";
+        transactionHeaderName = "X-Shiboleth-Duo-Transaction";
 
         factorParameterName = "duoFactor";
         deviceParameterName = "duoDevice";
         passcodeParameterName = "duoPasscode";
+        transactionParameterName = "duoTransaction";
     }
 
     /**
@@ -138,6 +146,18 @@ public class ExtractDuoAuthticationContext extends AbstractExtractionAction {
                 "Passcode header name cannot be null or empty.");
     }
 
+    /**
+     * Set the transaction header name.
+     * 
+     * @param headerName the transaction header name
+     */
+    public void setTransactionHeaderName(@Nonnull @NotEmpty final String headerName) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+
+        transactionHeaderName = Constraint.isNotNull(StringSupport.trimOrNull(headerName),
+                "Transaction header name cannot be null or empty.");
+    }
+
     /**
      * Set the factor parameter name.
      * 
@@ -174,6 +194,18 @@ public class ExtractDuoAuthticationContext extends AbstractExtractionAction {
                 "Passcode parameter name cannot be null or empty.");
     }
 
+    /**
+     * Set the transaction parameter name.
+     * 
+     * @param parameterName the transaction parameter name
+     */
+    public void setTransactionParameterName(@Nonnull @NotEmpty final String parameterName) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+
+        transactionParameterName = Constraint.isNotNull(StringSupport.trimOrNull(parameterName),
+                "Transaction parameter name cannot be null or empty.");
+    }
+
     /**
      * Is "auto" the default setting.
      * 
@@ -221,6 +253,7 @@ public class ExtractDuoAuthticationContext extends AbstractExtractionAction {
         duoCtx.setFactor(isAutoAuthenticationSupported() ? DuoAuthApi.DUO_FACTOR_AUTO : null);
         duoCtx.setDevice(null);
         duoCtx.setPasscode(null);
+        duoCtx.setTransactionHandle(null);
 
         // get the request context
         final HttpServletRequest request = getHttpServletRequest();
@@ -282,6 +315,11 @@ public class ExtractDuoAuthticationContext extends AbstractExtractionAction {
             context.setPasscode(passcode);
         }
 
+        final String transaction = request.getHeader(transactionHeaderName);
+        if (transaction != null && !transaction.isEmpty()) {
+            context.setTransactionHandle(transaction);
+        }
+
         return context;
     }
 
@@ -311,6 +349,11 @@ public class ExtractDuoAuthticationContext extends AbstractExtractionAction {
             context.setPasscode(passcode);
         }
 
+        final String transaction = request.getParameter(transactionParameterName);
+        if (transaction != null && !transaction.isEmpty()) {
+            context.setTransactionHandle(transaction);
+        }
+
         return context;
     }
 
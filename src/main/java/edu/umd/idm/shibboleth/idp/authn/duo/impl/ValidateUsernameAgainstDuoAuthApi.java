@@ -20,8 +20,21 @@ package edu.umd.idm.shibboleth.idp.authn.duo.impl;
 import edu.umd.idm.shibboleth.idp.authn.context.DuoAuthenticationContext;
 import edu.umd.idm.shibboleth.idp.authn.context.DuoResponseContext;
 import edu.umd.idm.shibboleth.idp.authn.duo.DuoAuthApi;
+import edu.umd.idm.shibboleth.idp.authn.duo.DuoAuthApiResponse;
+import edu.umd.idm.shibboleth.idp.authn.duo.DuoAuthnEventIds;
+import edu.umd.idm.shibboleth.idp.authn.duo.DuoLoginTiming;
+import edu.umd.idm.shibboleth.idp.authn.duo.DuoRateLimitedException;
 
+import java.io.IOException;
+import java.security.GeneralSecurityException;
 import java.security.Principal;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
@@ -30,10 +43,13 @@ import javax.security.auth.Subject;
 import org.opensaml.profile.action.ActionSupport;
 import org.opensaml.profile.action.EventIds;
 import org.opensaml.profile.context.ProfileRequestContext;
+import org.opensaml.storage.StorageService;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.google.common.base.Function;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 
 import net.shibboleth.idp.authn.AbstractValidationAction;
 import net.shibboleth.idp.authn.AuthnEventIds;
@@ -47,6 +63,7 @@ import net.shibboleth.utilities.java.support.component.ComponentInitializationEx
 import net.shibboleth.utilities.java.support.component.ComponentSupport;
 import net.shibboleth.utilities.java.support.logic.Constraint;
 import net.shibboleth.utilities.java.support.logic.FunctionSupport;
+import net.shibboleth.utilities.java.support.primitive.StringSupport;
 
 import com.duosecurity.duoweb.DuoWebException;
 
@@ -60,6 +77,8 @@ import com.duosecurity.duoweb.DuoWebException;
  * @event {@link AuthnEventIds#ACCOUNT_WARNING}
  * @event {@link AuthnEventIds#ACCOUNT_ERROR}
  * @event {@link AuthnEventIds#INVALID_CREDENTIALS}
+ * @event {@link DuoAuthnEventIds#DUO_AUTH_PENDING}
+ * @event {@link DuoAuthnEventIds#DUO_RATE_LIMITED}
  * @pre
  * 
  *      <pre>
@@ -71,11 +90,73 @@ import com.duosecurity.duoweb.DuoWebException;
  *       successful login. On a failed login, the
  *       {@link AbstractValidationAction#handleError(ProfileRequestContext, AuthenticationContext, String, String)}
  *       method is called.
+ * 
+ *       <p>
+ *       The Duo calls run on the calling thread. If a scheduler is set, each call is given a {@link DuoCallDeadline}
+ *       on it, and the HTTP exchange in progress is aborted once the call timeout elapses. Independently of the
+ *       deadline, the number of Duo calls in progress can be capped, in which case calls over the cap fail immediately
+ *       instead of tying up another container thread.
+ *       </p>
+ * 
+ *       <p>
+ *       Each phase is timed under the metric prefix as "&lt;phase&gt;" and as
+ *       "latency.&lt;phase&gt;.&lt;factor&gt;.&lt;outcome&gt;", where the outcome is the Duo result (with a preauth
+ *       "allow" reported as "bypass") or "error". The number of calls in progress is exposed as "inflight". The
+ *       same timings, split into connection and user wait, are kept for the login in a {@link DuoLoginTiming} which
+ *       is published in the {@link DuoResponseContext} whatever the outcome. When {@link DuoExchangeEvent}s are
+ *       enabled, one is emitted per phase.
+ *       </p>
+ * 
+ *       <p>
+ *       If a {@link DuoAuditJournal} is set, every outcome is recorded there instead of being logged at INFO level,
+ *       keeping the log appender off the login path.
+ *       </p>
+ * 
+ *       <p>
+ *       If a {@link DuoVerifiedResultCache} is set, a user who authenticated successfully from the same client within
+ *       its window is not sent to Duo again, and a Duo denial removes the user's remembered authentications. A
+ *       denial from the /auth endpoint also removes the user's cached pre-authentication response.
+ *       </p>
  */
 public class ValidateUsernameAgainstDuoAuthApi extends AbstractValidationAction {
 
     /** Default prefix for metrics. */
-    @Nonnull @NotEmpty private static final String DEFAULT_METRIC_NAME = "net.shibboleth.idp.authn.duo";
+    @Nonnull @NotEmpty private static final String DEFAULT_METRIC_NAME = DuoMetrics.DEFAULT_PREFIX;
+
+    /** Audit outcome of a transaction left pending for the client. */
+    @Nonnull @NotEmpty private static final String OUTCOME_PENDING = "pending";
+
+    /** Audit outcome of a login satisfied by a recent successful authentication. */
+    @Nonnull @NotEmpty private static final String OUTCOME_VERIFIED = "verified";
+
+    /** Audit outcome of a login refused because the integration's call budget is exhausted. */
+    @Nonnull @NotEmpty private static final String OUTCOME_RATE_LIMITED = "rate_limited";
+
+    /** Audit outcome of an invalid transaction handle. */
+    @Nonnull @NotEmpty private static final String OUTCOME_INVALID_HANDLE = "invalid_handle";
+
+    /** Name of the preauth phase. */
+    @Nonnull @NotEmpty private static final String PHASE_PREAUTH = "preauth";
+
+    /** Name of the auth phase. */
+    @Nonnull @NotEmpty private static final String PHASE_AUTH = "auth";
+
+    /** Name of the phase checking on a two-phase transaction. */
+    @Nonnull @NotEmpty private static final String PHASE_AUTH_STATUS = "auth_status";
+
+    /** Storage context of the completed two-phase transactions. */
+    @Nonnull @NotEmpty private static final String TRANSACTION_STORAGE_CONTEXT =
+            ValidateUsernameAgainstDuoAuthApi.class.getName() + ".transactions";
+
+    /** Factors recorded by name in metrics; others are recorded as "other". */
+    @Nonnull private static final Collection<String> METRIC_FACTORS = Arrays.asList(DuoAuthApi.DUO_FACTOR_AUTO,
+            DuoAuthApi.DUO_FACTOR_PUSH, DuoAuthApi.DUO_FACTOR_PASSCODE, DuoAuthApi.DUO_FACTOR_SMS,
+            DuoAuthApi.DUO_FACTOR_PHONE);
+
+    /** Results recorded by name in metrics; others are recorded as "other". */
+    @Nonnull private static final Collection<String> METRIC_OUTCOMES = Arrays.asList(
+            DuoAuthApi.DUO_AUTH_RESULT_ALLOW, DuoAuthApi.DUO_AUTH_RESULT_DENY, DuoAuthApi.DUO_AUTH_RESULT_WAITING,
+            DuoAuthApi.DUO_PREAUTH_RESULT_AUTH, DuoAuthApi.DUO_PREAUTH_RESULT_ENROLL);
 
     /** Class logger. */
     @Nonnull @NotEmpty private final Logger log = LoggerFactory.getLogger(ValidateUsernameAgainstDuoAuthApi.class);
@@ -100,12 +181,58 @@ public class ValidateUsernameAgainstDuoAuthApi extends AbstractValidationAction
 
     /** implementation of Duo AuthApi /preauth enpoint. */
     @Nonnull private DuoPreauthAuthenticator preauthAuthenticator;
-    
+
+    /** Metric name prefix. */
+    @Nullable private String metricPrefix;
+
+    /** Duo calls in progress, shared by every action using the same metric prefix. */
+    @Nonnull private AtomicInteger callsInFlight;
+
+    /** Optional scheduler on which the deadlines of the Duo calls expire. */
+    @Nullable private ScheduledExecutorService duoCallScheduler;
+
+    /** Maximum time in milliseconds allowed for a Duo call when a scheduler is set. */
+    private long duoCallTimeout;
+
+    /** Permits bounding the number of Duo calls in progress, or null for no bound. */
+    @Nullable private Semaphore duoCallPermits;
+
+    /** Whether out-of-band factors use the two-phase protocol. */
+    private boolean twoPhaseAuthentication;
+
+    /** Response header carrying the transaction handle of a two-phase authentication. */
+    @Nonnull @NotEmpty private String transactionHeaderName;
+
+    /** Time in milliseconds for which a transaction handle is valid. */
+    private long transactionHandleLifetime;
+
+    /** Optional storage recording the completed two-phase transactions across nodes. */
+    @Nullable private StorageService transactionStorage;
+
+    /** Completed two-phase transactions, used when no storage is set. */
+    @Nullable private Cache<String, Boolean> completedTransactions;
+
+    /** Optional journal receiving the login outcomes in place of the log. */
+    @Nullable private DuoAuditJournal auditJournal;
+
+    /** Optional cache of recent successful authentications. */
+    @Nullable private DuoVerifiedResultCache verifiedResultCache;
+
     /** Constructor. */
     public ValidateUsernameAgainstDuoAuthApi() {
         duoIntegrationLookupStrategy = FunctionSupport.constant(null);
         usernameLookupStrategy = new CanonicalUsernameLookupStrategy();
         setMetricName(DEFAULT_METRIC_NAME);
+        duoCallTimeout = TimeUnit.SECONDS.toMillis(90);
+        transactionHeaderName = "X-Shiboleth-Duo-Transaction";
+        transactionHandleLifetime = TimeUnit.MINUTES.toMillis(2);
+        callsInFlight = new AtomicInteger();
+    }
+
+    /** {@inheritDoc} */
+    @Override public void setMetricName(@Nullable final String name) {
+        super.setMetricName(name);
+        metricPrefix = name;
     }
 
     /**
@@ -161,6 +288,118 @@ public class ValidateUsernameAgainstDuoAuthApi extends AbstractValidationAction
         preauthAuthenticator = authenticator;
     }
 
+    /**
+     * Set the scheduler on which the deadlines of the Duo calls expire, so that each call is bounded by the call
+     * timeout. The calls themselves still run on the calling thread.
+     * 
+     * @param scheduler the scheduler
+     */
+    public void setDuoCallScheduler(@Nullable final ScheduledExecutorService scheduler) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+
+        duoCallScheduler = scheduler;
+    }
+
+    /**
+     * Set the maximum time allowed for a Duo call when a scheduler is set.
+     * 
+     * @param timeout timeout in milliseconds
+     */
+    public void setDuoCallTimeout(final long timeout) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+
+        duoCallTimeout = Constraint.isGreaterThan(0, timeout, "Duo call timeout must be greater than 0");
+    }
+
+    /**
+     * Set the maximum number of Duo calls in progress at once. The limit is shared by every action using the same
+     * semaphore, so inject a shared instance when the action is prototype-scoped.
+     * 
+     * @param permits the semaphore bounding concurrent Duo calls
+     */
+    public void setDuoCallPermits(@Nullable final Semaphore permits) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+
+        duoCallPermits = permits;
+    }
+
+    /**
+     * Set whether out-of-band factors use the two-phase protocol. In that mode the first request starts the Duo
+     * transaction and returns a transaction handle in a response header, signaling
+     * {@link DuoAuthnEventIds#DUO_AUTH_PENDING}; the client then repeats the request with the handle until the
+     * authentication completes. The repeated requests do not wait on Duo: the transaction is polled by the
+     * authenticator's {@link DuoAuthStatusPoller}. A handle is accepted until its lifetime passes or its transaction
+     * completes, whichever comes first.
+     * 
+     * @param flag whether two-phase mode is enabled
+     */
+    public void setTwoPhaseAuthentication(final boolean flag) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+
+        twoPhaseAuthentication = flag;
+    }
+
+    /**
+     * Set the response header carrying the transaction handle of a two-phase authentication.
+     * 
+     * @param headerName the header name
+     */
+    public void setTransactionHeaderName(@Nonnull @NotEmpty final String headerName) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+
+        transactionHeaderName = Constraint.isNotNull(StringSupport.trimOrNull(headerName),
+                "Transaction header name cannot be null or empty.");
+    }
+
+    /**
+     * Set the time for which a transaction handle is valid after it was issued.
+     * 
+     * @param lifetime lifetime in milliseconds
+     */
+    public void setTransactionHandleLifetime(final long lifetime) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+
+        transactionHandleLifetime =
+                Constraint.isGreaterThan(0, lifetime, "Transaction handle lifetime must be greater than 0");
+    }
+
+    /**
+     * Set the storage recording the completed two-phase transactions, so that a handle is accepted only until its
+     * transaction has completed on any node. If not set, completed transactions are only recorded by this action, so
+     * inject a shared storage service when the IdP is clustered or the action is prototype-scoped.
+     * 
+     * @param storage the storage service
+     */
+    public void setTransactionStorage(@Nullable final StorageService storage) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+
+        transactionStorage = storage;
+    }
+
+    /**
+     * Set the journal receiving the login outcomes. When set, outcomes are recorded in the journal instead of being
+     * logged at INFO level.
+     * 
+     * @param journal the audit journal
+     */
+    public void setAuditJournal(@Nullable final DuoAuditJournal journal) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+
+        auditJournal = journal;
+    }
+
+    /**
+     * Set the cache of recent successful authentications. A user who authenticated successfully from the same client
+     * within the cache's window is not sent to Duo again.
+     * 
+     * @param cache the verified result cache
+     */
+    public void setVerifiedResultCache(@Nullable final DuoVerifiedResultCache cache) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+
+        verifiedResultCache = cache;
+    }
+
     /** {@inheritDoc} */
     @Override protected void doInitialize() throws ComponentInitializationException {
         super.doInitialize();
@@ -172,6 +411,14 @@ public class ValidateUsernameAgainstDuoAuthApi extends AbstractValidationAction
         if (preauthAuthenticator == null) {
             throw new ComponentInitializationException("Duo preauthAuthenticator cannot be null");
         }
+
+        callsInFlight = DuoMetrics.inFlight(metricPrefix, "inflight");
+
+        if (transactionStorage == null) {
+            completedTransactions = CacheBuilder.newBuilder()
+                    .expireAfterWrite(transactionHandleLifetime, TimeUnit.MILLISECONDS)
+                    .build();
+        }
     }
 
     /** {@inheritDoc} */
@@ -224,43 +471,134 @@ public class ValidateUsernameAgainstDuoAuthApi extends AbstractValidationAction
 
         log.trace("{} Triggering Duo auto authentication", getLogPrefix());
 
+        final DuoLoginTiming timing = new DuoLoginTiming();
+        duoContext.setTiming(timing);
+
         // Make API call for phone verification
         try {
 
-            // Duo AuthApi pre-authentication
-            final DuoPreauthResponse preAuthResponse = preauthAuthenticator.authenticate(duoContext, duoIntegration);
-
-            if (preAuthResponse == null) {
-                log.info("{} Duo API preauthentication response missing", getLogPrefix());
-                throw new DuoWebException("missing preauthentication response");
+            final DuoAuthResponse authenticationResponse;
+            final String transactionHandle = duoContext.getTransactionHandle();
+
+            final String clientBinding = verifiedResultCache != null
+                    ? verifiedResultCache.getClientBinding(getHttpServletRequest()) : null;
+            if (clientBinding != null) {
+                final DuoAuthResponse verified = verifiedResultCache.get(duoIntegration, username, clientBinding);
+                if (verified != null) {
+                    if (!audit(OUTCOME_VERIFIED, null)) {
+                        log.info("{} Duo authentication for '{}' recently verified from this client", getLogPrefix(),
+                                username);
+                    }
+                    recordSuccess();
+                    authenticationContext.getSubcontext(DuoResponseContext.class, true)
+                            .setAuthenticationResponse(verified);
+                    buildAuthenticationResult(profileRequestContext, authenticationContext);
+                    return;
+                }
             }
 
-            final String preAuthResult = preAuthResponse.getResult();
+            if (twoPhaseAuthentication && transactionHandle != null) {
+                // second phase: check on the transaction started by an earlier request
+                final String txid = DuoSupport.extractTransactionId(duoIntegration, username, transactionHandle,
+                        transactionHandleLifetime);
+                if (txid == null || isTransactionCompleted(txid)) {
+                    rejectTransactionHandle(profileRequestContext, authenticationContext);
+                    return;
+                }
+
+                // the shared poller waits on Duo, so this request does not
+                final DuoAuthResponse status = invokeDuo(PHASE_AUTH_STATUS, new Callable<DuoAuthResponse>() {
+                    public DuoAuthResponse call() throws Exception {
+                        return authAuthenticator.checkStatus(txid, duoIntegration);
+                    }
+                });
+                if (status == null) {
+                    log.debug("{} Duo authentication for '{}' still pending", getLogPrefix(), username);
+                    audit(OUTCOME_PENDING, null);
+                    signalPending(profileRequestContext, transactionHandle);
+                    return;
+                }
+                if (!completeTransaction(txid)) {
+                    // another request collected the result first
+                    rejectTransactionHandle(profileRequestContext, authenticationContext);
+                    return;
+                }
+                authenticationResponse = status;
 
-            if (preAuthResult.equals(DuoAuthApi.DUO_PREAUTH_RESULT_ALLOW)) {
-                // user in bypass mode; treat as authenticated
-                log.info("{} Duo pre-authentication (bypass) succeeded for '{}'", getLogPrefix(), username);
-                recordSuccess();
-                authenticationContext.getSubcontext(DuoResponseContext.class, true)
-                        .setAuthenticationResponse(preAuthResponse);
-                buildAuthenticationResult(profileRequestContext, authenticationContext);
-                return;
-            }
+            } else {
 
-            if (!preAuthResult.equals(DuoAuthApi.DUO_PREAUTH_RESULT_AUTH)) {
-                // either deny or enroll
-                log.info("{} Duo pre-authentication failed for '{}': {}", getLogPrefix(), username,
-                        preAuthResponse.getStatusMessage());
-                handleError(profileRequestContext, authenticationContext,
-                        String.format("%s:%s:%s", preAuthResult, username, preAuthResponse.getStatusMessage()),
-                        AuthnEventIds.ACCOUNT_ERROR);
-                recordFailure();
-                return;
+                // Duo AuthApi pre-authentication
+                final DuoPreauthResponse preAuthResponse =
+                        invokeDuo(PHASE_PREAUTH, new Callable<DuoPreauthResponse>() {
+                            public DuoPreauthResponse call() throws Exception {
+                                return preauthAuthenticator.authenticate(duoContext, duoIntegration);
+                            }
+                        });
+
+                if (preAuthResponse == null) {
+                    log.info("{} Duo API preauthentication response missing", getLogPrefix());
+                    throw new DuoWebException("missing preauthentication response");
+                }
+
+                final String preAuthResult = preAuthResponse.getResult();
+
+                if (preAuthResult.equals(DuoAuthApi.DUO_PREAUTH_RESULT_ALLOW)) {
+                    // user in bypass mode; treat as authenticated
+                    if (!audit(DuoAuthApi.DUO_AUTH_STATUS_BYPASS, preAuthResponse.getStatusMessage())) {
+                        log.info("{} Duo pre-authentication (bypass) succeeded for '{}'", getLogPrefix(), username);
+                    }
+                    recordSuccess();
+                    authenticationContext.getSubcontext(DuoResponseContext.class, true)
+                            .setAuthenticationResponse(preAuthResponse);
+                    buildAuthenticationResult(profileRequestContext, authenticationContext);
+                    return;
+                }
+
+                if (!preAuthResult.equals(DuoAuthApi.DUO_PREAUTH_RESULT_AUTH)) {
+                    // either deny or enroll
+                    final String statusMessage = preAuthResponse.getStatusMessage();
+                    invalidateVerified();
+                    if (!audit(preAuthResult, statusMessage)) {
+                        log.info("{} Duo pre-authentication failed for '{}': {}", getLogPrefix(), username,
+                                statusMessage);
+                    }
+                    handleError(profileRequestContext, authenticationContext,
+                            preAuthResult + ':' + username + ':' + statusMessage, AuthnEventIds.ACCOUNT_ERROR);
+                    recordFailure();
+                    return;
+                }
+
+                if (isTwoPhase()) {
+                    // first phase: start the transaction and hand it to the client
+                    final String txid = invokeDuo(PHASE_AUTH, new Callable<String>() {
+                        public String call() throws Exception {
+                            return authAuthenticator.startAuthentication(duoContext, duoIntegration);
+                        }
+                    });
+                    log.debug("{} Duo authentication for '{}' started as transaction {}", getLogPrefix(), username,
+                            txid);
+                    try {
+                        // start waiting on Duo now rather than on the client's next request
+                        authAuthenticator.checkStatus(txid, duoIntegration);
+                    } catch (final GeneralSecurityException | RuntimeException e) {
+                        // the push is already out: the second phase starts tracking the transaction instead
+                        log.warn("{} Unable to track Duo transaction {} for '{}': {}", getLogPrefix(), txid,
+                                username, e.getMessage());
+                    }
+                    audit(OUTCOME_PENDING, null);
+                    signalPending(profileRequestContext,
+                            DuoSupport.createTransactionHandle(duoIntegration, username, txid));
+                    return;
+                }
+
+                // Duo AuthAPI authentication
+                authenticationResponse = invokeDuo(PHASE_AUTH, new Callable<DuoAuthResponse>() {
+                    public DuoAuthResponse call() throws Exception {
+                        return authAuthenticator.authenticate(duoContext, duoIntegration);
+                    }
+                });
             }
 
-            // Duo AuthAPI authentication
-            final DuoAuthResponse authenticationResponse = authAuthenticator.authenticate(duoContext, duoIntegration);
-
             if (authenticationResponse == null) {
                 log.info("{} Duo API preauthentication response missing", getLogPrefix());
                 throw new DuoWebException("missing preauthentication response");
@@ -269,13 +607,22 @@ public class ValidateUsernameAgainstDuoAuthApi extends AbstractValidationAction
             final String authResult = authenticationResponse.getResult();
 
             if (authResult.equals(DuoAuthApi.DUO_AUTH_RESULT_ALLOW)) {
-                log.info("{} Duo authentication succeeded for '{}'", getLogPrefix(), username);
+                if (!audit(authResult, authenticationResponse.getStatusMessage())) {
+                    log.info("{} Duo authentication succeeded for '{}'", getLogPrefix(), username);
+                }
+                if (clientBinding != null) {
+                    verifiedResultCache.put(duoIntegration, username, clientBinding, authenticationResponse);
+                }
                 recordSuccess();
                 authenticationContext.getSubcontext(DuoResponseContext.class, true)
                         .setAuthenticationResponse(authenticationResponse);
                 buildAuthenticationResult(profileRequestContext, authenticationContext);
             } else if (authResult.equals(DuoAuthApi.DUO_AUTH_RESULT_DENY)) {
-                log.info("{} Duo authentication failed for '{}'", getLogPrefix(), username);
+                if (!audit(authResult, authenticationResponse.getStatusMessage())) {
+                    log.info("{} Duo authentication failed for '{}'", getLogPrefix(), username);
+                }
+                invalidateVerified();
+                preauthAuthenticator.invalidateCachedResponse(duoIntegration, username);
                 handleError(profileRequestContext, authenticationContext, AuthnEventIds.INVALID_CREDENTIALS,
                         AuthnEventIds.INVALID_CREDENTIALS);
                 recordFailure();
@@ -283,15 +630,249 @@ public class ValidateUsernameAgainstDuoAuthApi extends AbstractValidationAction
             } else {
                 throw new DuoWebException("unexpected authentication response");
             }
+        } catch (final DuoRateLimitedException e) {
+            log.warn("{} Duo AuthAPI call for '{}' refused: {}", getLogPrefix(), username, e.getMessage());
+            audit(OUTCOME_RATE_LIMITED, e.getMessage());
+            handleError(profileRequestContext, authenticationContext, e, DuoAuthnEventIds.DUO_RATE_LIMITED);
+            recordFailure();
+            return;
         } catch (final Exception e) {
             log.error("{} Duo AuthAPI by {} produced exception", getLogPrefix(), username, e);
+            audit(DuoMetrics.OUTCOME_ERROR, e.getMessage());
             handleError(profileRequestContext, authenticationContext, e, AuthnEventIds.AUTHN_EXCEPTION);
             recordFailure();
             return;
+        } finally {
+            authenticationContext.getSubcontext(DuoResponseContext.class, true).setTiming(timing);
         }
     }
     // CheckStyle: ReturnCount OFF
 
+    /**
+     * Record a login outcome in the audit journal, if there is one.
+     * 
+     * @param outcome the outcome
+     * @param detail detail such as the Duo status message
+     * 
+     * @return true if the outcome was handed to the journal, false if it should be logged instead
+     */
+    private boolean audit(@Nonnull @NotEmpty final String outcome, @Nullable final String detail) {
+        if (auditJournal == null) {
+            return false;
+        }
+        auditJournal.record(outcome, username, duoIntegration.getAPIHost(), duoContext.getFactor(), detail,
+                duoContext.getTiming());
+        return true;
+    }
+
+    /** Forget the user's recent successful authentications after Duo refused the user. */
+    private void invalidateVerified() {
+        if (verifiedResultCache != null) {
+            verifiedResultCache.invalidate(duoIntegration, username);
+        }
+    }
+
+    /**
+     * Fail the login because the transaction handle presented is not valid, has expired or was already used.
+     * 
+     * @param profileRequestContext current profile request context
+     * @param authenticationContext current authentication context
+     */
+    private void rejectTransactionHandle(@Nonnull final ProfileRequestContext profileRequestContext,
+            @Nonnull final AuthenticationContext authenticationContext) {
+        if (!audit(OUTCOME_INVALID_HANDLE, null)) {
+            log.info("{} Duo transaction handle for '{}' is not valid", getLogPrefix(), username);
+        }
+        handleError(profileRequestContext, authenticationContext, AuthnEventIds.INVALID_CREDENTIALS,
+                AuthnEventIds.INVALID_CREDENTIALS);
+        recordFailure();
+    }
+
+    /**
+     * Check whether a two-phase transaction has already completed, so its handle can no longer be used.
+     * 
+     * @param txid the transaction id
+     * 
+     * @return true if the transaction has completed
+     * 
+     * @throws IOException if the storage cannot be read
+     */
+    private boolean isTransactionCompleted(@Nonnull @NotEmpty final String txid) throws IOException {
+        final String key = getTransactionKey(txid);
+        if (transactionStorage != null) {
+            return transactionStorage.read(TRANSACTION_STORAGE_CONTEXT, key) != null;
+        }
+        return completedTransactions.getIfPresent(key) != null;
+    }
+
+    /**
+     * Record that a two-phase transaction has completed, so that its handle is used only once.
+     * 
+     * @param txid the transaction id
+     * 
+     * @return true if this request completed the transaction, false if it had already been completed
+     * 
+     * @throws IOException if the storage cannot be written
+     */
+    private boolean completeTransaction(@Nonnull @NotEmpty final String txid) throws IOException {
+        final String key = getTransactionKey(txid);
+        if (transactionStorage != null) {
+            return transactionStorage.create(TRANSACTION_STORAGE_CONTEXT, key, username,
+                    System.currentTimeMillis() + transactionHandleLifetime);
+        }
+        return completedTransactions.asMap().putIfAbsent(key, Boolean.TRUE) == null;
+    }
+
+    /**
+     * Get the key under which a completed transaction is recorded.
+     * 
+     * @param txid the transaction id
+     * 
+     * @return the key
+     */
+    @Nonnull @NotEmpty private String getTransactionKey(@Nonnull @NotEmpty final String txid) {
+        return duoIntegration.getIntegrationKey() + ':' + txid;
+    }
+
+    /**
+     * Check whether the current request should start a two-phase authentication.
+     * 
+     * @return true if two-phase mode is enabled, the factor is out-of-band and the handle can be returned
+     */
+    private boolean isTwoPhase() {
+        if (!twoPhaseAuthentication || DuoAuthApi.DUO_FACTOR_PASSCODE.equals(duoContext.getFactor())) {
+            return false;
+        }
+        if (getHttpServletResponse() == null) {
+            log.warn("{} No HttpServletResponse available, falling back to single-phase Duo authentication",
+                    getLogPrefix());
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Return a transaction handle to the client and signal that the authentication is pending.
+     * 
+     * @param profileRequestContext current profile request context
+     * @param handle the transaction handle
+     */
+    private void signalPending(@Nonnull final ProfileRequestContext profileRequestContext,
+            @Nonnull @NotEmpty final String handle) {
+        getHttpServletResponse().setHeader(transactionHeaderName, handle);
+        DuoMetrics.increment(metricPrefix, "pending");
+        ActionSupport.buildEvent(profileRequestContext, DuoAuthnEventIds.DUO_AUTH_PENDING);
+    }
+
+    /**
+     * Run one phase of the Duo call chain, honoring the concurrency cap and call timeout, and record its
+     * elapsed time and outcome.
+     * 
+     * @param phase name of the phase, used as the metric name
+     * @param call the Duo call
+     * @param <T> the response type
+     * 
+     * @return the Duo response
+     * 
+     * @throws Exception if the call fails, times out or is refused by the concurrency cap
+     */
+    private <T> T invokeDuo(@Nonnull @NotEmpty final String phase, @Nonnull final Callable<T> call)
+            throws Exception {
+        if (duoCallPermits != null && !duoCallPermits.tryAcquire()) {
+            DuoMetrics.increment(metricPrefix, phase + ".rejected");
+            throw new DuoWebException("too many Duo calls in progress");
+        }
+
+        final long start = System.nanoTime();
+        final DuoExchangeEvent event = DuoExchangeEvent.begin(phase, duoIntegration.getAPIHost());
+        callsInFlight.incrementAndGet();
+        String outcome = DuoMetrics.OUTCOME_ERROR;
+        try {
+            final T response = runDuoCall(phase, call);
+            outcome = response == null && PHASE_AUTH_STATUS.equals(phase) ? DuoAuthApi.DUO_AUTH_RESULT_WAITING
+                    : getOutcome(response);
+            return response;
+        } finally {
+            callsInFlight.decrementAndGet();
+            final long elapsed = System.nanoTime() - start;
+            DuoMetrics.recordTime(metricPrefix, phase, elapsed);
+            DuoMetrics.recordTime(metricPrefix, elapsed, "latency", phase, getMetricFactor(), outcome);
+            if (PHASE_PREAUTH.equals(phase)) {
+                duoContext.getTiming().addPreauthTime(elapsed);
+            } else {
+                duoContext.getTiming().addAuthTime(elapsed);
+            }
+            if (event != null) {
+                event.setFactor(duoContext.getFactor());
+                event.setResult(outcome);
+                event.commit();
+            }
+            if (duoCallPermits != null) {
+                duoCallPermits.release();
+            }
+        }
+    }
+
+    /**
+     * Run a Duo call on the calling thread, bounded by the call timeout if a scheduler is set.
+     * 
+     * @param phase name of the phase
+     * @param call the Duo call
+     * @param <T> the response type
+     * 
+     * @return the Duo response
+     * 
+     * @throws Exception if the call fails or times out
+     */
+    private <T> T runDuoCall(@Nonnull @NotEmpty final String phase, @Nonnull final Callable<T> call)
+            throws Exception {
+        if (duoCallScheduler == null) {
+            return call.call();
+        }
+
+        try (final DuoCallDeadline deadline = DuoCallDeadline.start(duoCallScheduler, duoCallTimeout)) {
+            try {
+                return call.call();
+            } catch (final Exception e) {
+                if (!deadline.isExpired()) {
+                    throw e;
+                }
+                DuoMetrics.increment(metricPrefix, phase + ".timeouts");
+                throw new DuoWebException("Duo " + phase + " call timed out");
+            }
+        }
+    }
+
+    /**
+     * Get the factor as recorded in metrics, limited to the known factors.
+     * 
+     * @return the factor
+     */
+    @Nonnull @NotEmpty private String getMetricFactor() {
+        final String factor = duoContext.getFactor();
+        return METRIC_FACTORS.contains(factor) ? factor : "other";
+    }
+
+    /**
+     * Get the outcome of a Duo call as recorded in metrics.
+     * 
+     * @param response the Duo response, or the transaction id of a started authentication
+     * 
+     * @return the outcome
+     */
+    @Nonnull @NotEmpty private String getOutcome(@Nullable final Object response) {
+        if (response instanceof String) {
+            return DuoAuthApi.DUO_AUTH_RESULT_WAITING;
+        } else if (response instanceof DuoPreauthResponse
+                && DuoAuthApi.DUO_PREAUTH_RESULT_ALLOW.equals(((DuoPreauthResponse) response).getResult())) {
+            return DuoAuthApi.DUO_AUTH_STATUS_BYPASS;
+        } else if (response instanceof DuoAuthApiResponse) {
+            final String result = ((DuoAuthApiResponse) response).getResult();
+            return METRIC_OUTCOMES.contains(result) ? result : "other";
+        }
+        return DuoMetrics.OUTCOME_ERROR;
+    }
+
     /** {@inheritDoc} */
     @Override protected Subject populateSubject(@Nonnull final Subject subject) {
         subject.getPrincipals().add(new DuoPrincipal(username));